@@ -15,6 +15,18 @@ repositories {
     jcenter()
 }
 
+// JMH benchmarks against the main classes, the test ones provide InMemoryDAO until DAOFactory has a DAO
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets["main"].output + sourceSets["test"].output
+        runtimeClasspath += sourceSets["main"].output + sourceSets["test"].output
+    }
+}
+
+val jmhImplementation by configurations.getting {
+    extendsFrom(configurations["implementation"])
+}
+
 dependencies {
     // Checks
     errorprone("com.google.errorprone:error_prone_core:2.3.3")
@@ -35,10 +47,25 @@ dependencies {
     // JUnit Jupiter test framework
     testCompile("org.junit.jupiter:junit-jupiter-api:5.4.0")
     testRuntime("org.junit.jupiter:junit-jupiter-engine:5.4.0")
+
+    // Latency histograms of the load generator
+    testCompile("org.hdrhistogram:HdrHistogram:2.1.12")
+
+    // JMH benchmark harness
+    jmhImplementation("org.openjdk.jmh:jmh-core:1.26")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:1.26")
 }
 
 val run by tasks.getting(JavaExec::class) {
     standardInput = System.`in`
+    // -Pjfr keeps a continuous flight recording of the last hour, dumped to build/jfr on exit
+    if (project.hasProperty("jfr")) {
+        jvmArgs("-XX:StartFlightRecording=disk=true,maxage=1h,settings=default,dumponexit=true,"
+                + "filename=$buildDir/jfr/server.jfr")
+        doFirst {
+            mkdir("$buildDir/jfr")
+        }
+    }
 }
 
 tasks {
@@ -48,6 +75,33 @@ tasks {
     }
 }
 
+val topologyBenchmark by tasks.registering(JavaExec::class) {
+    description = "Compares lookup cost and load imbalance of cluster topologies"
+    classpath = sourceSets["test"].runtimeClasspath
+    main = "ru.mail.polis.service.mariarheon.TopologyBenchmark"
+    maxHeapSize = "256m"
+}
+
+val load by tasks.registering(JavaExec::class) {
+    description = "Drives an open-loop load against a running node, -PloadArgs=\"...\" passes the options"
+    classpath = sourceSets["test"].runtimeClasspath
+    main = "ru.mail.polis.load.LoadGenerator"
+    maxHeapSize = "256m"
+    project.findProperty("loadArgs")?.let { args(it.toString().trim().split(Regex("\\s+"))) }
+}
+
+val jmh by tasks.registering(JavaExec::class) {
+    description = "Runs the JMH benchmarks of the storage, -PjmhInclude=<regex> selects the benchmarks"
+    classpath = sourceSets["jmh"].runtimeClasspath
+    main = "org.openjdk.jmh.Main"
+    maxHeapSize = "256m"
+    args("-rf", "json", "-rff", "$buildDir/reports/jmh/results.json")
+    project.findProperty("jmhInclude")?.let { args(it) }
+    doFirst {
+        mkdir("$buildDir/reports/jmh")
+    }
+}
+
 application {
     // Define the main class for the application
     mainClassName = "ru.mail.polis.Server"
@@ -66,4 +120,10 @@ tasks.withType<JavaCompile> {
 // Error prone options
 tasks.named<JavaCompile>("compileTestJava") {
     options.errorprone.isEnabled.set(false)
+}
+
+// Generated benchmark code is not ours to check
+tasks.named<JavaCompile>("compileJmhJava") {
+    options.errorprone.isEnabled.set(false)
+    options.compilerArgs.remove("-Werror")
 }
\ No newline at end of file
@@ -0,0 +1,75 @@
+package ru.mail.polis.dao;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of a single {@link DAO#compact()} of a data set every key of which was overwritten once.
+ * <p>
+ * Run with {@code ./gradlew jmh}, defaults match the sizes of {@code TestBase}.
+ * The space amplification after the compaction is reported in the {@link StorageCounters}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class CompactionBenchmark {
+    /**
+     * Storage of the {@link DataSet}, the DAO of the factory fails the run until there is one.
+     */
+    @Param({DataSet.FACTORY, DataSet.MEMORY})
+    String storage;
+
+    @Param("16")
+    int keySize;
+
+    @Param("1024")
+    int valueSize;
+
+    @Param({"10000", "100000"})
+    int records;
+
+    private DataSet data;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new DataSet(storage, keySize, valueSize, records);
+    }
+
+    /**
+     * Leaves a stale version of every key for the compaction to drop.
+     */
+    @Setup(Level.Iteration)
+    public void overwrite() throws IOException {
+        data.fill();
+        data.fill();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        data.close();
+    }
+
+    @Benchmark
+    public void compact(final StorageCounters counters) throws IOException {
+        data.dao().compact();
+        // A listing of the directory, next to nothing beside the compaction
+        data.report(counters);
+    }
+}
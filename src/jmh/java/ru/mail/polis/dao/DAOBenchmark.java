@@ -0,0 +1,93 @@
+package ru.mail.polis.dao;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency of the single {@link DAO} operations over a data set of the given size.
+ * <p>
+ * Run with {@code ./gradlew jmh}, defaults match the sizes of {@code TestBase}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class DAOBenchmark {
+    private static final int SCAN_LENGTH = 100;
+
+    /**
+     * Storage of the {@link DataSet}, the DAO of the factory fails the run until there is one.
+     */
+    @Param({DataSet.FACTORY, DataSet.MEMORY})
+    String storage;
+
+    @Param("16")
+    int keySize;
+
+    @Param("1024")
+    int valueSize;
+
+    @Param({"10000", "100000"})
+    int records;
+
+    private DataSet data;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        data = new DataSet(storage, keySize, valueSize, records);
+        data.fill();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        data.close();
+    }
+
+    @Benchmark
+    public void upsert() throws IOException {
+        data.dao().upsert(data.present(next++), data.value());
+    }
+
+    @Benchmark
+    public ByteBuffer getHit() throws IOException {
+        return data.dao().get(data.present(next++));
+    }
+
+    @Benchmark
+    public ByteBuffer getMiss() throws IOException {
+        try {
+            return data.dao().get(data.absent(next++));
+        } catch (NoSuchElementException e) {
+            return null;
+        }
+    }
+
+    @Benchmark
+    public void range(final Blackhole blackhole) throws IOException {
+        final Iterator<Record> iterator = data.dao().iterator(data.present(next++));
+        for (int i = 0; i < SCAN_LENGTH && iterator.hasNext(); i++) {
+            blackhole.consume(iterator.next());
+        }
+    }
+}
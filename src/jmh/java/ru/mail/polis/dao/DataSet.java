@@ -0,0 +1,131 @@
+package ru.mail.polis.dao;
+
+import ru.mail.polis.Files;
+import ru.mail.polis.dao.mariarheon.InstrumentedDAO;
+import ru.mail.polis.dao.mariarheon.StorageMetrics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * {@link DAO} in a temporary directory with the random keys it stores and the keys it doesn't.
+ * <p>
+ * Keys come from a fixed seed, so every run of a benchmark works with the same data.
+ * The DAO is instrumented, so the benchmarks can report the space amplification along with the time.
+ * <p>
+ * The storage is a benchmark parameter, so the results say which DAO was measured:
+ * {@value #FACTORY} for the one of {@link DAOFactory}, {@value #MEMORY} for {@link InMemoryDAO},
+ * which measures the layers on top of the storage only.
+ */
+final class DataSet implements Closeable {
+    static final String FACTORY = "factory";
+    static final String MEMORY = "memory";
+
+    private static final long SEED = 42L;
+
+    private final File directory;
+    private final StorageMetrics metrics = new StorageMetrics();
+    private final DAO dao;
+    private final ByteBuffer[] present;
+    private final ByteBuffer[] absent;
+    private final ByteBuffer value;
+
+    /**
+     * Creates the data set.
+     *
+     * @param storage {@value #FACTORY} or {@value #MEMORY}
+     * @throws UnsupportedOperationException if {@link DAOFactory} has no DAO yet
+     */
+    DataSet(
+            final String storage,
+            final int keySize,
+            final int valueSize,
+            final int records) throws IOException {
+        final Random random = new Random(SEED);
+        this.present = keys(random, keySize, records);
+        this.absent = keys(random, keySize, records);
+        final byte[] bytes = new byte[valueSize];
+        random.nextBytes(bytes);
+        this.value = ByteBuffer.wrap(bytes);
+        this.directory = Files.createTempDirectory();
+        this.metrics.directory(directory);
+        try {
+            this.dao = new InstrumentedDAO(create(storage, directory), metrics);
+        } catch (IOException | RuntimeException e) {
+            Files.recursiveDelete(directory);
+            throw e;
+        }
+    }
+
+    private static DAO create(
+            final String storage,
+            final File directory) throws IOException {
+        switch (storage) {
+            case FACTORY:
+                return DAOFactory.create(directory);
+            case MEMORY:
+                return new InMemoryDAO();
+            default:
+                throw new IllegalArgumentException("Unknown storage: " + storage);
+        }
+    }
+
+    /**
+     * Stores all the present keys.
+     */
+    void fill() throws IOException {
+        for (final ByteBuffer key : present) {
+            dao.upsert(key.duplicate(), value.duplicate());
+        }
+    }
+
+    DAO dao() {
+        return dao;
+    }
+
+    ByteBuffer present(final int index) {
+        return present[Math.floorMod(index, present.length)].duplicate();
+    }
+
+    ByteBuffer absent(final int index) {
+        return absent[Math.floorMod(index, absent.length)].duplicate();
+    }
+
+    ByteBuffer value() {
+        return value.duplicate();
+    }
+
+    /**
+     * Sets the counters to the amplification so far, the space one as of the last compaction.
+     */
+    void report(final StorageCounters counters) {
+        counters.compactions = metrics.getCompactions();
+        counters.diskBytes = metrics.getDiskBytes();
+        counters.liveBytes = metrics.getLiveBytes();
+        counters.spaceAmplification = metrics.getSpaceAmplification();
+        counters.writeAmplification = metrics.getWriteAmplification();
+        counters.readAmplification = metrics.getReadAmplification();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+        Files.recursiveDelete(directory);
+    }
+
+    private static ByteBuffer[] keys(
+            final Random random,
+            final int keySize,
+            final int count) {
+        final ByteBuffer[] result = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final byte[] key = new byte[keySize];
+            random.nextBytes(key);
+            result[i] = ByteBuffer.wrap(key);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,119 @@
+package ru.mail.polis.dao;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Write throughput of the {@link StripedMemTable} by the number of partitions and writers.
+ * <p>
+ * The baseline is the bare {@link ConcurrentSkipListMap}, a single partition shows what the freeze handshake costs
+ * on top of it. The service keys are the ids of the load generator, {@code k} and a zero padded number
+ * in UTF-8 sharing their prefix, the partitions are split by a sample of the keys as a DAO would do.
+ * Run with {@code ./gradlew jmh -PjmhInclude=MemTable} on a host with at least as many cores as writers,
+ * on fewer the writers take turns and no contention is left to relieve.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx256m")
+public class MemTableBenchmark {
+    private static final int KEYS = 100_000;
+    private static final int SAMPLE = 1000;
+    private static final long SEED = 42L;
+
+    @Param({"service", "random"})
+    String keyFormat;
+
+    @Param("1024")
+    int valueSize;
+
+    /**
+     * Partitions of the memtable, {@code skiplist} for the bare {@link ConcurrentSkipListMap}.
+     */
+    @Param({"skiplist", "1", "4", "16"})
+    String partitions;
+
+    private BiConsumer<ByteBuffer, ByteBuffer> memTable;
+    private ByteBuffer[] keys;
+    private ByteBuffer value;
+
+    /**
+     * A bounded key set overwritten over and over keeps the heap flat however long the run is.
+     */
+    @Setup
+    public void setUp() {
+        final Random random = new Random(SEED);
+        keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = key(random, i);
+        }
+        final byte[] bytes = new byte[valueSize];
+        random.nextBytes(bytes);
+        value = ByteBuffer.wrap(bytes);
+
+        if ("skiplist".equals(partitions)) {
+            memTable = new ConcurrentSkipListMap<ByteBuffer, ByteBuffer>()::put;
+        } else {
+            final List<ByteBuffer> sample = new ArrayList<>(SAMPLE);
+            for (int i = 0; i < SAMPLE; i++) {
+                sample.add(keys[random.nextInt(KEYS)]);
+            }
+            memTable = StripedMemTable.sampled(sample, Integer.parseInt(partitions))::upsert;
+        }
+    }
+
+    private ByteBuffer key(
+            final Random random,
+            final int index) {
+        if ("service".equals(keyFormat)) {
+            return ByteBuffer.wrap(String.format("k%012d", index).getBytes(StandardCharsets.UTF_8));
+        }
+        final byte[] key = new byte[16];
+        random.nextBytes(key);
+        return ByteBuffer.wrap(key);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void upsertSingleWriter() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void upsertFourWriters() {
+        upsert();
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public void upsertAllCores() {
+        upsert();
+    }
+
+    private void upsert() {
+        memTable.accept(keys[ThreadLocalRandom.current().nextInt(KEYS)], value);
+    }
+}
@@ -0,0 +1,22 @@
+package ru.mail.polis.dao;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Disk usage and amplification of the {@link DataSet} reported by JMH as secondary results next to the time.
+ * <p>
+ * The fields are gauges set after every operation, JMH prints their values for the iterations
+ * and stores them in the JSON results along with the primary score.
+ */
+@State(Scope.Thread)
+@AuxCounters(AuxCounters.Type.EVENTS)
+public class StorageCounters {
+    public long compactions;
+    public long diskBytes;
+    public long liveBytes;
+    public double spaceAmplification;
+    public double writeAmplification;
+    public double readAmplification;
+}
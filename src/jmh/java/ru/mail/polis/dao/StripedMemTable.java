@@ -0,0 +1,247 @@
+package ru.mail.polis.dao;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Memtable of independent sorted partitions split by the key range, so concurrent writers
+ * of different keys rarely meet in the same skip list.
+ * <p>
+ * The partitions are split at the boundary keys, usually {@link #sampled sampled} from the keys written before:
+ * the keys of a service share their prefixes, so a split by a fixed byte would put them all in one partition.
+ * Every partition holds a contiguous range, so the ordered iteration just walks them one by one.
+ * Every partition is frozen and flushed on its own, the others keep taking writes meanwhile.
+ * <p>
+ * Removals are stored as {@link #isTombstone tombstones} to shadow the older tables.
+ * Keys and values are kept as given, the caller passes the buffers nobody changes afterwards.
+ * <p>
+ * A candidate measured by {@link MemTableBenchmark}, it moves to the storage only once the benchmark
+ * shows the writes scale past a bare {@link ConcurrentSkipListMap} on a multi-core host.
+ */
+final class StripedMemTable {
+    private static final ByteBuffer TOMBSTONE = ByteBuffer.allocate(0);
+
+    private final ByteBuffer[] boundaries;
+    private final Partition[] partitions;
+
+    /**
+     * Creates the memtable, the partition {@code i} holds the keys from the boundary {@code i - 1} inclusive
+     * to the boundary {@code i} exclusive.
+     *
+     * @param boundaries keys in the ascending order, one less than the partitions
+     */
+    StripedMemTable(@NotNull final List<ByteBuffer> boundaries) {
+        this.boundaries = boundaries.toArray(new ByteBuffer[0]);
+        for (int i = 1; i < this.boundaries.length; i++) {
+            if (this.boundaries[i - 1].compareTo(this.boundaries[i]) >= 0) {
+                throw new IllegalArgumentException("Boundaries out of order at " + i);
+            }
+        }
+        this.partitions = new Partition[this.boundaries.length + 1];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+    }
+
+    /**
+     * Creates the memtable split into the partitions of about the same number of the sampled keys.
+     * <p>
+     * Fewer partitions are created if the sample has fewer distinct keys.
+     *
+     * @param sample     keys written before, such as the keys of the last flushed table
+     * @param partitions number of the partitions
+     */
+    @NotNull
+    static StripedMemTable sampled(
+            @NotNull final Collection<ByteBuffer> sample,
+            final int partitions) {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Partitions out of range: " + partitions);
+        }
+        final ByteBuffer[] sorted = sample.toArray(new ByteBuffer[0]);
+        Arrays.sort(sorted);
+        final List<ByteBuffer> boundaries = new ArrayList<>(partitions - 1);
+        for (int i = 1; i < partitions && sorted.length > 0; i++) {
+            final ByteBuffer boundary = sorted[(int) ((long) i * sorted.length / partitions)];
+            if (boundaries.isEmpty() || boundaries.get(boundaries.size() - 1).compareTo(boundary) < 0) {
+                boundaries.add(boundary);
+            }
+        }
+        return new StripedMemTable(boundaries);
+    }
+
+    static boolean isTombstone(@NotNull final ByteBuffer value) {
+        return value == TOMBSTONE;
+    }
+
+    void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        partitions[partition(key)].put(key, value, key.remaining() + value.remaining());
+    }
+
+    void remove(@NotNull final ByteBuffer key) {
+        partitions[partition(key)].put(key, TOMBSTONE, key.remaining());
+    }
+
+    /**
+     * Returns the value, a {@link #isTombstone tombstone} if removed or {@code null} if the key isn't here.
+     */
+    @Nullable
+    ByteBuffer get(@NotNull final ByteBuffer key) {
+        return partitions[partition(key)].current.map.get(key);
+    }
+
+    /**
+     * Returns the entries from the key on in the key order, tombstones included.
+     * <p>
+     * Entries rather than {@link ru.mail.polis.Record records} are returned, as the latter copy the values
+     * and the tombstones are no longer told apart.
+     */
+    @NotNull
+    Iterator<Map.Entry<ByteBuffer, ByteBuffer>> iterator(@NotNull final ByteBuffer from) {
+        final int first = partition(from);
+        final List<Iterator<Map.Entry<ByteBuffer, ByteBuffer>>> parts = new ArrayList<>(partitions.length - first);
+        parts.add(partitions[first].current.map.tailMap(from, true).entrySet().iterator());
+        for (int i = first + 1; i < partitions.length; i++) {
+            parts.add(partitions[i].current.map.entrySet().iterator());
+        }
+        return Iterators.concat(parts.iterator());
+    }
+
+    int partitions() {
+        return partitions.length;
+    }
+
+    /**
+     * Returns the bytes written to the partition since it was frozen last, overwritten versions included.
+     */
+    long sizeBytes(final int partition) {
+        return partitions[partition].current.bytes.sum();
+    }
+
+    long sizeBytes() {
+        long result = 0;
+        for (final Partition partition : partitions) {
+            result += partition.current.bytes.sum();
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the partition with an empty one.
+     * <p>
+     * The returned map isn't written any more, the caller keeps reading it until its table is flushed.
+     *
+     * @return the contents of the partition
+     */
+    @NotNull
+    NavigableMap<ByteBuffer, ByteBuffer> freeze(final int partition) {
+        return partitions[partition].freeze();
+    }
+
+    private int partition(@NotNull final ByteBuffer key) {
+        final int found = Arrays.binarySearch(boundaries, key);
+        return found >= 0 ? found + 1 : -found - 1;
+    }
+
+    /**
+     * Skip list of a key range swapped for an empty one on freezing.
+     */
+    private static final class Partition {
+        private volatile Generation current = new Generation();
+
+        void put(
+                @NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value,
+                final long size) {
+            final int stripe = Generation.stripe();
+            while (true) {
+                final Generation generation = current;
+                if (generation.enter(stripe)) {
+                    try {
+                        generation.map.put(key, value);
+                        generation.bytes.add(size);
+                    } finally {
+                        generation.exit(stripe);
+                    }
+                    return;
+                }
+            }
+        }
+
+        @NotNull
+        synchronized NavigableMap<ByteBuffer, ByteBuffer> freeze() {
+            final Generation frozen = current;
+            current = new Generation();
+            frozen.seal();
+            return frozen.map;
+        }
+    }
+
+    /**
+     * Contents of a partition between two freezes with the count of the writers in it.
+     * <p>
+     * A writer counts itself in and checks the seal, the freezing thread seals and waits for the count to drop,
+     * so either the writer sees the seal and retries with the next generation or the freeze waits for it.
+     * The count is striped by the writer thread, so writers of a partition touch the same cache line
+     * only when their threads share a stripe, unlike a read lock every writer acquires.
+     */
+    private static final class Generation {
+        private static final int STRIPES = 16;
+        // A stripe per cache line, so the stripes don't share them
+        private static final int PADDING = 16;
+
+        private final NavigableMap<ByteBuffer, ByteBuffer> map = new ConcurrentSkipListMap<>();
+        private final LongAdder bytes = new LongAdder();
+        private final AtomicIntegerArray writers = new AtomicIntegerArray(STRIPES * PADDING);
+        private volatile boolean sealed;
+
+        static int stripe() {
+            return (int) (Thread.currentThread().getId() % STRIPES) * PADDING;
+        }
+
+        /**
+         * Counts the writer in unless the generation is sealed.
+         *
+         * @return whether the writer may write to the map
+         */
+        boolean enter(final int stripe) {
+            writers.getAndIncrement(stripe);
+            if (sealed) {
+                writers.getAndDecrement(stripe);
+                return false;
+            }
+            return true;
+        }
+
+        void exit(final int stripe) {
+            writers.getAndDecrement(stripe);
+        }
+
+        /**
+         * Stops the new writers and waits for the ones in the map, the map doesn't change afterwards.
+         */
+        void seal() {
+            sealed = true;
+            for (int stripe = 0; stripe < STRIPES * PADDING; stripe += PADDING) {
+                while (writers.get(stripe) != 0) {
+                    Thread.onSpinWait();
+                }
+            }
+        }
+    }
+}
@@ -23,6 +23,7 @@ import ru.mail.polis.service.ServiceFactory;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Collections;
 
 /**
  * Starts storage and waits for shutdown.
@@ -31,6 +32,7 @@ import java.io.IOException;
  */
 public final class Server {
     private static final int PORT = 8080;
+    private static final int BINARY_PORT = 8081;
 
     private Server() {
         // Not instantiable
@@ -51,7 +53,9 @@ public final class Server {
         final Service storage =
                 ServiceFactory.create(
                         PORT,
-                        dao);
+                        BINARY_PORT,
+                        dao,
+                        Collections.singleton("http://localhost:" + PORT));
         storage.start();
         Runtime.getRuntime().addShutdownHook(
                 new Thread(() -> {
@@ -0,0 +1,107 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Amplification of the storage while the DAO used a compaction strategy, so the strategies can be compared.
+ * <p>
+ * {@link StorageMetrics} records into the instance of the strategy the DAO named last
+ * and publishes an MBean per strategy next to its own.
+ */
+public final class AmplificationMetrics implements AmplificationMetricsMBean {
+    private final StorageMetrics storage;
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder userBytes = new LongAdder();
+    private final LongAdder diskBytes = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder touched = new LongAdder();
+    private volatile double replacedSpaceAmplification = Double.NaN;
+    private volatile boolean replaced;
+
+    AmplificationMetrics(@NotNull final StorageMetrics storage) {
+        this.storage = storage;
+    }
+
+    void compacted() {
+        compactions.increment();
+    }
+
+    void userWritten(final long bytes) {
+        userBytes.add(bytes);
+    }
+
+    void diskWritten(final long bytes) {
+        diskBytes.add(bytes);
+    }
+
+    void read() {
+        reads.increment();
+    }
+
+    void touched(final int segments) {
+        touched.add(segments);
+    }
+
+    /**
+     * Keeps the space amplification as the strategy leaves it, the disk usage afterwards is the next one's.
+     */
+    void replaced() {
+        replacedSpaceAmplification = storage.getSpaceAmplification();
+        replaced = true;
+    }
+
+    /**
+     * Makes the strategy the current one again.
+     */
+    void resumed() {
+        replaced = false;
+    }
+
+    @Override
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public long getUserBytesWritten() {
+        return userBytes.sum();
+    }
+
+    @Override
+    public long getDiskBytesWritten() {
+        return diskBytes.sum();
+    }
+
+    @Override
+    public double getWriteAmplification() {
+        return ratio(diskBytes.sum(), userBytes.sum());
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getSegmentsTouched() {
+        return touched.sum();
+    }
+
+    @Override
+    public double getReadAmplification() {
+        return ratio(touched.sum(), reads.sum());
+    }
+
+    @Override
+    public double getSpaceAmplification() {
+        return replaced ? replacedSpaceAmplification : storage.getSpaceAmplification();
+    }
+
+    static double ratio(
+            final long dividend,
+            final long divisor) {
+        return divisor == 0 ? Double.NaN : (double) dividend / divisor;
+    }
+}
@@ -0,0 +1,41 @@
+package ru.mail.polis.dao.mariarheon;
+
+/**
+ * JMX view of the {@link AmplificationMetrics} of a compaction strategy.
+ * <p>
+ * Sizes are in bytes, counters grow from the moment the strategy was named, ratios are
+ * {@link Double#NaN} until there is something to divide by.
+ */
+public interface AmplificationMetricsMBean {
+
+    long getCompactions();
+
+    /**
+     * Returns the bytes of the user writes, keys included.
+     */
+    long getUserBytesWritten();
+
+    /**
+     * Returns the bytes the DAO wrote to the disk for them: logs, flushes, compactions and garbage collection.
+     */
+    long getDiskBytesWritten();
+
+    /**
+     * Returns the bytes written to the disk per byte of the user writes.
+     */
+    double getWriteAmplification();
+
+    long getReads();
+
+    long getSegmentsTouched();
+
+    /**
+     * Returns the files the DAO read per get.
+     */
+    double getReadAmplification();
+
+    /**
+     * Returns the disk size per byte of the live data, the last one measured if the strategy is replaced.
+     */
+    double getSpaceAmplification();
+}
@@ -0,0 +1,20 @@
+package ru.mail.polis.dao.mariarheon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder event spanning a compaction, committed by {@link InstrumentedDAO} around the wrapped DAO.
+ * <p>
+ * The tables merged and the bytes moved are internals of the DAO, the event only places the compaction
+ * on the timeline next to the requests it slowed down.
+ */
+@Name("ru.mail.polis.dao.Compaction")
+@Label("Compaction")
+@Category({"Storage", "Compaction"})
+@Description("DAO compaction")
+public final class CompactionEvent extends Event {
+}
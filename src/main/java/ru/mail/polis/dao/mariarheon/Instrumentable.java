@@ -0,0 +1,18 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * DAO reporting its internals to the {@link StorageMetrics}, {@link InstrumentedDAO} hands it the metrics.
+ * <p>
+ * Only the DAO sees what it writes to the disk and which files a get reads, so the write and read
+ * amplification come from here. A decorator passes the metrics on to the DAO it wraps.
+ */
+public interface Instrumentable {
+
+    /**
+     * Starts reporting to the metrics: names the compaction strategy and the data directory,
+     * then reports the disk writes and the files read from now on.
+     */
+    void instrument(@NotNull StorageMetrics metrics);
+}
@@ -0,0 +1,106 @@
+package ru.mail.polis.dao.mariarheon;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * {@link DAO} decorator reporting the operations of the wrapped DAO to the {@link StorageMetrics}.
+ * <p>
+ * Covers what is visible from the outside of any DAO: operations, their latencies and sizes.
+ * The internals, such as the bytes written to the disk and the files read, are up to the DAO to report,
+ * an {@link Instrumentable} one gets the metrics on the construction.
+ * Compactions are also committed as {@link CompactionEvent}s for the flight recorder.
+ * The live data for the space amplification is estimated from the output of every compaction.
+ */
+public final class InstrumentedDAO implements DAO {
+    private final DAO dao;
+    private final StorageMetrics metrics;
+
+    public InstrumentedDAO(
+            @NotNull final DAO dao,
+            @NotNull final StorageMetrics metrics) {
+        this.dao = dao;
+        this.metrics = metrics;
+        if (dao instanceof Instrumentable) {
+            ((Instrumentable) dao).instrument(metrics);
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return scanned(dao.iterator(from));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return scanned(dao.range(from, to));
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final long start = System.nanoTime();
+        final ByteBuffer value;
+        try {
+            value = dao.get(key);
+        } catch (NoSuchElementException e) {
+            metrics.read(false, 0, System.nanoTime() - start);
+            throw e;
+        }
+        metrics.read(true, value.remaining(), System.nanoTime() - start);
+        return value;
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) throws IOException {
+        final long bytes = key.remaining() + value.remaining();
+        final long start = System.nanoTime();
+        dao.upsert(key, value);
+        metrics.upsert(bytes, System.nanoTime() - start);
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        final long bytes = key.remaining();
+        final long start = System.nanoTime();
+        dao.remove(key);
+        metrics.remove(bytes, System.nanoTime() - start);
+    }
+
+    @Override
+    public void compact() throws IOException {
+        final CompactionEvent event = new CompactionEvent();
+        event.begin();
+        dao.compact();
+        event.commit();
+        metrics.compacted();
+    }
+
+    @Override
+    public void close() throws IOException {
+        dao.close();
+    }
+
+    @NotNull
+    private Iterator<Record> scanned(@NotNull final Iterator<Record> records) {
+        metrics.scan();
+        return Iterators.transform(records, record -> {
+            metrics.scanned(record.getKey().remaining() + record.getValue().remaining());
+            return record;
+        });
+    }
+}
@@ -0,0 +1,100 @@
+package ru.mail.polis.dao.mariarheon;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with HdrHistogram-style log-linear buckets.
+ * <p>
+ * Values are kept in microseconds. Every power of two is split into
+ * {@code 2^SUB_BUCKET_BITS} linear sub-buckets, so any percentile is reported
+ * with a relative error below {@code 1 / 2^SUB_BUCKET_BITS} (about 3%)
+ * over the whole range up to {@link #MAX_MICROS}.
+ * Recording is a single atomic increment and never blocks.
+ */
+public final class LatencyHistogram {
+    public static final long MAX_MICROS = (1L << 36) - 1;
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = bucket(MAX_MICROS) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(final long nanos) {
+        final long micros = Math.min(MAX_MICROS, Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos)));
+        counts.incrementAndGet(bucket(micros));
+        count.increment();
+        sum.add(micros);
+        if (micros > max.get()) {
+            max.accumulateAndGet(micros, Math::max);
+        }
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the sum of the recorded values in microseconds.
+     */
+    public long sumMicros() {
+        return sum.sum();
+    }
+
+    public long maxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value in microseconds below which the given share of the recorded values falls.
+     *
+     * @param quantile share of values from {@code 0.0} to {@code 1.0}
+     */
+    public long quantileMicros(final double quantile) {
+        final long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        final long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(highestEquivalent(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int bucket(final long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+
+        final int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        final int sub = (int) (micros >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + sub;
+    }
+
+    private static long highestEquivalent(final int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        final int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        final int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
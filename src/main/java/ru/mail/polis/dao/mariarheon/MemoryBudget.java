@@ -0,0 +1,212 @@
+package ru.mail.polis.dao.mariarheon;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import java.io.Closeable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * Divides the heap between the value cache and the request queues.
+ * <p>
+ * The shares are taken from the heap limit, so the sizes follow {@code -Xmx} instead of constants.
+ * The pressure comes from the thresholds of the tenured pools, the JVM checks them itself and notifies:
+ * the collection usage threshold is set at {@link #HIGH_OCCUPANCY}, a collection leaving more than that
+ * halves the cache share down to {@link #MIN_SCALE} of the initial one. The usage threshold is set
+ * at {@link #LOW_OCCUPANCY}, the pool crosses it again only if a collection took it below,
+ * so every crossing doubles the share back. The queues are sized once at startup.
+ * <p>
+ * Memtables aren't budgeted: no DAO here has one, the DAO that has it takes its share here.
+ */
+public final class MemoryBudget implements Closeable {
+    public static final double HIGH_OCCUPANCY = 0.75;
+    public static final double LOW_OCCUPANCY = 0.5;
+    public static final double MIN_SCALE = 1.0 / 8;
+
+    private static final Logger log = LoggerFactory.getLogger(MemoryBudget.class);
+    private static final double CACHE_SHARE = 1.0 / 16;
+    private static final double QUEUE_SHARE = 1.0 / 16;
+    private static final long REQUEST_BYTES = 16 * 1024;
+
+    private final long heap;
+    private final long direct;
+    private final List<Consumer<MemoryBudget>> listeners = new CopyOnWriteArrayList<>();
+    private final List<MemoryPoolMXBean> pools = new CopyOnWriteArrayList<>();
+    private final NotificationListener onThreshold = this::crossed;
+
+    private volatile double scale = 1.0;
+    private NotificationEmitter emitter;
+
+    /**
+     * Creates the budget of the given limits.
+     *
+     * @param heap   bytes of the heap to divide
+     * @param direct bytes of the direct memory available
+     */
+    public MemoryBudget(
+            final long heap,
+            final long direct) {
+        this.heap = heap;
+        this.direct = direct;
+    }
+
+    /**
+     * Creates the budget of the limits of this JVM.
+     */
+    @NotNull
+    public static MemoryBudget ofRuntime() {
+        final long heap = Runtime.getRuntime().maxMemory();
+        final MemoryBudget budget = new MemoryBudget(heap, maxDirectMemory(heap));
+        log.info("Heap of {} bytes, direct memory of {} bytes: cache {}, queue {} requests",
+                budget.heap, budget.direct, budget.cacheBytes(), budget.queueSize());
+        return budget;
+    }
+
+    /**
+     * Sets the thresholds of the tenured pools and starts following their notifications,
+     * the listeners are told about every change of the shares.
+     */
+    public synchronized void start() {
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            // Only the tenured pools support both thresholds, the young ones are emptied by every collection
+            if (pool.getType() != MemoryType.HEAP
+                    || !pool.isUsageThresholdSupported()
+                    || !pool.isCollectionUsageThresholdSupported()) {
+                continue;
+            }
+            final long max = pool.getUsage().getMax();
+            if (max <= 0) {
+                continue;
+            }
+            pool.setCollectionUsageThreshold((long) (max * HIGH_OCCUPANCY));
+            pool.setUsageThreshold((long) (max * LOW_OCCUPANCY));
+            pools.add(pool);
+        }
+        if (pools.isEmpty()) {
+            log.warn("No heap pool supports usage thresholds, the memory budget stays fixed");
+            return;
+        }
+        // The memory MXBean emits the threshold notifications of all the pools
+        emitter = (NotificationEmitter) ManagementFactory.getMemoryMXBean();
+        emitter.addNotificationListener(onThreshold, null, null);
+    }
+
+    public void onChange(@NotNull final Consumer<MemoryBudget> listener) {
+        listeners.add(listener);
+    }
+
+    public long heapBytes() {
+        return heap;
+    }
+
+    public long directBytes() {
+        return direct;
+    }
+
+    public long cacheBytes() {
+        return (long) (heap * CACHE_SHARE * scale);
+    }
+
+    /**
+     * Returns the number of requests a queue may hold.
+     */
+    public int queueSize() {
+        return (int) Math.max(1, heap * QUEUE_SHARE / REQUEST_BYTES);
+    }
+
+    /**
+     * Returns the current shares relative to the initial ones.
+     */
+    public double scale() {
+        return scale;
+    }
+
+    /**
+     * Adjusts the shares to the occupancy of the heap after a collection.
+     *
+     * @param occupancy share of the tenured heap still used
+     */
+    public synchronized void adjust(final double occupancy) {
+        if (occupancy > HIGH_OCCUPANCY) {
+            rescale(Math.max(MIN_SCALE, scale / 2), occupancy);
+        } else if (occupancy < LOW_OCCUPANCY) {
+            rescale(Math.min(1.0, scale * 2), occupancy);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (emitter != null) {
+            try {
+                emitter.removeNotificationListener(onThreshold);
+            } catch (ListenerNotFoundException expected) {
+                // Removed already
+            }
+            emitter = null;
+        }
+        for (final MemoryPoolMXBean pool : pools) {
+            // Zero disables the thresholds
+            pool.setUsageThreshold(0);
+            pool.setCollectionUsageThreshold(0);
+        }
+        pools.clear();
+    }
+
+    private void crossed(
+            @NotNull final Notification notification,
+            final Object handback) {
+        final MemoryUsage usage = MemoryNotificationInfo.from((CompositeData) notification.getUserData()).getUsage();
+        switch (notification.getType()) {
+            case MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED:
+                adjust((double) usage.getUsed() / usage.getMax());
+                break;
+            case MemoryNotificationInfo.MEMORY_THRESHOLD_EXCEEDED:
+                // Crossing the low threshold again means a collection took the pool below it
+                synchronized (this) {
+                    rescale(Math.min(1.0, scale * 2), (double) usage.getUsed() / usage.getMax());
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void rescale(
+            final double next,
+            final double occupancy) {
+        if (next == scale) {
+            return;
+        }
+        scale = next;
+        log.info("Heap occupancy {}, scaling the cache to {}", occupancy, next);
+        for (final Consumer<MemoryBudget> listener : listeners) {
+            listener.accept(this);
+        }
+    }
+
+    private static long maxDirectMemory(final long heap) {
+        final HotSpotDiagnosticMXBean hotSpot = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+        long configured = 0;
+        try {
+            configured = Long.parseLong(hotSpot.getVMOption("MaxDirectMemorySize").getValue());
+        } catch (IllegalArgumentException e) {
+            log.warn("Can't read direct memory limit", e);
+        }
+        // Unless set, the direct memory is limited by the heap size
+        return configured > 0 ? configured : heap;
+    }
+}
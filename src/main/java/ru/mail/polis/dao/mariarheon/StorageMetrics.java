@@ -0,0 +1,374 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Files;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free registry of the storage internals published as a JMX MBean.
+ * <p>
+ * {@link InstrumentedDAO} reports the operations of any DAO here, recording is an atomic increment at most.
+ * Only what is recorded is exported: a DAO with flushes, Bloom filters or a block cache adds the counters
+ * along with the calls reporting them, so the MBean never shows zeros nobody measured.
+ * Registered instances are found by {@link #PATTERN}, so any service can render them without knowing the DAO.
+ * <p>
+ * Amplification compares the user operations with what the storage does for them: write amplification
+ * divides the bytes the DAO wrote to the disk by the user writes, read amplification is the files
+ * touched per get and space amplification divides the size of the data directory by the live data
+ * as of the last compaction. The disk side comes from the DAO, an {@link Instrumentable} one
+ * {@link #compactionStrategy names its strategy}, reports what it writes and reads and tells the directory.
+ * Until a DAO does, the ratios are {@link Double#NaN}. Every strategy gets its own
+ * {@link AmplificationMetrics}, published next to this MBean with the strategy in the name.
+ */
+public final class StorageMetrics implements StorageMetricsMBean {
+    public static final ObjectName PATTERN = objectName("ru.mail.polis.dao:type=StorageMetrics,*");
+    public static final ObjectName AMPLIFICATION_PATTERN = objectName("ru.mail.polis.dao:type=Amplification,*");
+
+    private static final Logger log = LoggerFactory.getLogger(StorageMetrics.class);
+
+    private final LongAdder upserts = new LongAdder();
+    private final LongAdder removes = new LongAdder();
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder readMisses = new LongAdder();
+    private final LongAdder scans = new LongAdder();
+    private final LongAdder bytesWritten = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LatencyHistogram readLatency = new LatencyHistogram();
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+    private final LongAdder compactions = new LongAdder();
+    private final LongAdder diskBytesWritten = new LongAdder();
+    private final LongAdder segmentsTouched = new LongAdder();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final Map<String, AmplificationMetrics> strategies = new ConcurrentHashMap<>();
+
+    private volatile AmplificationMetrics strategy;
+    private volatile File directory;
+    private String registeredAs;
+
+    /**
+     * Publishes the metrics on the platform MBean server replacing an instance of the same name.
+     *
+     * @param name distinguishes the storages of a single JVM
+     */
+    public synchronized void register(@NotNull final String name) {
+        unregister();
+        registeredAs = name;
+        register(this, storageName());
+        for (final Map.Entry<String, AmplificationMetrics> entry : strategies.entrySet()) {
+            register(entry.getValue(), strategyName(entry.getKey()));
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registeredAs == null) {
+            return;
+        }
+        unregister(storageName());
+        for (final String registered : strategies.keySet()) {
+            unregister(strategyName(registered));
+        }
+        registeredAs = null;
+    }
+
+    private static void register(
+            @NotNull final Object mbean,
+            @NotNull final ObjectName objectName) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+        } catch (JMException e) {
+            log.warn("Can't register storage metrics {}", objectName, e);
+        }
+    }
+
+    private static void unregister(@NotNull final ObjectName objectName) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (JMException e) {
+            log.warn("Can't unregister storage metrics {}", objectName, e);
+        }
+    }
+
+    @NotNull
+    private ObjectName storageName() {
+        return objectName(PATTERN.getDomain() + ":type=StorageMetrics,name=" + ObjectName.quote(registeredAs));
+    }
+
+    @NotNull
+    private ObjectName strategyName(@NotNull final String strategy) {
+        return objectName(PATTERN.getDomain() + ":type=Amplification,name=" + ObjectName.quote(registeredAs)
+                + ",strategy=" + ObjectName.quote(strategy));
+    }
+
+    @NotNull
+    private static ObjectName objectName(@NotNull final String name) {
+        try {
+            return new ObjectName(name);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException("Bad MBean name " + name, e);
+        }
+    }
+
+    /**
+     * Records an upsert of the given size in bytes, key included.
+     */
+    public void upsert(
+            final long bytes,
+            final long nanos) {
+        upserts.increment();
+        userWritten(bytes);
+        writeLatency.record(nanos);
+    }
+
+    /**
+     * Records a removal of the key of the given size.
+     */
+    public void remove(
+            final long bytes,
+            final long nanos) {
+        removes.increment();
+        userWritten(bytes);
+        writeLatency.record(nanos);
+    }
+
+    private void userWritten(final long bytes) {
+        bytesWritten.add(bytes);
+        final AmplificationMetrics current = strategy;
+        if (current != null) {
+            current.userWritten(bytes);
+        }
+    }
+
+    /**
+     * Records a point read returning the given number of bytes, a miss returns none.
+     */
+    public void read(
+            final boolean found,
+            final long bytes,
+            final long nanos) {
+        reads.increment();
+        if (!found) {
+            readMisses.increment();
+        }
+        bytesRead.add(bytes);
+        readLatency.record(nanos);
+        final AmplificationMetrics current = strategy;
+        if (current != null) {
+            current.read();
+        }
+    }
+
+    public void scan() {
+        scans.increment();
+    }
+
+    /**
+     * Records a record of the given size returned by a scan.
+     */
+    public void scanned(final long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    /**
+     * Records a finished compaction and takes the size of the data directory as the estimate of the live data.
+     * <p>
+     * Right after a compaction the directory holds its output, which is the live data in the format of the disk,
+     * so the estimate costs a listing of the directory instead of reading the data once more.
+     * Until the directory is known or holds anything the estimate stays unknown.
+     */
+    public void compacted() {
+        compactions.increment();
+        final AmplificationMetrics current = strategy;
+        if (current != null) {
+            current.compacted();
+        }
+        final long output = getDiskBytes();
+        if (output > 0) {
+            liveBytes.set(output);
+        }
+    }
+
+    /**
+     * Records the bytes the DAO wrote to the disk: logs, flushes, compactions or garbage collection.
+     */
+    public void written(final long bytes) {
+        diskBytesWritten.add(bytes);
+        final AmplificationMetrics current = strategy;
+        if (current != null) {
+            current.diskWritten(bytes);
+        }
+    }
+
+    /**
+     * Records the files a single get read beyond the memory.
+     */
+    public void touched(final int segments) {
+        segmentsTouched.add(segments);
+        final AmplificationMetrics current = strategy;
+        if (current != null) {
+            current.touched(segments);
+        }
+    }
+
+    /**
+     * Names the compaction strategy of the DAO, the amplification from now on is also recorded for it.
+     * <p>
+     * Naming a strategy tells that the DAO reports its disk writes and reads, so the ratios become known.
+     */
+    public synchronized void compactionStrategy(@NotNull final String name) {
+        final AmplificationMetrics previous = strategy;
+        final AmplificationMetrics next = strategies.computeIfAbsent(name, key -> {
+            final AmplificationMetrics created = new AmplificationMetrics(this);
+            if (registeredAs != null) {
+                register(created, strategyName(key));
+            }
+            return created;
+        });
+        if (previous == next) {
+            return;
+        }
+        if (previous != null) {
+            previous.replaced();
+        }
+        next.resumed();
+        strategy = next;
+    }
+
+    /**
+     * Sets the data directory the disk usage is measured in.
+     */
+    public void directory(@NotNull final File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public long getUpserts() {
+        return upserts.sum();
+    }
+
+    @Override
+    public long getRemoves() {
+        return removes.sum();
+    }
+
+    @Override
+    public long getReads() {
+        return reads.sum();
+    }
+
+    @Override
+    public long getReadMisses() {
+        return readMisses.sum();
+    }
+
+    @Override
+    public long getScans() {
+        return scans.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getReadP50Micros() {
+        return readLatency.quantileMicros(0.5);
+    }
+
+    @Override
+    public long getReadP99Micros() {
+        return readLatency.quantileMicros(0.99);
+    }
+
+    @Override
+    public long getReadMaxMicros() {
+        return readLatency.maxMicros();
+    }
+
+    @Override
+    public long getWriteP50Micros() {
+        return writeLatency.quantileMicros(0.5);
+    }
+
+    @Override
+    public long getWriteP99Micros() {
+        return writeLatency.quantileMicros(0.99);
+    }
+
+    @Override
+    public long getWriteMaxMicros() {
+        return writeLatency.maxMicros();
+    }
+
+    @Override
+    public long getCompactions() {
+        return compactions.sum();
+    }
+
+    @Override
+    public long getDiskBytesWritten() {
+        return diskBytesWritten.sum();
+    }
+
+    @Override
+    public double getWriteAmplification() {
+        return strategy == null ? Double.NaN : AmplificationMetrics.ratio(diskBytesWritten.sum(), bytesWritten.sum());
+    }
+
+    @Override
+    public long getSegmentsTouched() {
+        return segmentsTouched.sum();
+    }
+
+    @Override
+    public double getReadAmplification() {
+        return strategy == null ? Double.NaN : AmplificationMetrics.ratio(segmentsTouched.sum(), reads.sum());
+    }
+
+    @Override
+    public long getLiveBytes() {
+        return liveBytes.get();
+    }
+
+    @Override
+    public long getDiskBytes() {
+        final File current = directory;
+        if (current == null) {
+            return 0;
+        }
+        try {
+            return Files.directorySize(current);
+        } catch (IOException e) {
+            log.warn("Can't measure {}", current, e);
+            return 0;
+        }
+    }
+
+    @Override
+    public double getSpaceAmplification() {
+        final long live = liveBytes.get();
+        return live == 0 ? Double.NaN : (double) getDiskBytes() / live;
+    }
+}
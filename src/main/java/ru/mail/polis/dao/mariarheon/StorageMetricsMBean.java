@@ -0,0 +1,69 @@
+package ru.mail.polis.dao.mariarheon;
+
+/**
+ * JMX view of the {@link StorageMetrics}.
+ * <p>
+ * Latencies are in microseconds, sizes in bytes, counters grow from the start of the storage.
+ */
+public interface StorageMetricsMBean {
+
+    long getUpserts();
+
+    long getRemoves();
+
+    long getReads();
+
+    long getReadMisses();
+
+    long getScans();
+
+    long getBytesWritten();
+
+    long getBytesRead();
+
+    long getReadP50Micros();
+
+    long getReadP99Micros();
+
+    long getReadMaxMicros();
+
+    long getWriteP50Micros();
+
+    long getWriteP99Micros();
+
+    long getWriteMaxMicros();
+
+    long getCompactions();
+
+    /**
+     * Returns the bytes the DAO wrote to the disk: logs, flushes, compactions and garbage collection.
+     */
+    long getDiskBytesWritten();
+
+    /**
+     * Returns the bytes written to the disk per byte of the user writes, {@link Double#NaN} if the DAO doesn't tell.
+     */
+    double getWriteAmplification();
+
+    long getSegmentsTouched();
+
+    /**
+     * Returns the files the DAO read per get, {@link Double#NaN} if the DAO doesn't tell.
+     */
+    double getReadAmplification();
+
+    /**
+     * Returns the estimate of the live data made by the last compaction, zero until the first estimate.
+     */
+    long getLiveBytes();
+
+    /**
+     * Returns the size of the data directory measured on every call, zero if the directory is unknown.
+     */
+    long getDiskBytes();
+
+    /**
+     * Returns the disk size per byte of the live data, {@link Double#NaN} until the live data is estimated.
+     */
+    double getSpaceAmplification();
+}
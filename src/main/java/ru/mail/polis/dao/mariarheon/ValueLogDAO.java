@@ -0,0 +1,526 @@
+package ru.mail.polis.dao.mariarheon;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link DAO} decorator separating the large values from the keys, as WiscKey does.
+ * <p>
+ * Values of at least the threshold size are appended to the value log, the wrapped DAO stores
+ * the key with a pointer to the value, so its flushes and compactions move a few bytes per key
+ * instead of the whole value. Smaller values are stored inline in the wrapped DAO.
+ * <p>
+ * The log is a sequence of segments of {@code (int keyLength | key | int valueLength | value)*}.
+ * The garbage collection goes from the tail of the log, the oldest sealed segment, rewriting the values
+ * still pointed to to the head. Every {@link #compact()} collects a bounded amount of segments after
+ * the compaction of the wrapped DAO, so the cost of a compaction doesn't grow with the log.
+ * <p>
+ * The pointers to the rewritten values are only in the memtable of the wrapped DAO until it persists them,
+ * so a collected segment is deleted on the next {@link #compact()} or {@link #close()} of the wrapped DAO.
+ * Until then a crash leaves the file in place and the reopened log reads the old pointers from it.
+ * The log is forced to the disk before the wrapped DAO persists the pointers to it, a segment as it is sealed
+ * and the head before every {@link #compact()} and {@link #close()}, so no persisted pointer outlives its value.
+ * The reopened log keeps appending to the last segment unless it is full, cutting off an entry torn by a crash.
+ * <p>
+ * Instrumented, the log reports the bytes it appends, rewritten values included, and a segment read
+ * per get of a value in the log. The wrapped DAO reports its own if it is {@link Instrumentable} too.
+ */
+public final class ValueLogDAO implements DAO, Instrumentable {
+    private static final Logger log = LoggerFactory.getLogger(ValueLogDAO.class);
+    private static final byte INLINE = 0;
+    private static final byte POINTER = 1;
+    private static final int POINTER_SIZE = 1 + Integer.BYTES + Long.BYTES + Integer.BYTES;
+    private static final String SUFFIX = ".vlog";
+    private static final int STRIPES = 64;
+    private static final String STRATEGY = "value-log";
+
+    private final DAO dao;
+    private final File directory;
+    private final int threshold;
+    private final long segmentSize;
+    private final long collectSize;
+    private final NavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final Lock[] locks = new Lock[STRIPES];
+    private final Object collecting = new Object();
+    private final List<Segment> collected = new ArrayList<>();
+
+    // Recorded to and dropped until instrumented
+    private volatile StorageMetrics metrics = new StorageMetrics();
+    private Segment head;
+
+    /**
+     * Opens the value log in the directory, the wrapped DAO must hold the pointers written to it before.
+     *
+     * @param dao         DAO to store the keys with the pointers and the small values in
+     * @param directory   directory of the value log
+     * @param threshold   values of this size and larger go to the log
+     * @param segmentSize size a segment is sealed at
+     * @param collectSize size of the sealed segments a compaction collects, at least one segment is collected
+     */
+    public ValueLogDAO(
+            @NotNull final DAO dao,
+            @NotNull final File directory,
+            final int threshold,
+            final long segmentSize,
+            final long collectSize) throws IOException {
+        this.dao = dao;
+        this.directory = directory;
+        this.threshold = threshold;
+        this.segmentSize = segmentSize;
+        this.collectSize = collectSize;
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+
+        final File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files != null) {
+            for (final File file : files) {
+                final int id = Integer.parseInt(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+                segments.put(id, new Segment(id, file));
+            }
+        }
+        final Map.Entry<Integer, Segment> last = segments.lastEntry();
+        if (last == null) {
+            this.head = open(0);
+        } else if (last.getValue().size >= segmentSize) {
+            this.head = open(last.getKey() + 1);
+        } else {
+            this.head = last.getValue();
+            head.truncate(complete(head));
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+        return resolved(dao.iterator(from));
+    }
+
+    @NotNull
+    @Override
+    public Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return resolved(dao.range(from, to));
+    }
+
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException, NoSuchElementException {
+        final ByteBuffer stored = dao.get(key);
+        if (stored.get(stored.position()) == POINTER) {
+            metrics.touched(1);
+        }
+        return value(key, stored);
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) throws IOException {
+        final Lock lock = lock(key);
+        lock.lock();
+        try {
+            if (value.remaining() < threshold) {
+                final ByteBuffer inline = ByteBuffer.allocate(1 + value.remaining());
+                inline.put(INLINE).put(value.duplicate()).flip();
+                dao.upsert(key, inline);
+            } else {
+                dao.upsert(key, append(key, value));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        final Lock lock = lock(key);
+        lock.lock();
+        try {
+            dao.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void compact() throws IOException {
+        forceHead();
+        dao.compact();
+        synchronized (collecting) {
+            // The pointers the last collection rewrote are persisted by the compaction
+            deleteCollected();
+            collectGarbage(collectSize);
+        }
+    }
+
+    /**
+     * Names the strategy of the log, which the wrapped DAO may refine, and the directory of the log.
+     */
+    @Override
+    public void instrument(@NotNull final StorageMetrics metrics) {
+        this.metrics = metrics;
+        metrics.compactionStrategy(STRATEGY);
+        metrics.directory(directory);
+        if (dao instanceof Instrumentable) {
+            ((Instrumentable) dao).instrument(metrics);
+        }
+    }
+
+    /**
+     * Moves the live values of the oldest sealed segments to the head.
+     * <p>
+     * The segments are no longer read, their files are deleted once the wrapped DAO persists the moved pointers.
+     *
+     * @param bytes size of the segments to collect, the collection stops once it is reached
+     * @return the bytes of the values rewritten
+     */
+    public long collectGarbage(final long bytes) throws IOException {
+        synchronized (collecting) {
+            final int sealed;
+            synchronized (this) {
+                // Values moved to the head must not be collected again in the same run
+                sealed = head.id;
+            }
+            long examined = 0;
+            long rewritten = 0;
+            while (examined < bytes) {
+                final Map.Entry<Integer, Segment> tail = segments.firstEntry();
+                if (tail == null || tail.getKey() >= sealed) {
+                    break;
+                }
+                final Segment segment = tail.getValue();
+
+                final long live = relocate(segment);
+                segments.remove(segment.id);
+                segment.close();
+                collected.add(segment);
+                log.info("Collected value log segment {} of {} bytes, {} live", segment.id, segment.size, live);
+                examined += segment.size;
+                rewritten += live;
+            }
+            return rewritten;
+        }
+    }
+
+    /**
+     * Returns the number of segments, the head included.
+     */
+    public int segments() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        forceHead();
+        dao.close();
+        for (final Segment segment : segments.values()) {
+            segment.close();
+        }
+        synchronized (collecting) {
+            deleteCollected();
+        }
+    }
+
+    /**
+     * Forces the head to the disk, so the pointers the wrapped DAO is about to persist point to durable values.
+     */
+    private void forceHead() throws IOException {
+        synchronized (this) {
+            head.force();
+        }
+    }
+
+    /**
+     * Deletes the files of the collected segments, called holding the collection lock.
+     */
+    private void deleteCollected() throws IOException {
+        for (final Segment segment : collected) {
+            Files.deleteIfExists(segment.file.toPath());
+        }
+        collected.clear();
+    }
+
+    @NotNull
+    private Iterator<Record> resolved(@NotNull final Iterator<Record> records) {
+        return Iterators.transform(records, record -> {
+            try {
+                return Record.of(record.getKey(), value(record.getKey(), record.getValue()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Resolves the stored value, rereading the pointer if its segment has been collected meanwhile.
+     */
+    @NotNull
+    private ByteBuffer value(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer stored) throws IOException {
+        final ByteBuffer value = resolve(stored);
+        if (value != null) {
+            return value;
+        }
+
+        final ByteBuffer moved = resolve(dao.get(key));
+        if (moved == null) {
+            throw new IOException("Value log segment of the value is gone");
+        }
+        return moved;
+    }
+
+    /**
+     * Returns the value stored inline or read from the log, {@code null} if the segment is gone.
+     */
+    @Nullable
+    private ByteBuffer resolve(@NotNull final ByteBuffer stored) throws IOException {
+        final ByteBuffer in = stored.duplicate();
+        if (in.get() == INLINE) {
+            return in.slice();
+        }
+
+        final Segment segment = segments.get(in.getInt());
+        if (segment == null) {
+            return null;
+        }
+        final long offset = in.getLong();
+        final ByteBuffer value = ByteBuffer.allocate(in.getInt());
+        try {
+            segment.read(value, offset);
+        } catch (ClosedChannelException e) {
+            return null;
+        }
+        return value.flip();
+    }
+
+    /**
+     * Appends the entry to the head segment.
+     *
+     * @return the pointer to the value
+     */
+    @NotNull
+    private ByteBuffer append(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) throws IOException {
+        final ByteBuffer entry = ByteBuffer.allocate(2 * Integer.BYTES + key.remaining() + value.remaining());
+        entry.putInt(key.remaining()).put(key.duplicate());
+        entry.putInt(value.remaining());
+        final int valueStart = entry.position();
+        entry.put(value.duplicate()).flip();
+
+        final int id;
+        final long position;
+        synchronized (this) {
+            if (head.size >= segmentSize) {
+                head.force();
+                head = open(head.id + 1);
+            }
+            id = head.id;
+            position = head.size;
+            head.write(entry, position);
+            head.size += entry.limit();
+        }
+        metrics.written(entry.limit());
+
+        final ByteBuffer pointer = ByteBuffer.allocate(POINTER_SIZE);
+        pointer.put(POINTER).putInt(id).putLong(position + valueStart).putInt(value.remaining()).flip();
+        return pointer;
+    }
+
+    /**
+     * Returns the length of the entries written to the segment in whole, an entry torn by a crash is not counted.
+     */
+    private static long complete(@NotNull final Segment segment) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        long position = 0;
+        while (position + Integer.BYTES <= segment.size) {
+            segment.read(length.clear(), position);
+            final long valueLengthAt = position + Integer.BYTES + length.flip().getInt();
+            if (valueLengthAt + Integer.BYTES > segment.size) {
+                break;
+            }
+            segment.read(length.clear(), valueLengthAt);
+            final long end = valueLengthAt + Integer.BYTES + length.flip().getInt();
+            if (end > segment.size) {
+                break;
+            }
+            position = end;
+        }
+        return position;
+    }
+
+    /**
+     * Rewrites the values of the segment the wrapped DAO still points to.
+     *
+     * @return the bytes of the values rewritten
+     */
+    private long relocate(@NotNull final Segment segment) throws IOException {
+        final ByteBuffer length = ByteBuffer.allocate(Integer.BYTES);
+        long live = 0;
+        long position = 0;
+        while (position + Integer.BYTES <= segment.size) {
+            segment.read(length.clear(), position);
+            final int keyLength = length.flip().getInt();
+            final long valueLengthAt = position + Integer.BYTES + keyLength;
+            if (valueLengthAt + Integer.BYTES > segment.size) {
+                break;
+            }
+            final ByteBuffer key = ByteBuffer.allocate(keyLength);
+            segment.read(key, position + Integer.BYTES);
+            segment.read(length.clear(), valueLengthAt);
+            final int valueLength = length.flip().getInt();
+            final long valueAt = valueLengthAt + Integer.BYTES;
+            if (valueAt + valueLength > segment.size) {
+                // Torn by a crash in the middle of an append
+                break;
+            }
+
+            if (relocate(segment, key.flip(), valueAt, valueLength)) {
+                live += valueLength;
+            }
+            position = valueAt + valueLength;
+        }
+        return live;
+    }
+
+    /**
+     * Rewrites the value if the wrapped DAO still points to it.
+     *
+     * @return whether the value is live
+     */
+    private boolean relocate(
+            @NotNull final Segment segment,
+            @NotNull final ByteBuffer key,
+            final long offset,
+            final int length) throws IOException {
+        final Lock lock = lock(key);
+        lock.lock();
+        try {
+            final ByteBuffer stored;
+            try {
+                stored = dao.get(key);
+            } catch (NoSuchElementException e) {
+                return false;
+            }
+            if (stored.remaining() != POINTER_SIZE || stored.get(stored.position()) != POINTER) {
+                return false;
+            }
+            final ByteBuffer pointer = stored.duplicate();
+            pointer.get();
+            if (pointer.getInt() != segment.id || pointer.getLong() != offset) {
+                return false;
+            }
+
+            final ByteBuffer value = ByteBuffer.allocate(length);
+            segment.read(value, offset);
+            dao.upsert(key, append(key, value.flip()));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    private Segment open(final int id) throws IOException {
+        final Segment segment = new Segment(id, new File(directory, id + SUFFIX));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    @NotNull
+    private Lock lock(@NotNull final ByteBuffer key) {
+        return locks[(key.hashCode() & Integer.MAX_VALUE) % STRIPES];
+    }
+
+    /**
+     * Append-only file of the log, read with positional reads.
+     */
+    private static final class Segment implements Closeable {
+        private final int id;
+        private final File file;
+        private final FileChannel channel;
+        private long size;
+
+        Segment(
+                final int id,
+                @NotNull final File file) throws IOException {
+            this.id = id;
+            this.file = file;
+            this.channel = FileChannel.open(
+                    file.toPath(),
+                    StandardOpenOption.CREATE,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            this.size = channel.size();
+        }
+
+        void read(
+                @NotNull final ByteBuffer buffer,
+                final long position) throws IOException {
+            long at = position;
+            while (buffer.hasRemaining()) {
+                final int read = channel.read(buffer, at);
+                if (read < 0) {
+                    throw new EOFException("Value log segment " + id + " truncated");
+                }
+                at += read;
+            }
+        }
+
+        void write(
+                @NotNull final ByteBuffer buffer,
+                final long position) throws IOException {
+            long at = position;
+            while (buffer.hasRemaining()) {
+                at += channel.write(buffer, at);
+            }
+        }
+
+        /**
+         * Forces the appended entries, the file times aren't worth another write.
+         */
+        void force() throws IOException {
+            channel.force(false);
+        }
+
+        void truncate(final long length) throws IOException {
+            if (length < size) {
+                channel.truncate(length);
+                size = length;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
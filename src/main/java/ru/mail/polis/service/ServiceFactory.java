@@ -18,8 +18,13 @@ package ru.mail.polis.service;
 
 import org.jetbrains.annotations.NotNull;
 import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.mariarheon.MemoryBudget;
+import ru.mail.polis.service.mariarheon.AsyncService;
+import ru.mail.polis.service.mariarheon.RendezvousTopology;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
 
 /**
  * Constructs {@link Service} instances.
@@ -44,6 +49,40 @@ public final class ServiceFactory {
     public static Service create(
             final int port,
             @NotNull final DAO dao) throws IOException {
+        return create(port, dao, Collections.singleton("http://localhost:" + port));
+    }
+
+    /**
+     * Construct a storage instance being a node of a cluster.
+     *
+     * @param port     port to bind HTTP server to
+     * @param dao      DAO to store the data
+     * @param topology all the nodes of the cluster as {@code http://host:port}, including this one
+     * @return a storage instance
+     */
+    @NotNull
+    public static Service create(
+            final int port,
+            @NotNull final DAO dao,
+            @NotNull final Set<String> topology) throws IOException {
+        return create(port, 0, dao, topology);
+    }
+
+    /**
+     * Construct a storage instance being a node of a cluster and also serving the binary protocol.
+     *
+     * @param port       port to bind HTTP server to
+     * @param binaryPort port to bind binary protocol listener to or {@code 0} to disable it
+     * @param dao        DAO to store the data
+     * @param topology   all the nodes of the cluster as {@code http://host:port}, including this one
+     * @return a storage instance
+     */
+    @NotNull
+    public static Service create(
+            final int port,
+            final int binaryPort,
+            @NotNull final DAO dao,
+            @NotNull final Set<String> topology) throws IOException {
         if (Runtime.getRuntime().maxMemory() > MAX_HEAP) {
             throw new IllegalStateException("The heap is too big. Consider setting Xmx.");
         }
@@ -52,6 +91,25 @@ public final class ServiceFactory {
             throw new IllegalArgumentException("Port out of range");
         }
 
-        throw new UnsupportedOperationException("Implement me!");
+        if (binaryPort < 0 || 65536 <= binaryPort || binaryPort == port) {
+            throw new IllegalArgumentException("Binary port out of range");
+        }
+
+        if (topology.isEmpty()) {
+            throw new IllegalArgumentException("Empty topology");
+        }
+
+        final MemoryBudget budget = MemoryBudget.ofRuntime();
+        final AsyncService service = new AsyncService(
+                port,
+                dao,
+                new RendezvousTopology("http://localhost:" + port, topology),
+                budget.queueSize(),
+                budget.cacheBytes());
+        service.manageMemory(budget);
+        if (binaryPort != 0) {
+            service.enableBinary(binaryPort);
+        }
+        return service;
     }
 }
@@ -0,0 +1,254 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.collect.Iterators;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Background anti-entropy between the replicas.
+ * <p>
+ * Every round this node compares its {@link MerkleTree} with the tree of the next peer
+ * and pulls only the leaf ranges that differ, applying the peer's versions as repairs.
+ * Peers pull from this node on their own schedule, so the replicas converge both ways
+ * and the traffic is bounded by the number of diverged ranges, not the size of the data.
+ * <p>
+ * A pair of nodes compares only the keys both of them replicate: this node keeps a tree per peer
+ * over the keys they share, and neither serves nor applies the others, so anti-entropy
+ * never copies a key to a node that is not its replica.
+ * <p>
+ * Leaf ranges travel as {@code (int keyLength | key | int valueLength | stored value)*}.
+ */
+final class AntiEntropy implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(AntiEntropy.class);
+
+    private final Topology topology;
+    private final int replicas;
+    private final EntityStorage storage;
+    private final ClusterClient cluster;
+    private final String me;
+    private final List<String> peers = new ArrayList<>();
+    private final Map<String, MerkleTree> trees = new HashMap<>();
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+    private final LongAdder repaired = new LongAdder();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("anti-entropy")
+                    .setDaemon(true)
+                    .build());
+
+    private int next;
+
+    /**
+     * Creates the anti-entropy of the local replica, call {@link #start(long)} to run it periodically.
+     *
+     * @param topology the cluster
+     * @param storage  the local replica
+     * @param cluster  client of the other nodes
+     * @param replicas number of replicas every key is kept by
+     */
+    AntiEntropy(
+            @NotNull final Topology topology,
+            @NotNull final EntityStorage storage,
+            @NotNull final ClusterClient cluster,
+            final int replicas) {
+        this.topology = topology;
+        this.replicas = replicas;
+        this.storage = storage;
+        this.cluster = cluster;
+        String self = null;
+        for (final String node : topology.all()) {
+            if (topology.isMe(node)) {
+                self = node;
+                continue;
+            }
+            peers.add(node);
+            final MerkleTree tree = new MerkleTree(key -> shared(key, node));
+            trees.put(node, tree);
+            storage.track(tree);
+        }
+        if (self == null) {
+            throw new IllegalArgumentException("Topology doesn't contain this node");
+        }
+        this.me = self;
+    }
+
+    void start(final long periodMs) {
+        if (!peers.isEmpty()) {
+            scheduler.scheduleWithFixedDelay(this::synchronize, periodMs, periodMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Synchronizes with the next peer in turn.
+     */
+    void synchronize() {
+        final String peer = peers.get(next);
+        next = (next + 1) % peers.size();
+        try {
+            final MerkleTree theirs = cluster.tree(peer, me).join();
+            final List<Integer> diverged = tree(peer).diff(theirs);
+            for (final int leaf : diverged) {
+                try (RecordStream versions = cluster.leaf(peer, me, leaf).join()) {
+                    while (versions.hasNext()) {
+                        final Record record = versions.next();
+                        // The peer filters too, but its view of the cluster may differ during a change
+                        if (shared(record.getKey(), peer)
+                                && storage.repair(record.getKey(), Value.fromBuffer(record.getValue()))) {
+                            repaired.increment();
+                        }
+                    }
+                }
+            }
+            rounds.increment();
+            leaves.add(diverged.size());
+        } catch (IOException | UncheckedIOException | CompletionException e) {
+            log.warn("Can't synchronize with {}", peer, e);
+        } catch (RuntimeException e) {
+            // Thrown out of the scheduled task it would cancel all the rounds to come
+            log.error("Anti-entropy round with {} failed", peer, e);
+        }
+    }
+
+    /**
+     * Returns the tree of the keys shared with the peer brought up to date.
+     *
+     * @throws IllegalArgumentException if the node is not a peer
+     */
+    @NotNull
+    MerkleTree tree(@NotNull final String peer) throws IOException {
+        final MerkleTree tree = trees.get(peer);
+        if (tree == null) {
+            throw new IllegalArgumentException("Unknown peer " + peer);
+        }
+        return storage.refresh(tree);
+    }
+
+    /**
+     * Iterates over the versions shared with the peer in the range of the Merkle tree leaf.
+     *
+     * @throws IllegalArgumentException if the node is not a peer
+     */
+    @NotNull
+    Iterator<Record> leaf(
+            @NotNull final String peer,
+            final int leaf) throws IOException {
+        if (!trees.containsKey(peer)) {
+            throw new IllegalArgumentException("Unknown peer " + peer);
+        }
+        return Iterators.filter(storage.leaf(leaf), record -> shared(record.getKey(), peer));
+    }
+
+    long rounds() {
+        return rounds.sum();
+    }
+
+    /**
+     * Returns the number of leaf ranges found diverged.
+     */
+    long leaves() {
+        return leaves.sum();
+    }
+
+    /**
+     * Returns the number of versions pulled from the peers.
+     */
+    long repaired() {
+        return repaired.sum();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    private boolean shared(
+            @NotNull final ByteBuffer key,
+            @NotNull final String peer) {
+        final List<String> nodes = topology.replicasFor(key, replicas);
+        return nodes.contains(me) && nodes.contains(peer);
+    }
+
+    @NotNull
+    static byte[] encode(@NotNull final Iterator<Record> records) {
+        final List<Record> all = new ArrayList<>();
+        int size = 0;
+        while (records.hasNext()) {
+            final Record record = records.next();
+            all.add(record);
+            size += frameSize(record);
+        }
+
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        for (final Record record : all) {
+            put(result, record);
+        }
+        return result.array();
+    }
+
+    /**
+     * Encodes a single record, the concatenation of the frames is what {@link #decode(ByteBuffer)} reads.
+     */
+    @NotNull
+    static byte[] frame(@NotNull final Record record) {
+        final ByteBuffer result = ByteBuffer.allocate(frameSize(record));
+        put(result, record);
+        return result.array();
+    }
+
+    /**
+     * Returns the size of the encoded record.
+     */
+    static int frameSize(@NotNull final Record record) {
+        return 2 * Integer.BYTES + record.getKey().remaining() + record.getValue().remaining();
+    }
+
+    private static void put(
+            @NotNull final ByteBuffer out,
+            @NotNull final Record record) {
+        out.putInt(record.getKey().remaining());
+        out.put(record.getKey().duplicate());
+        out.putInt(record.getValue().remaining());
+        out.put(record.getValue().duplicate());
+    }
+
+    @NotNull
+    static List<Record> decode(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer in = buffer.duplicate();
+        final List<Record> result = new ArrayList<>();
+        while (in.hasRemaining()) {
+            final ByteBuffer key = slice(in, in.getInt());
+            final ByteBuffer value = slice(in, in.getInt());
+            result.add(Record.of(key, value));
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(
+            @NotNull final ByteBuffer in,
+            final int length) {
+        final ByteBuffer result = in.slice();
+        result.limit(length);
+        in.position(in.position() + length);
+        return result;
+    }
+}
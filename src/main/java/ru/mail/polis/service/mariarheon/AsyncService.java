@@ -0,0 +1,1031 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import one.nio.http.HttpServer;
+import one.nio.http.HttpServerConfig;
+import one.nio.http.HttpSession;
+import one.nio.http.Param;
+import one.nio.http.Path;
+import one.nio.http.Request;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import one.nio.server.AcceptorConfig;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.mariarheon.InstrumentedDAO;
+import ru.mail.polis.dao.mariarheon.MemoryBudget;
+import ru.mail.polis.dao.mariarheon.StorageMetrics;
+import ru.mail.polis.service.Service;
+import ru.mail.polis.service.mariarheon.ServiceMetrics.Operation;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * {@link Service} implementation on top of one-nio {@link HttpServer}.
+ * <p>
+ * Selector threads only parse requests, {@link DAO} calls are made on a bounded worker pool.
+ * Reads and writes in flight are capped by separate {@link ConcurrencyLimiter}s,
+ * requests over the limit are shed with {@code 503} and {@code Retry-After}.
+ * <p>
+ * Every key is replicated to several nodes chosen by the {@link Topology}.
+ * The node receiving a request coordinates it: fans it out to the replicas in parallel
+ * via the {@link ClusterClient} and responds once the requested number of them confirm,
+ * conflicting versions are resolved by timestamp. Reads ask just enough replicas
+ * and hedge slow ones with the spare replicas, see {@link HedgedReads}.
+ * Replica writes to every node are coalesced into batches by the {@link WriteBatcher}.
+ * Stale replicas noticed on reads are repaired in the background,
+ * writes missed by unreachable replicas are handed off to them later by the {@link HintedHandoff}.
+ * Whatever both miss is found by the background {@link AntiEntropy}.
+ * <p>
+ * Range scans merge the ordered streams of all the nodes, see {@link RangeMerge},
+ * and stream the result to the client in chunks, see {@link StreamingSession}.
+ * After a topology change the {@link Rebalancer} streams the keys to their new replicas.
+ * <p>
+ * A sampled share of the requests is traced through the stages of handling,
+ * the {@link Tracer} logs the slow ones with their timelines.
+ */
+public class AsyncService extends HttpServer implements Service {
+    private static final Logger log = LoggerFactory.getLogger(AsyncService.class);
+    private static final int RETRY_AFTER_SECONDS = 1;
+    private static final int MIN_LIMIT = 1;
+    private static final int REPLICA_TIMEOUT_MS = 1000;
+    private static final int HINTS_PER_NODE = 16 * 1024;
+    private static final long HINT_REPLAY_PERIOD_MS = 1000;
+    private static final long ANTI_ENTROPY_PERIOD_MS = 30_000;
+    private static final int HEDGE_BUDGET_PERCENT = 5;
+    private static final int BATCH_SIZE = 64;
+    private static final long BATCH_LINGER_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int SCAN_QUEUE_SIZE = 64;
+    private static final double TRACE_SAMPLE_RATE = 0.01;
+    private static final long SLOW_REQUEST_MS = 100;
+    private static final int MAX_BINARY_CONNECTIONS = 256;
+
+    private final Topology topology;
+    private final ClusterClient cluster;
+    private final HintedHandoff handoff;
+    private final AntiEntropy antiEntropy;
+    private final Rebalancer rebalancer;
+    private final HedgedReads hedgedReads = new HedgedReads(HEDGE_BUDGET_PERCENT);
+    private final WriteBatcher batcher;
+    private final LongAdder readRepairs = new LongAdder();
+    private final EntityStorage storage;
+    private final StorageMetrics storageMetrics = new StorageMetrics();
+    private final ThreadPoolExecutor workers;
+    private final ThreadPoolExecutor scans;
+    private final ThreadPoolExecutor peerScans;
+    private final ConcurrencyLimiter readLimiter;
+    private final ConcurrencyLimiter writeLimiter;
+    private final ServiceMetrics metrics = new ServiceMetrics();
+    private final Tracer tracer = new Tracer(TRACE_SAMPLE_RATE, TimeUnit.MILLISECONDS.toNanos(SLOW_REQUEST_MS));
+
+    private BinaryServer binary;
+    private MemoryBudget memoryBudget;
+
+    /**
+     * Creates a service bound to the given port.
+     *
+     * @param port      port to bind HTTP server to
+     * @param dao       DAO to store the data
+     * @param topology  the cluster this node belongs to
+     * @param queueSize maximum number of requests waiting for a worker
+     * @param cacheSize capacity of the hot value cache in bytes
+     */
+    public AsyncService(
+            final int port,
+            @NotNull final DAO dao,
+            @NotNull final Topology topology,
+            final int queueSize,
+            final long cacheSize) throws IOException {
+        super(createConfig(port));
+        this.topology = topology;
+        this.storage = new EntityStorage(new InstrumentedDAO(dao, storageMetrics), cacheSize);
+        storageMetrics.register("node-" + port);
+        final int workerCount = Runtime.getRuntime().availableProcessors();
+        this.cluster = new ClusterClient(topology, REPLICA_TIMEOUT_MS, workerCount);
+        this.handoff = new HintedHandoff(cluster, HINTS_PER_NODE);
+        this.batcher = new WriteBatcher(cluster, BATCH_SIZE, WriteBatcher.MAX_BYTES, BATCH_LINGER_NANOS);
+        final int replicas = Replicas.parse(null, topology.size()).from();
+        this.antiEntropy = new AntiEntropy(topology, storage, cluster, replicas);
+        this.rebalancer = new Rebalancer(topology, storage, replicas, REPLICA_TIMEOUT_MS);
+        this.workers = new ThreadPoolExecutor(
+                workerCount,
+                workerCount,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("worker-%d")
+                        .setUncaughtExceptionHandler((t, e) -> log.error("Error in {}", t, e))
+                        .build());
+        this.scans = scanPool(workerCount, "scan-%d");
+        // Coordinated scans wait for the peer streams, those must never queue behind them
+        this.peerScans = scanPool(workerCount, "peer-scan-%d");
+        this.readLimiter = new ConcurrencyLimiter("reads", workerCount, MIN_LIMIT, queueSize);
+        this.writeLimiter = new ConcurrencyLimiter("writes", workerCount, MIN_LIMIT, queueSize);
+        registerGauges();
+    }
+
+    @NotNull
+    private static ThreadPoolExecutor scanPool(
+            final int threads,
+            @NotNull final String nameFormat) {
+        return new ThreadPoolExecutor(
+                threads,
+                threads,
+                0L,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SCAN_QUEUE_SIZE),
+                new ThreadFactoryBuilder()
+                        .setNameFormat(nameFormat)
+                        .setUncaughtExceptionHandler((t, e) -> log.error("Error in {}", t, e))
+                        .build());
+    }
+
+    private void registerGauges() {
+        for (final ConcurrencyLimiter limiter : new ConcurrencyLimiter[]{readLimiter, writeLimiter}) {
+            final String prefix = "http_" + limiter.name();
+            metrics.gauge(prefix + "_in_flight", "Requests in flight", limiter::inFlight);
+            metrics.gauge(prefix + "_limit", "Adaptive limit of requests in flight", limiter::limit);
+            metrics.counter(prefix + "_shed_total", "Requests shed over the limit", limiter::rejected);
+        }
+        metrics.gauge("worker_queue_size", "Requests waiting for a worker", () -> workers.getQueue().size());
+        metrics.counter("read_repairs_total", "Stale replicas repaired on read", readRepairs::sum);
+        metrics.gauge("hints_pending", "Writes waiting for unreachable replicas", handoff::pending);
+        metrics.counter("hints_replayed_total", "Hinted writes delivered", handoff::replayed);
+        metrics.counter("hints_dropped_total", "Hinted writes dropped over the limit", handoff::dropped);
+        metrics.counter("hedged_reads_total", "Reads sent to a spare replica", hedgedReads::hedges);
+        metrics.counter("hedged_reads_denied_total", "Hedges not sent over the budget", hedgedReads::denied);
+        metrics.counter("write_batches_total", "Batches of replica writes sent", batcher::batches);
+        metrics.counter("write_batched_total", "Replica writes sent in batches", batcher::writes);
+        metrics.counter("anti_entropy_rounds_total", "Completed anti-entropy rounds", antiEntropy::rounds);
+        metrics.counter("anti_entropy_leaves_total", "Diverged key ranges found", antiEntropy::leaves);
+        metrics.counter("anti_entropy_repairs_total", "Versions pulled by anti-entropy", antiEntropy::repaired);
+        metrics.counter("rebalance_moved_total", "Versions sent to new replicas", rebalancer::moved);
+        metrics.counter("rebalance_slices_total", "Slices sent to new replicas", rebalancer::slices);
+        metrics.counter("rebalance_skipped_total", "Versions too large to send to new replicas", rebalancer::skipped);
+        metrics.counter("slow_requests_total", "Requests logged as slow", tracer::slow);
+        metrics.mbeans(StorageMetrics.PATTERN, "storage");
+        metrics.mbeans(StorageMetrics.AMPLIFICATION_PATTERN, "storage_amplification");
+
+        final ValueCache cache = storage.cache();
+        metrics.counter("cache_hits_total", "Value cache hits", cache::hits);
+        metrics.counter("cache_misses_total", "Value cache misses", cache::misses);
+        metrics.counter("cache_evictions_total", "Value cache evictions", cache::evictions);
+        metrics.gauge("cache_hit_ratio", "Share of lookups served from the value cache", cache::hitRate);
+        metrics.gauge("cache_size_bytes", "Value cache size", cache::weightedSize);
+    }
+
+    @NotNull
+    private static HttpServerConfig createConfig(final int port) {
+        final AcceptorConfig acceptor = new AcceptorConfig();
+        acceptor.port = port;
+        acceptor.deferAccept = true;
+        acceptor.reusePort = true;
+
+        final HttpServerConfig config = new HttpServerConfig();
+        config.acceptors = new AcceptorConfig[]{acceptor};
+        return config;
+    }
+
+    /**
+     * Serves the binary protocol on the given port next to HTTP, must be called before {@link #start()}.
+     *
+     * @see BinaryServer
+     */
+    public void enableBinary(final int port) {
+        this.binary = new BinaryServer(port, storage, readLimiter, writeLimiter, MAX_BINARY_CONNECTIONS);
+    }
+
+    /**
+     * Resizes the value cache following the budget as the heap pressure changes,
+     * must be called before {@link #start()}.
+     */
+    public void manageMemory(@NotNull final MemoryBudget budget) {
+        this.memoryBudget = budget;
+        budget.onChange(changed -> storage.cache().resize(changed.cacheBytes()));
+        metrics.gauge("memory_budget_scale", "Cache share relative to the initial one", budget::scale);
+    }
+
+    @Override
+    public synchronized void start() {
+        if (binary != null) {
+            try {
+                binary.start();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Can't start binary listener", e);
+            }
+        }
+        if (memoryBudget != null) {
+            memoryBudget.start();
+        }
+        handoff.start(HINT_REPLAY_PERIOD_MS);
+        antiEntropy.start(ANTI_ENTROPY_PERIOD_MS);
+        super.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        super.stop();
+        antiEntropy.close();
+        rebalancer.close();
+        storageMetrics.unregister();
+        hedgedReads.close();
+        batcher.close();
+        handoff.close();
+        cluster.close();
+        if (binary != null) {
+            binary.stop();
+        }
+        if (memoryBudget != null) {
+            memoryBudget.close();
+        }
+        scans.shutdownNow();
+        peerScans.shutdownNow();
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Liveness check.
+     */
+    @Path("/v0/status")
+    public Response status() {
+        return Response.ok("OK");
+    }
+
+    /**
+     * Exposes the service metrics in the Prometheus text format.
+     */
+    @Path("/metrics")
+    public Response metrics() {
+        final Response response = new Response(Response.OK, metrics.render().getBytes(StandardCharsets.UTF_8));
+        response.addHeader(ServiceMetrics.CONTENT_TYPE);
+        return response;
+    }
+
+    /**
+     * Serves {@code GET}, {@code PUT} and {@code DELETE} on a single entity.
+     * <p>
+     * The request is sent to {@code from} replicas of the key in parallel
+     * and answered as soon as {@code ack} of them respond, reads return the most recent version.
+     *
+     * @param id       entity key, must not be empty
+     * @param replicas {@code ack/from}, the majority of the cluster by default
+     * @param request  HTTP request
+     * @param session  session to respond to
+     */
+    @Path("/v0/entity")
+    public void entity(
+            @Param(value = "id", required = true) final String id,
+            @Param("replicas") final String replicas,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (id.isEmpty()) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        final ByteBuffer key = ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8));
+        if (request.getHeader(ClusterClient.INTERNAL_HEADER) != null) {
+            replica(key, request, session);
+            return;
+        }
+
+        final Replicas factor;
+        try {
+            factor = Replicas.parse(replicas, topology.size());
+        } catch (IllegalArgumentException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        final Coordination coordination = new Coordination(
+                key,
+                request.getParameter("id="),
+                topology.replicasFor(key, factor.from()),
+                factor.ack(),
+                tracer.start(request));
+        switch (request.getMethod()) {
+            case Request.METHOD_GET:
+                execute(session, Operation.GET, readLimiter, coordination.trace, () -> get(coordination));
+                break;
+            case Request.METHOD_PUT:
+                final ByteBuffer data = ByteBuffer.wrap(request.getBody());
+                execute(session, Operation.PUT, writeLimiter, coordination.trace,
+                        () -> write(coordination, data, Response.CREATED));
+                break;
+            case Request.METHOD_DELETE:
+                execute(session, Operation.DELETE, writeLimiter, coordination.trace,
+                        () -> write(coordination, null, Response.ACCEPTED));
+                break;
+            default:
+                sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                break;
+        }
+    }
+
+    /**
+     * Returns the Merkle tree of the keys the local replica shares with the peer for anti-entropy.
+     *
+     * @param peer    node asking
+     * @param session session to respond to
+     */
+    @Path("/v0/merkle")
+    public void merkle(
+            @Param(value = "peer", required = true) final String peer,
+            @NotNull final HttpSession session) {
+        if (!topology.all().contains(peer) || topology.isMe(peer)) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        execute(session, Operation.SYNC, readLimiter, Trace.NOOP, () -> {
+            try {
+                return CompletableFuture.completedFuture(Response.ok(toBytes(antiEntropy.tree(peer).toBuffer())));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    /**
+     * Returns the versions shared with the peer stored locally in the range of the Merkle tree leaf.
+     *
+     * @param leaf    index of the leaf
+     * @param peer    node asking
+     * @param session session to respond to
+     */
+    @Path("/v0/merkle/leaf")
+    public void merkleLeaf(
+            @Param(value = "leaf", required = true) final String leaf,
+            @Param(value = "peer", required = true) final String peer,
+            @NotNull final HttpSession session) {
+        final int index;
+        try {
+            index = Integer.parseInt(leaf);
+        } catch (NumberFormatException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        if (index < 0 || index >= MerkleTree.LEAVES || !topology.all().contains(peer) || topology.isMe(peer)) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        // A leaf of a large store doesn't fit a body, it is streamed like a range
+        final StreamingSession streaming = (StreamingSession) session;
+        scan(peerScans, streaming, Operation.SYNC, Trace.NOOP, () -> {
+            streaming.stream(antiEntropy.leaf(peer, index), AntiEntropy::frame);
+            return null;
+        });
+    }
+
+    /**
+     * Streams the entities from the start key up to the end key exclusive in the key order.
+     * <p>
+     * The coordinator opens range streams to all the nodes and merges them on the fly,
+     * holding a record per node and a single chunk for the client whatever the size of the range.
+     *
+     * @param start   first key, must not be empty
+     * @param end     key after the last one, no bound if absent
+     * @param request HTTP request
+     * @param session session to respond to
+     */
+    @Path("/v0/entities")
+    public void entities(
+            @Param(value = "start", required = true) final String start,
+            @Param("end") final String end,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_GET) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+        if (start.isEmpty() || (end != null && end.isEmpty())) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        final ByteBuffer from = ByteBuffer.wrap(start.getBytes(StandardCharsets.UTF_8));
+        final ByteBuffer to = end == null ? null : ByteBuffer.wrap(end.getBytes(StandardCharsets.UTF_8));
+        final StreamingSession streaming = (StreamingSession) session;
+        final Trace trace = tracer.start(request);
+        if (request.getHeader(ClusterClient.INTERNAL_HEADER) != null) {
+            scan(peerScans, streaming, Operation.RANGE, trace, () -> {
+                streaming.stream(storage.range(from, to), AntiEntropy::frame);
+                return null;
+            });
+        } else {
+            final String rawEnd = end == null ? null : request.getParameter("end=");
+            scan(scans, streaming, Operation.RANGE, trace,
+                    () -> range(streaming, from, to, request.getParameter("start="), rawEnd));
+        }
+    }
+
+    /**
+     * Rebalances the data after the topology change.
+     * <p>
+     * Given the nodes the cluster consisted of, starts sending the keys this node donates
+     * to their new replicas and responds {@code 202} at once, see {@link Rebalancer}.
+     * Slices sent by the other nodes come as internal requests and are applied locally as repairs.
+     *
+     * @param previous nodes of the cluster before the change separated by commas
+     * @param request  HTTP request
+     * @param session  session to respond to
+     */
+    @Path(Rebalancer.PATH)
+    public void rebalance(
+            @Param("previous") final String previous,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+
+        if (request.getHeader(ClusterClient.INTERNAL_HEADER) != null) {
+            ingest(request, session);
+            return;
+        }
+
+        if (previous == null || previous.isEmpty()) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+        final Set<String> nodes = new HashSet<>(Arrays.asList(previous.split(",")));
+        rebalancer.start(nodes).whenComplete((moved, error) -> {
+            if (error == null) {
+                log.info("Rebalanced {} versions since {}", moved, nodes);
+            } else {
+                log.error("Can't rebalance since {}", nodes, error);
+            }
+        });
+        sendResponse(session, new Response(Response.ACCEPTED, Response.EMPTY));
+    }
+
+    @Override
+    public HttpSession createSession(@NotNull final Socket socket) {
+        return new StreamingSession(socket, this);
+    }
+
+    /**
+     * Applies a batch of replica writes coalesced by the {@link WriteBatcher} of the coordinator.
+     * <p>
+     * Batches marked with {@link ClusterClient#REPAIR_HEADER}, such as replayed hints,
+     * are applied as repairs and never replace newer versions.
+     *
+     * @param request HTTP request
+     * @param session session to respond to
+     */
+    @Path("/v0/batch")
+    public void batch(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        if (request.getMethod() != Request.METHOD_POST) {
+            sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+            return;
+        }
+
+        final byte[] body = request.getBody();
+        final boolean repairs = request.getHeader(ClusterClient.REPAIR_HEADER) != null;
+        execute(session, Operation.BATCH, writeLimiter, tracer.start(request), () -> applyBatch(body, repairs));
+    }
+
+    @Override
+    public void handleDefault(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) throws IOException {
+        session.sendResponse(new Response(Response.BAD_REQUEST, Response.EMPTY));
+    }
+
+    /**
+     * Decodes the batch of versions and applies them locally, responds with a status per version.
+     */
+    @NotNull
+    private CompletableFuture<Response> applyBatch(
+            @NotNull final byte[] body,
+            final boolean repairs) {
+        final List<Record> records;
+        final List<Value> values;
+        try {
+            records = AntiEntropy.decode(ByteBuffer.wrap(body));
+            values = new ArrayList<>(records.size());
+            for (final Record record : records) {
+                values.add(Value.fromBuffer(record.getValue()));
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(new Response(Response.BAD_REQUEST, Response.EMPTY));
+        }
+
+        final byte[] statuses = new byte[records.size()];
+        for (int i = 0; i < statuses.length; i++) {
+            final ByteBuffer key = records.get(i).getKey();
+            final Value value = values.get(i);
+            final CompletableFuture<Void> written;
+            if (repairs) {
+                written = repairLocal(key, value);
+            } else {
+                written = writeLocal(key, value.isTombstone() ? null : value.data(), value.timestamp());
+            }
+            statuses[i] = written.isCompletedExceptionally() ? WriteBatcher.FAILED : WriteBatcher.OK;
+        }
+        return CompletableFuture.completedFuture(Response.ok(statuses));
+    }
+
+    /**
+     * Applies a rebalancing slice to the local storage.
+     */
+    private void ingest(
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        final byte[] body = request.getBody();
+        execute(session, Operation.SYNC, writeLimiter, tracer.start(request), () -> {
+            final List<Record> records;
+            final List<Value> values;
+            try {
+                records = AntiEntropy.decode(ByteBuffer.wrap(body));
+                values = new ArrayList<>(records.size());
+                for (final Record record : records) {
+                    values.add(Value.fromBuffer(record.getValue()));
+                }
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                return CompletableFuture.completedFuture(new Response(Response.BAD_REQUEST, Response.EMPTY));
+            }
+
+            try {
+                for (int i = 0; i < records.size(); i++) {
+                    storage.repair(records.get(i).getKey(), values.get(i));
+                }
+                return CompletableFuture.completedFuture(Response.ok(Response.EMPTY));
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        });
+    }
+
+    /**
+     * Applies a replica request of the coordinator to the local storage.
+     */
+    private void replica(
+            @NotNull final ByteBuffer key,
+            @NotNull final Request request,
+            @NotNull final HttpSession session) {
+        final Trace trace = tracer.start(request);
+        if (request.getMethod() == Request.METHOD_GET) {
+            execute(session, Operation.GET, readLimiter, trace, () -> storage.get(key).thenApply(value ->
+                    value.isAbsent()
+                            ? new Response(Response.NOT_FOUND, Response.EMPTY)
+                            : Response.ok(toBytes(value.toBuffer()))));
+            return;
+        }
+
+        final String header = request.getHeader(ClusterClient.TIMESTAMP_HEADER);
+        final long timestamp;
+        try {
+            timestamp = Long.parseLong(header == null ? "" : header.trim());
+        } catch (NumberFormatException e) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
+
+        if (request.getHeader(ClusterClient.REPAIR_HEADER) != null) {
+            final Value value = request.getMethod() == Request.METHOD_DELETE
+                    ? Value.tombstone(timestamp)
+                    : Value.present(ByteBuffer.wrap(request.getBody()), timestamp);
+            final Operation operation = value.isTombstone() ? Operation.DELETE : Operation.PUT;
+            final String status = value.isTombstone() ? Response.ACCEPTED : Response.CREATED;
+            execute(session, operation, writeLimiter, trace, () -> repairLocal(key, value)
+                    .thenApply(ignored -> new Response(status, Response.EMPTY)));
+            return;
+        }
+
+        switch (request.getMethod()) {
+            case Request.METHOD_PUT:
+                final ByteBuffer data = ByteBuffer.wrap(request.getBody());
+                execute(session, Operation.PUT, writeLimiter, trace, () -> writeLocal(key, data, timestamp)
+                        .thenApply(ignored -> new Response(Response.CREATED, Response.EMPTY)));
+                break;
+            case Request.METHOD_DELETE:
+                execute(session, Operation.DELETE, writeLimiter, trace, () -> writeLocal(key, null, timestamp)
+                        .thenApply(ignored -> new Response(Response.ACCEPTED, Response.EMPTY)));
+                break;
+            default:
+                sendResponse(session, new Response(Response.METHOD_NOT_ALLOWED, Response.EMPTY));
+                break;
+        }
+    }
+
+    @NotNull
+    private CompletableFuture<Response> get(@NotNull final Coordination coordination) {
+        // The local replica is the cheapest to ask
+        final List<String> nodes = new ArrayList<>(coordination.nodes);
+        for (int i = 1; i < nodes.size(); i++) {
+            if (topology.isMe(nodes.get(i))) {
+                nodes.add(0, nodes.remove(i));
+                break;
+            }
+        }
+
+        final Map<String, CompletableFuture<Value>> replies = new ConcurrentHashMap<>();
+        final Function<String, CompletableFuture<Value>> read = node -> topology.isMe(node)
+                ? coordination.trace.markWhenDone(storage.get(coordination.key), Trace.Stage.LOCAL)
+                : cluster.get(node, coordination.id);
+        return hedgedReads.read(nodes, coordination.ack, read, replies).handle((values, error) -> {
+            coordination.trace.mark(Trace.Stage.REPLICAS);
+            repairWhenDone(coordination, replies);
+            if (error != null) {
+                log.debug("Can't read {}", coordination.id, error);
+                return notEnoughReplicas();
+            }
+
+            final Value value = Value.merge(values);
+            return value.isPresent()
+                    ? Response.ok(toBytes(value.data()))
+                    : new Response(Response.NOT_FOUND, Response.EMPTY);
+        });
+    }
+
+    /**
+     * Writes the new version to the replicas, {@code null} data writes a tombstone.
+     */
+    @NotNull
+    private CompletableFuture<Response> write(
+            @NotNull final Coordination coordination,
+            @Nullable final ByteBuffer data,
+            @NotNull final String status) {
+        final long timestamp = Timestamps.next();
+        final List<CompletableFuture<Void>> replies = new ArrayList<>(coordination.nodes.size());
+        boolean local = false;
+        for (final String node : coordination.nodes) {
+            if (topology.isMe(node)) {
+                local = true;
+            } else {
+                final Value value = data == null ? Value.tombstone(timestamp) : Value.present(data, timestamp);
+                replies.add(batcher.write(node, coordination.key, value).whenComplete((ignored, error) -> {
+                    if (error != null) {
+                        handoff.hint(node, coordination.key, value);
+                    }
+                }));
+            }
+        }
+        if (local) {
+            replies.add(coordination.trace.markWhenDone(
+                    writeLocal(coordination.key, data, timestamp),
+                    Trace.Stage.LOCAL));
+        }
+
+        return Quorum.atLeast(replies, coordination.ack).handle((ignored, error) -> {
+            coordination.trace.mark(Trace.Stage.REPLICAS);
+            if (error != null) {
+                log.debug("Can't write {}", coordination.id, error);
+                return notEnoughReplicas();
+            }
+            return new Response(status, Response.EMPTY);
+        });
+    }
+
+    /**
+     * Merges the range streams of all the nodes into the response.
+     *
+     * @return the response to send if the range can't be streamed
+     */
+    @Nullable
+    private Response range(
+            @NotNull final StreamingSession session,
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to,
+            @NotNull final String start,
+            @Nullable final String end) throws IOException {
+        final List<CompletableFuture<RecordStream>> opening = new ArrayList<>();
+        for (final String node : topology.all()) {
+            if (!topology.isMe(node)) {
+                opening.add(cluster.range(node, start, end));
+            }
+        }
+
+        final List<Iterator<Record>> streams = new ArrayList<>(topology.size());
+        final List<RecordStream> remote = new ArrayList<>(opening.size());
+        streams.add(storage.range(from, to));
+        for (final CompletableFuture<RecordStream> stream : opening) {
+            try {
+                remote.add(stream.join());
+            } catch (CompletionException e) {
+                log.debug("Can't open range stream", e);
+            }
+        }
+        streams.addAll(remote);
+
+        try {
+            if (streams.size() < topology.size() / 2 + 1) {
+                return notEnoughReplicas();
+            }
+            session.stream(RangeMerge.present(new RangeMerge(streams)), StreamingSession::keyValue);
+            return null;
+        } finally {
+            for (final RecordStream stream : remote) {
+                stream.close();
+            }
+        }
+    }
+
+    /**
+     * Runs the scan on a dedicated thread, scans block on the slowest of the client and the streams.
+     * <p>
+     * The scans coordinated by this node and the scans streamed to the coordinators of the others
+     * run on separate pools, so the former can't take all the threads the latter need to progress.
+     */
+    private void scan(
+            @NotNull final ThreadPoolExecutor pool,
+            @NotNull final StreamingSession session,
+            @NotNull final Operation operation,
+            @NotNull final Trace trace,
+            @NotNull final Scan scan) {
+        final Handling handling = new Handling(operation, trace);
+        try {
+            pool.execute(() -> {
+                trace.mark(Trace.Stage.QUEUED);
+                try {
+                    final Response response = scan.run();
+                    if (response == null) {
+                        trace.mark(Trace.Stage.WRITTEN);
+                        finish(handling, 200);
+                    } else {
+                        respond(session, handling, response);
+                    }
+                } catch (IOException | UncheckedIOException e) {
+                    // The status has gone already, a truncated body tells the client
+                    log.warn("Can't stream {}", operation, e);
+                    finish(handling, 500);
+                    session.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Scan queue is full", e);
+            respond(session, handling, overloaded());
+        }
+    }
+
+    /**
+     * Pushes the most recent version to the replicas left behind once all the replicas asked respond.
+     * <p>
+     * Runs off the request path, the response is sent as soon as the quorum is reached.
+     */
+    private void repairWhenDone(
+            @NotNull final Coordination coordination,
+            @NotNull final Map<String, CompletableFuture<Value>> replies) {
+        final CompletableFuture<?>[] all = replies.values().toArray(new CompletableFuture<?>[0]);
+        CompletableFuture.allOf(all).whenComplete((ignored, error) -> {
+            final Map<String, Value> versions = new HashMap<>();
+            for (final Map.Entry<String, CompletableFuture<Value>> reply : replies.entrySet()) {
+                if (!reply.getValue().isCompletedExceptionally()) {
+                    versions.put(reply.getKey(), reply.getValue().join());
+                }
+            }
+
+            final Value latest = Value.merge(versions.values());
+            if (latest.isAbsent()) {
+                return;
+            }
+            for (final Map.Entry<String, Value> version : versions.entrySet()) {
+                if (version.getValue().timestamp() < latest.timestamp()) {
+                    readRepairs.increment();
+                    repair(version.getKey(), coordination, latest);
+                }
+            }
+        });
+    }
+
+    private void repair(
+            @NotNull final String node,
+            @NotNull final Coordination coordination,
+            @NotNull final Value value) {
+        if (!topology.isMe(node)) {
+            cluster.repair(node, coordination.id, value).whenComplete((ignored, error) -> {
+                if (error != null) {
+                    handoff.hint(node, coordination.key, value);
+                }
+            });
+            return;
+        }
+
+        try {
+            storage.repair(coordination.key, value);
+        } catch (IOException e) {
+            log.error("Can't repair {}", coordination.id, e);
+        }
+    }
+
+    @NotNull
+    private CompletableFuture<Void> repairLocal(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        try {
+            storage.repair(key, value);
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            log.error("Can't repair {}", key, e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @NotNull
+    private CompletableFuture<Void> writeLocal(
+            @NotNull final ByteBuffer key,
+            @Nullable final ByteBuffer data,
+            final long timestamp) {
+        try {
+            if (data == null) {
+                storage.remove(key, timestamp);
+            } else {
+                storage.upsert(key, data, timestamp);
+            }
+            return CompletableFuture.completedFuture(null);
+        } catch (IOException e) {
+            log.error("Can't write {}", key, e);
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Runs the handler on a worker if the limiter admits it, otherwise sheds the request.
+     * <p>
+     * The slot is returned and the client is answered whatever the handler does,
+     * throwing included: a malformed request must not leak a slot of the limiter.
+     */
+    private void execute(
+            @NotNull final HttpSession session,
+            @NotNull final Operation operation,
+            @NotNull final ConcurrencyLimiter limiter,
+            @NotNull final Trace trace,
+            @NotNull final Supplier<CompletableFuture<Response>> handler) {
+        final Handling handling = new Handling(operation, trace);
+        if (!limiter.tryAcquire()) {
+            respond(session, handling, overloaded());
+            return;
+        }
+
+        try {
+            workers.execute(() -> {
+                trace.mark(Trace.Stage.QUEUED);
+                CompletableFuture<Response> handled;
+                try {
+                    handled = handler.get();
+                } catch (RuntimeException e) {
+                    handled = CompletableFuture.failedFuture(e);
+                }
+                handled.whenComplete((response, error) -> {
+                    limiter.onSuccess(System.nanoTime() - handling.start);
+                    if (error == null) {
+                        respond(session, handling, response);
+                    } else {
+                        log.error("Can't handle request", error);
+                        respond(session, handling, new Response(Response.INTERNAL_ERROR, Response.EMPTY));
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("Worker queue of {} is full", limiter.name(), e);
+            limiter.onDropped();
+            respond(session, handling, overloaded());
+        }
+    }
+
+    private void respond(
+            @NotNull final HttpSession session,
+            @NotNull final Handling handling,
+            @NotNull final Response response) {
+        handling.trace.mark(Trace.Stage.HANDLED);
+        sendResponse(session, response);
+        handling.trace.mark(Trace.Stage.WRITTEN);
+        finish(handling, response.getStatus());
+    }
+
+    /**
+     * Accounts the request handled, the event is recorded only if it took longer than its threshold.
+     */
+    private void finish(
+            @NotNull final Handling handling,
+            final int status) {
+        final long elapsed = System.nanoTime() - handling.start;
+        metrics.record(handling.operation, status, elapsed);
+        final RequestEvent event = handling.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.operation = handling.operation.label();
+            event.status = status;
+            event.commit();
+        }
+        tracer.finish(handling.trace, handling.operation, status, elapsed);
+    }
+
+    @NotNull
+    private static Response notEnoughReplicas() {
+        return new Response(Response.GATEWAY_TIMEOUT, Response.EMPTY);
+    }
+
+    @NotNull
+    private static Response overloaded() {
+        final Response response = new Response(Response.SERVICE_UNAVAILABLE, Response.EMPTY);
+        response.addHeader("Retry-After: " + RETRY_AFTER_SECONDS);
+        return response;
+    }
+
+    private static void sendResponse(
+            @NotNull final HttpSession session,
+            @NotNull final Response response) {
+        try {
+            session.sendResponse(response);
+        } catch (IOException e) {
+            log.error("Can't send response", e);
+        }
+    }
+
+    @NotNull
+    private static byte[] toBytes(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer duplicate = buffer.duplicate();
+        final byte[] result = new byte[duplicate.remaining()];
+        duplicate.get(result);
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface Scan {
+        @Nullable
+        Response run() throws IOException;
+    }
+
+    /**
+     * Key of a request being coordinated, the replicas it goes to and its trace.
+     */
+    private static final class Coordination {
+        private final ByteBuffer key;
+        private final String id;
+        private final List<String> nodes;
+        private final int ack;
+        private final Trace trace;
+
+        Coordination(
+                @NotNull final ByteBuffer key,
+                @NotNull final String id,
+                @NotNull final List<String> nodes,
+                final int ack,
+                @NotNull final Trace trace) {
+            this.key = key;
+            this.id = id;
+            this.nodes = nodes;
+            this.ack = ack;
+            this.trace = trace;
+        }
+    }
+
+    /**
+     * A request being handled: when it started, its flight recorder event and its trace.
+     */
+    private static final class Handling {
+        private final Operation operation;
+        private final Trace trace;
+        private final long start = System.nanoTime();
+        private final RequestEvent event = new RequestEvent();
+
+        Handling(
+                @NotNull final Operation operation,
+                @NotNull final Trace trace) {
+            this.operation = operation;
+            this.trace = trace;
+            event.begin();
+        }
+    }
+}
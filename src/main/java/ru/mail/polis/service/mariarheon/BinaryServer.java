@@ -0,0 +1,290 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compact binary protocol listener served next to the HTTP API.
+ * <p>
+ * All the numbers are big-endian. A request frame is
+ * <pre>
+ * int length | long id | byte op | int keyLength | key | value
+ * </pre>
+ * where {@code length} counts the bytes after itself and {@code value} is present for {@link #OP_UPSERT} only.
+ * A response frame is
+ * <pre>
+ * int length | long id | byte status | value
+ * </pre>
+ * where {@code value} is present for a successful {@link #OP_GET} only.
+ * <p>
+ * Requests may be pipelined: a client sends any number of frames without waiting,
+ * responses come back in the same order and carry the ids of their requests.
+ * Each connection is served by its own thread, responses are flushed once
+ * the client has no more frames in flight. Connections over the limit are closed at once.
+ * <p>
+ * Operations share the {@link ConcurrencyLimiter}s of the HTTP API, those over the limit
+ * are answered with {@link #STATUS_OVERLOADED} for the client to retry later.
+ * <p>
+ * Operations are applied to the local replica only, clients are expected to route keys themselves.
+ */
+final class BinaryServer {
+    static final byte OP_GET = 1;
+    static final byte OP_UPSERT = 2;
+    static final byte OP_REMOVE = 3;
+
+    static final byte STATUS_OK = 0;
+    static final byte STATUS_NOT_FOUND = 1;
+    static final byte STATUS_BAD_REQUEST = 2;
+    static final byte STATUS_ERROR = 3;
+    static final byte STATUS_OVERLOADED = 4;
+
+    private static final Logger log = LoggerFactory.getLogger(BinaryServer.class);
+    private static final int HEADER_SIZE = Long.BYTES + Byte.BYTES + Integer.BYTES;
+    private static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long IDLE_THREAD_SECONDS = 60;
+    private static final long STOP_TIMEOUT_SECONDS = 1;
+
+    private final int port;
+    private final EntityStorage storage;
+    private final ConcurrencyLimiter readLimiter;
+    private final ConcurrencyLimiter writeLimiter;
+    private final int maxConnections;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    private ServerSocket server;
+    private ThreadPoolExecutor threads;
+
+    /**
+     * Creates a listener, nothing is bound until {@link #start()}.
+     *
+     * @param port           port to listen to
+     * @param storage        local replica to apply the operations to
+     * @param readLimiter    limiter of the reads in flight
+     * @param writeLimiter   limiter of the writes in flight
+     * @param maxConnections number of the connections served at once
+     */
+    BinaryServer(
+            final int port,
+            @NotNull final EntityStorage storage,
+            @NotNull final ConcurrencyLimiter readLimiter,
+            @NotNull final ConcurrencyLimiter writeLimiter,
+            final int maxConnections) {
+        this.port = port;
+        this.storage = storage;
+        this.readLimiter = readLimiter;
+        this.writeLimiter = writeLimiter;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Binds the port and starts accepting connections.
+     */
+    void start() throws IOException {
+        // A thread per connection plus the acceptor, no queue: the connections over the limit are rejected
+        threads = new ThreadPoolExecutor(
+                0,
+                maxConnections + 1,
+                IDLE_THREAD_SECONDS,
+                TimeUnit.SECONDS,
+                new SynchronousQueue<>(),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("binary-%d")
+                        .setDaemon(true)
+                        .build());
+        server = new ServerSocket();
+        server.setReuseAddress(true);
+        server.bind(new InetSocketAddress(port));
+        final ServerSocket listening = server;
+        threads.execute(() -> accept(listening));
+    }
+
+    /**
+     * Closes the listener and all the connections, the listener may be started again afterwards.
+     */
+    void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            log.warn("Can't close binary listener", e);
+        }
+        for (final Socket socket : connections) {
+            closeQuietly(socket);
+        }
+        threads.shutdownNow();
+        // The port is released once the acceptor leaves accept()
+        try {
+            if (!threads.awaitTermination(STOP_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("Binary connections still served after {} s", STOP_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept(@NotNull final ServerSocket listening) {
+        while (!listening.isClosed()) {
+            try {
+                final Socket socket = listening.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                try {
+                    threads.execute(() -> serve(socket));
+                } catch (RejectedExecutionException e) {
+                    log.warn("Over {} binary connections, closing {}", maxConnections, socket.getRemoteSocketAddress());
+                    connections.remove(socket);
+                    closeQuietly(socket);
+                }
+            } catch (IOException e) {
+                if (!listening.isClosed()) {
+                    log.error("Can't accept binary connection", e);
+                }
+            }
+        }
+    }
+
+    private void serve(@NotNull final Socket socket) {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE))) {
+            while (true) {
+                final int length = in.readInt();
+                if (length < HEADER_SIZE || length > MAX_FRAME_SIZE) {
+                    log.warn("Bad frame length {} from {}", length, socket.getRemoteSocketAddress());
+                    return;
+                }
+
+                final byte[] frame = new byte[length];
+                in.readFully(frame);
+                handle(ByteBuffer.wrap(frame), out);
+
+                // Batch responses to pipelined requests into a single write
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException | SocketException e) {
+            log.debug("Binary connection {} closed", socket.getRemoteSocketAddress(), e);
+        } catch (IOException e) {
+            log.error("Binary connection {} failed", socket.getRemoteSocketAddress(), e);
+        } finally {
+            connections.remove(socket);
+            closeQuietly(socket);
+        }
+    }
+
+    private void handle(
+            @NotNull final ByteBuffer frame,
+            @NotNull final DataOutputStream out) throws IOException {
+        final long id = frame.getLong();
+        final byte op = frame.get();
+        final int keyLength = frame.getInt();
+        if (keyLength <= 0 || keyLength > frame.remaining()) {
+            respond(out, id, STATUS_BAD_REQUEST, null);
+            return;
+        }
+
+        final ByteBuffer key = frame.slice();
+        key.limit(keyLength);
+        frame.position(frame.position() + keyLength);
+        final ByteBuffer value = frame.slice();
+
+        final ConcurrencyLimiter limiter;
+        switch (op) {
+            case OP_GET:
+                limiter = readLimiter;
+                break;
+            case OP_UPSERT:
+            case OP_REMOVE:
+                limiter = writeLimiter;
+                break;
+            default:
+                respond(out, id, STATUS_BAD_REQUEST, null);
+                return;
+        }
+        if (!limiter.tryAcquire()) {
+            respond(out, id, STATUS_OVERLOADED, null);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try {
+            switch (op) {
+                case OP_GET:
+                    final Value stored = storage.get(key).join();
+                    if (stored.isPresent()) {
+                        respond(out, id, STATUS_OK, stored.data());
+                    } else {
+                        respond(out, id, STATUS_NOT_FOUND, null);
+                    }
+                    break;
+                case OP_UPSERT:
+                    storage.upsert(key, value, Timestamps.next());
+                    respond(out, id, STATUS_OK, null);
+                    break;
+                default:
+                    // Removal, the unknown ops are rejected above
+                    storage.remove(key, Timestamps.next());
+                    respond(out, id, STATUS_OK, null);
+                    break;
+            }
+        } catch (CompletionException e) {
+            log.error("Can't get {}", key, e.getCause());
+            respond(out, id, STATUS_ERROR, null);
+        } catch (IOException e) {
+            log.error("Can't apply op {} to {}", op, key, e);
+            respond(out, id, STATUS_ERROR, null);
+        } finally {
+            limiter.onSuccess(System.nanoTime() - start);
+        }
+    }
+
+    private static void respond(
+            @NotNull final DataOutputStream out,
+            final long id,
+            final byte status,
+            @Nullable final ByteBuffer value) throws IOException {
+        final ByteBuffer body = value == null ? ByteBuffer.allocate(0) : value.duplicate();
+        out.writeInt(Long.BYTES + Byte.BYTES + body.remaining());
+        out.writeLong(id);
+        out.writeByte(status);
+        if (body.hasArray()) {
+            out.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            final byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    private static void closeQuietly(@NotNull final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Can't close {}", socket, e);
+        }
+    }
+}
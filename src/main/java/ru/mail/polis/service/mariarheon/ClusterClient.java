@@ -0,0 +1,276 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking client for the replica operations of the other nodes.
+ * <p>
+ * Replica requests are the regular entity requests marked with {@link #INTERNAL_HEADER}.
+ * The receiving node applies them locally: reads return the stored {@link Value}
+ * with its timestamp, writes carry the timestamp assigned by the coordinator in {@link #TIMESTAMP_HEADER}.
+ * Repairs are writes marked with {@link #REPAIR_HEADER}, they never replace a newer version.
+ * <p>
+ * Every node is reached through its own {@link HttpClient} with its own connection pool.
+ * HTTP/2 is preferred and multiplexes the calls over a single connection where the peer supports it,
+ * otherwise the client falls back to pooled HTTP/1.1 keep-alive connections.
+ * Calls are asynchronous with a deadline each, no thread waits for the network.
+ */
+final class ClusterClient implements HintedHandoff.Peers, WriteBatcher.Sender, Closeable {
+    static final String INTERNAL_HEADER = "X-Proxy-For:";
+    static final String TIMESTAMP_HEADER = "X-Timestamp:";
+    static final String REPAIR_HEADER = "X-Repair:";
+
+    private final Map<String, HttpClient> clients = new HashMap<>();
+    private final Duration timeout;
+    private final ExecutorService executor;
+
+    /**
+     * Creates clients to all the other nodes.
+     *
+     * @param topology  the cluster
+     * @param timeoutMs deadline of a single call
+     * @param threads   number of threads completing the calls
+     */
+    ClusterClient(
+            @NotNull final Topology topology,
+            final int timeoutMs,
+            final int threads) {
+        this.timeout = Duration.ofMillis(timeoutMs);
+        this.executor = Executors.newFixedThreadPool(
+                threads,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("cluster-client-%d")
+                        .setDaemon(true)
+                        .build());
+        for (final String node : topology.all()) {
+            if (!topology.isMe(node)) {
+                clients.put(node, HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_2)
+                        .connectTimeout(timeout)
+                        .executor(executor)
+                        .build());
+            }
+        }
+    }
+
+    /**
+     * Reads the version of the entity stored by the node.
+     *
+     * @param id entity key as it came in the request
+     */
+    @NotNull
+    CompletableFuture<Value> get(
+            @NotNull final String node,
+            @NotNull final String id) {
+        return send(node, request(node, uri(id)).GET()).thenApply(response -> {
+            switch (response.statusCode()) {
+                case 200:
+                    return Value.fromBuffer(ByteBuffer.wrap(response.body()));
+                case 404:
+                    return Value.absent();
+                default:
+                    throw unexpected(response);
+            }
+        });
+    }
+
+    /**
+     * Pushes the known version of the entity to the node unless the node has a newer one.
+     *
+     * @param id entity key as it came in the request
+     */
+    @NotNull
+    CompletableFuture<Void> repair(
+            @NotNull final String node,
+            @NotNull final String id,
+            @NotNull final Value value) {
+        final HttpRequest.Builder request = request(node, uri(id))
+                .header(name(TIMESTAMP_HEADER), Long.toString(value.timestamp()))
+                .header(name(REPAIR_HEADER), "1");
+        if (value.isTombstone()) {
+            return send(node, request.DELETE()).thenAccept(response -> expect(response, 202));
+        }
+        request.PUT(HttpRequest.BodyPublishers.ofByteArray(toBytes(value.data())));
+        return send(node, request).thenAccept(response -> expect(response, 201));
+    }
+
+    /**
+     * Sends a batch of replica writes to the node.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> batch(
+            @NotNull final String node,
+            @NotNull final byte[] batch) {
+        final HttpRequest.Builder request = request(node, "/v0/batch")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(batch));
+        return send(node, request).thenApply(response -> {
+            expect(response, 200);
+            return response.body();
+        });
+    }
+
+    /**
+     * Sends a batch of repairs to the node, the versions are stored unless the node has newer ones.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<byte[]> repairs(
+            @NotNull final String node,
+            @NotNull final byte[] batch) {
+        final HttpRequest.Builder request = request(node, "/v0/batch")
+                .header(name(REPAIR_HEADER), "1")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(batch));
+        return send(node, request).thenApply(response -> {
+            expect(response, 200);
+            return response.body();
+        });
+    }
+
+    /**
+     * Checks whether the node responds.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<Boolean> isAlive(@NotNull final String node) {
+        return send(node, request(node, "/v0/status").GET()).thenApply(response -> response.statusCode() == 200);
+    }
+
+    /**
+     * Fetches the current Merkle tree of the keys the node shares with the requester.
+     */
+    @NotNull
+    CompletableFuture<MerkleTree> tree(
+            @NotNull final String node,
+            @NotNull final String requester) {
+        return send(node, request(node, "/v0/merkle?peer=" + encode(requester)).GET()).thenApply(response -> {
+            expect(response, 200);
+            return MerkleTree.fromBuffer(ByteBuffer.wrap(response.body()));
+        });
+    }
+
+    /**
+     * Opens the stream of the versions the node shares with the requester in the range of the Merkle tree leaf.
+     * <p>
+     * A leaf of a large store is streamed as a range is, so neither side holds all of it.
+     */
+    @NotNull
+    CompletableFuture<RecordStream> leaf(
+            @NotNull final String node,
+            @NotNull final String requester,
+            final int leaf) {
+        return stream(node, "/v0/merkle/leaf?leaf=" + leaf + "&peer=" + encode(requester));
+    }
+
+    /**
+     * Opens the stream of the versions the node stores in the range.
+     * <p>
+     * The stream is read as the records arrive, the transport only buffers a bounded window ahead.
+     * Every read of the stream waits for the peer for at most the call deadline.
+     *
+     * @param start first key as it came in the request
+     * @param end   key after the last one as it came in the request, {@code null} for no bound
+     */
+    @NotNull
+    CompletableFuture<RecordStream> range(
+            @NotNull final String node,
+            @NotNull final String start,
+            @Nullable final String end) {
+        return stream(node, "/v0/entities?start=" + start + (end == null ? "" : "&end=" + end));
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @NotNull
+    private CompletableFuture<RecordStream> stream(
+            @NotNull final String node,
+            @NotNull final String uri) {
+        return clients.get(node)
+                .sendAsync(request(node, uri).GET().build(), HttpResponse.BodyHandlers.ofPublisher())
+                .thenApply(response -> {
+                    final TimedBodyStream body = new TimedBodyStream(timeout.toNanos());
+                    response.body().subscribe(body);
+                    if (response.statusCode() != 200) {
+                        body.close();
+                        throw new CompletionException(new IOException("Unexpected status " + response.statusCode()));
+                    }
+                    return new RecordStream(body);
+                });
+    }
+
+    @NotNull
+    private HttpRequest.Builder request(
+            @NotNull final String node,
+            @NotNull final String uri) {
+        return HttpRequest.newBuilder(URI.create(node + uri))
+                .timeout(timeout)
+                .header(name(INTERNAL_HEADER), node);
+    }
+
+    @NotNull
+    private CompletableFuture<HttpResponse<byte[]>> send(
+            @NotNull final String node,
+            @NotNull final HttpRequest.Builder request) {
+        return clients.get(node).sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private static void expect(
+            @NotNull final HttpResponse<byte[]> response,
+            final int status) {
+        if (response.statusCode() != status) {
+            throw unexpected(response);
+        }
+    }
+
+    @NotNull
+    private static CompletionException unexpected(@NotNull final HttpResponse<byte[]> response) {
+        return new CompletionException(new IOException("Unexpected status " + response.statusCode()));
+    }
+
+    /**
+     * Strips the trailing colon off the header prefix.
+     */
+    @NotNull
+    private static String name(@NotNull final String header) {
+        return header.substring(0, header.length() - 1);
+    }
+
+    @NotNull
+    private static byte[] toBytes(@NotNull final ByteBuffer buffer) {
+        final byte[] result = new byte[buffer.remaining()];
+        buffer.get(result);
+        return result;
+    }
+
+    @NotNull
+    private static String encode(@NotNull final String parameter) {
+        return URLEncoder.encode(parameter, StandardCharsets.UTF_8);
+    }
+
+    @NotNull
+    private static String uri(@NotNull final String id) {
+        return "/v0/entity?id=" + id;
+    }
+}
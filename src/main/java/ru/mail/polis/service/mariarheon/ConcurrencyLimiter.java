@@ -0,0 +1,142 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Adaptive limit of requests in flight.
+ * <p>
+ * The limit follows the latency gradient: once per window the average latency
+ * of the window is compared to a slowly moving baseline. While they match the
+ * limit grows by a queue allowance of {@code sqrt(limit)}, when the window
+ * gets slower (e.g. compaction is running) the limit shrinks proportionally.
+ * Requests that were dropped downstream halve the limit right away.
+ * <p>
+ * The hot path is a CAS on the in-flight counter and two {@link LongAdder} updates.
+ */
+final class ConcurrencyLimiter {
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int MIN_WINDOW_SAMPLES = 10;
+    private static final double BASELINE_SMOOTHING = 0.05;
+    private static final double LIMIT_SMOOTHING = 0.2;
+    private static final double MIN_GRADIENT = 0.5;
+    private static final double TOLERANCE = 1.5;
+
+    private final String name;
+    private final int minLimit;
+    private final int maxLimit;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private final LongAdder windowLatency = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    private volatile double limit;
+    private double baseline;
+
+    /**
+     * Creates a limiter.
+     *
+     * @param name         name to report the limiter by
+     * @param initialLimit starting limit
+     * @param minLimit     lower bound of the limit
+     * @param maxLimit     upper bound of the limit
+     */
+    ConcurrencyLimiter(
+            @NotNull final String name,
+            final int initialLimit,
+            final int minLimit,
+            final int maxLimit) {
+        this.name = name;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+    }
+
+    /**
+     * Takes a slot, returns {@code false} if the request should be shed.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            final int current = inFlight.get();
+            if (current >= (int) limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the slot of a completed request.
+     *
+     * @param latencyNanos time since {@link #tryAcquire()}
+     */
+    void onSuccess(final long latencyNanos) {
+        inFlight.decrementAndGet();
+        windowLatency.add(latencyNanos);
+        windowSamples.increment();
+
+        final long start = windowStart.get();
+        final long now = System.nanoTime();
+        if (now - start >= WINDOW_NANOS
+                && windowSamples.sum() >= MIN_WINDOW_SAMPLES
+                && windowStart.compareAndSet(start, now)) {
+            update(windowLatency.sumThenReset(), windowSamples.sumThenReset());
+        }
+    }
+
+    /**
+     * Returns the slot of a request dropped downstream, e.g. rejected by a full queue.
+     */
+    void onDropped() {
+        inFlight.decrementAndGet();
+        synchronized (this) {
+            limit = Math.max(minLimit, limit / 2);
+        }
+    }
+
+    @NotNull
+    String name() {
+        return name;
+    }
+
+    int limit() {
+        return (int) limit;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    private synchronized void update(
+            final long latencySum,
+            final long samples) {
+        if (samples == 0) {
+            return;
+        }
+
+        final double current = (double) latencySum / samples;
+        if (baseline == 0.0) {
+            baseline = current;
+        } else {
+            baseline = baseline * (1 - BASELINE_SMOOTHING) + current * BASELINE_SMOOTHING;
+        }
+
+        final double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, TOLERANCE * baseline / current));
+        final double estimate = limit * gradient + Math.sqrt(limit);
+        final double smoothed = limit * (1 - LIMIT_SMOOTHING) + estimate * LIMIT_SMOOTHING;
+        limit = Math.max(minLimit, Math.min(maxLimit, smoothed));
+    }
+}
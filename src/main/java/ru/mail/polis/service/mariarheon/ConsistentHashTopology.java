@@ -0,0 +1,108 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * {@link Topology} assigning keys to nodes by consistent hashing.
+ * <p>
+ * Every node is placed on the hash ring at a number of virtual points,
+ * a key belongs to the node owning the first point at or after the hash of the key.
+ * Adding or removing a node moves only the keys adjacent to its points.
+ * Lookups are logarithmic in the number of points, the ring takes memory proportional to it.
+ */
+public final class ConsistentHashTopology implements Topology {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final String me;
+    private final Set<String> nodes;
+    private final int virtualNodes;
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+    /**
+     * Builds the ring.
+     *
+     * @param me           this node, must be one of the nodes
+     * @param nodes        all the nodes of the cluster
+     * @param virtualNodes points per node on the ring
+     */
+    public ConsistentHashTopology(
+            @NotNull final String me,
+            @NotNull final Set<String> nodes,
+            final int virtualNodes) {
+        if (!nodes.contains(me)) {
+            throw new IllegalArgumentException("Topology " + nodes + " doesn't contain " + me);
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("Virtual nodes must be positive");
+        }
+
+        this.me = me;
+        this.nodes = new TreeSet<>(nodes);
+        this.virtualNodes = virtualNodes;
+        for (final String node : this.nodes) {
+            for (int i = 0; i < virtualNodes; i++) {
+                final long point = HASH.hashString(node + '#' + i, StandardCharsets.UTF_8).asLong();
+                ring.putIfAbsent(point, node);
+            }
+        }
+    }
+
+    @NotNull
+    @Override
+    public String primaryFor(@NotNull final ByteBuffer key) {
+        final long hash = HASH.hashBytes(key.duplicate()).asLong();
+        final Map.Entry<Long, String> owner = ring.ceilingEntry(hash);
+        return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+    }
+
+    @NotNull
+    @Override
+    public List<String> replicasFor(
+            @NotNull final ByteBuffer key,
+            final int count) {
+        if (count > nodes.size()) {
+            throw new IllegalArgumentException("Only " + nodes.size() + " nodes for " + count + " replicas");
+        }
+
+        // Walk the ring clockwise from the key collecting distinct nodes
+        final long hash = HASH.hashBytes(key.duplicate()).asLong();
+        final Set<String> result = new LinkedHashSet<>();
+        for (final String node : Iterables.concat(ring.tailMap(hash, true).values(), ring.headMap(hash).values())) {
+            if (result.add(node) && result.size() == count) {
+                break;
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    @Override
+    public boolean isMe(@NotNull final String node) {
+        return me.equals(node);
+    }
+
+    @NotNull
+    @Override
+    public Set<String> all() {
+        return nodes;
+    }
+
+    @NotNull
+    @Override
+    public Topology withNodes(@NotNull final Set<String> nodes) {
+        return new ConsistentHashTopology(me, nodes, virtualNodes);
+    }
+}
@@ -0,0 +1,154 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Local replica of the entities shared by all the service front-ends.
+ * <p>
+ * Entities are kept in the {@link DAO} as timestamped {@link Value}s, removal writes a tombstone.
+ * Reads go through the {@link ValueCache} and the {@link GetCoalescer},
+ * writes go to the {@link DAO} and invalidate both.
+ * The {@link MerkleTree}s {@link #track tracked} for anti-entropy are kept up to date with the writes.
+ */
+final class EntityStorage {
+    private static final int AVERAGE_ENTRY_SIZE = 1024;
+
+    private final DAO dao;
+    private final GetCoalescer coalescer;
+    private final ValueCache cache;
+    private final List<MerkleTree> trees = new CopyOnWriteArrayList<>();
+
+    EntityStorage(
+            @NotNull final DAO dao,
+            final long cacheSize) {
+        this.dao = dao;
+        this.coalescer = new GetCoalescer(dao);
+        this.cache = new ValueCache(cacheSize, AVERAGE_ENTRY_SIZE);
+    }
+
+    /**
+     * Looks the local version up, {@link Value#absent()} if the key was never written.
+     */
+    @NotNull
+    CompletableFuture<Value> get(@NotNull final ByteBuffer key) {
+        final ByteBuffer cached = cache.get(key);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(Value.fromBuffer(cached));
+        }
+
+        final long stamp = cache.stamp(key);
+        return coalescer.get(key).handle((stored, error) -> {
+            if (error == null) {
+                cache.put(key, stored, stamp);
+                return Value.fromBuffer(stored);
+            }
+
+            final Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof NoSuchElementException) {
+                return Value.absent();
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer data,
+            final long timestamp) throws IOException {
+        dao.upsert(key.duplicate(), Value.present(data, timestamp).toBuffer());
+        invalidate(key);
+    }
+
+    void remove(
+            @NotNull final ByteBuffer key,
+            final long timestamp) throws IOException {
+        dao.upsert(key.duplicate(), Value.tombstone(timestamp).toBuffer());
+        invalidate(key);
+    }
+
+    /**
+     * Stores the version unless a newer one is already stored.
+     * <p>
+     * The check is not atomic with concurrent writes, it only keeps delayed repairs
+     * from rolling back the versions written after them.
+     *
+     * @return whether the version was stored
+     */
+    boolean repair(
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) throws IOException {
+        final Value stored;
+        try {
+            stored = get(key).join();
+        } catch (CompletionException e) {
+            throw new IOException("Can't read stored version", e.getCause());
+        }
+        if (stored.timestamp() >= value.timestamp()) {
+            return false;
+        }
+
+        dao.upsert(key.duplicate(), value.toBuffer());
+        invalidate(key);
+        return true;
+    }
+
+    /**
+     * Starts invalidating the tree on writes, it must be {@link #refresh refreshed} through the storage.
+     */
+    void track(@NotNull final MerkleTree tree) {
+        trees.add(tree);
+    }
+
+    /**
+     * Brings the tracked tree up to date with the stored versions.
+     */
+    @NotNull
+    MerkleTree refresh(@NotNull final MerkleTree tree) throws IOException {
+        tree.refresh(dao);
+        return tree;
+    }
+
+    /**
+     * Iterates over the stored versions in the range of the Merkle tree leaf.
+     */
+    @NotNull
+    Iterator<Record> leaf(final int leaf) throws IOException {
+        return range(MerkleTree.leafStart(leaf), MerkleTree.leafEnd(leaf));
+    }
+
+    /**
+     * Iterates over the stored versions, tombstones included, from the first key up to the last one exclusive.
+     */
+    @NotNull
+    Iterator<Record> range(
+            @NotNull final ByteBuffer from,
+            @Nullable final ByteBuffer to) throws IOException {
+        return dao.range(from, to);
+    }
+
+    @NotNull
+    ValueCache cache() {
+        return cache;
+    }
+
+    private void invalidate(@NotNull final ByteBuffer key) {
+        // Detach the in-flight lookup first, so nobody joins it with a fresh cache stamp
+        coalescer.invalidate(key);
+        cache.invalidate(key);
+        for (final MerkleTree tree : trees) {
+            tree.invalidate(key);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Count-Min sketch estimating how often keys were seen recently.
+ * <p>
+ * Counters saturate at 15 and are all halved once the number of recorded
+ * events reaches ten times the width, so the estimate follows the recent
+ * popularity rather than the all-time one.
+ * Not thread-safe, guarded by the owning cache.
+ */
+final class FrequencySketch {
+    private static final int DEPTH = 4;
+    private static final int MAX_COUNT = 15;
+    private static final int[] SEEDS = {0x97cb3127, 0x4cf5ad43, 0x9e3779b9, 0x7feb352d};
+
+    private final byte[][] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * Creates a sketch for approximately the given number of distinct keys.
+     */
+    FrequencySketch(final int expectedKeys) {
+        final int width = Integer.highestOneBit(Math.max(expectedKeys, 16) - 1) << 1;
+        this.table = new byte[DEPTH][width];
+        this.mask = width - 1;
+        this.sampleSize = 10 * width;
+    }
+
+    void increment(@NotNull final Object key) {
+        final int hash = key.hashCode();
+        boolean added = false;
+        for (int i = 0; i < DEPTH; i++) {
+            final int index = index(hash, i);
+            if (table[i][index] < MAX_COUNT) {
+                table[i][index]++;
+                added = true;
+            }
+        }
+
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    int frequency(@NotNull final Object key) {
+        final int hash = key.hashCode();
+        int result = MAX_COUNT;
+        for (int i = 0; i < DEPTH; i++) {
+            result = Math.min(result, table[i][index(hash, i)]);
+        }
+        return result;
+    }
+
+    private int index(
+            final int hash,
+            final int row) {
+        int h = (hash ^ SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private void reset() {
+        for (final byte[] row : table) {
+            for (int i = 0; i < row.length; i++) {
+                row[i] >>= 1;
+            }
+        }
+        additions /= 2;
+    }
+}
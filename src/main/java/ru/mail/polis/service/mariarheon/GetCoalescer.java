@@ -0,0 +1,60 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.DAO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Single-flight wrapper around {@link DAO#get(ByteBuffer)}.
+ * <p>
+ * Concurrent lookups of the same key share one in-flight {@link DAO} call:
+ * the first caller performs the lookup, the rest subscribe to its result.
+ * A write to the key detaches the in-flight lookup, so reads started after
+ * the write never observe the value read before it.
+ */
+final class GetCoalescer {
+    private final DAO dao;
+    private final ConcurrentMap<ByteBuffer, CompletableFuture<ByteBuffer>> inFlight = new ConcurrentHashMap<>();
+
+    GetCoalescer(@NotNull final DAO dao) {
+        this.dao = dao;
+    }
+
+    /**
+     * Looks the key up or joins a lookup already in progress.
+     * <p>
+     * The caller that starts the lookup performs it synchronously, joiners return immediately.
+     * The future completes exceptionally with {@link NoSuchElementException} if there is no such key.
+     * Returned buffers are shared between callers and must be read through {@link ByteBuffer#duplicate()}.
+     */
+    @NotNull
+    CompletableFuture<ByteBuffer> get(@NotNull final ByteBuffer key) {
+        final CompletableFuture<ByteBuffer> fresh = new CompletableFuture<>();
+        final CompletableFuture<ByteBuffer> existing = inFlight.putIfAbsent(key, fresh);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            fresh.complete(dao.get(key.duplicate()));
+        } catch (IOException | RuntimeException e) {
+            fresh.completeExceptionally(e);
+        } finally {
+            inFlight.remove(key, fresh);
+        }
+        return fresh;
+    }
+
+    /**
+     * Detaches the in-flight lookup of the key, must be called once a write to the key is applied.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        inFlight.remove(key);
+    }
+}
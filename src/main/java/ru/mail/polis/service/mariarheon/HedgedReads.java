@@ -0,0 +1,252 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.mariarheon.LatencyHistogram;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Quorum reads with speculative requests to the spare replicas.
+ * <p>
+ * A read goes to {@code ack} replicas first. A replica failing is replaced by the next spare at once,
+ * a replica not answering within the hedge delay gets a spare racing it, the first {@code ack} answers win.
+ * The delay adapts to the observed 95th percentile of the replica latencies,
+ * measured over the last {@link #WINDOW_NANOS}. Hedges are limited by a budget:
+ * every read earns a share of a hedge and unspent shares are capped at a small burst,
+ * so hedges never exceed the configured percentage of reads.
+ */
+final class HedgedReads implements Closeable {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_SAMPLES = 20;
+    private static final long MIN_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final long DEFAULT_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int HEDGE_COST = 100;
+    private static final int BURST = 10 * HEDGE_COST;
+
+    private final int budgetPercent;
+    private final AtomicLong credits = new AtomicLong();
+    private final Map<String, Latency> latencies = new ConcurrentHashMap<>();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder denied = new LongAdder();
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Creates the reads.
+     *
+     * @param budgetPercent maximum share of reads hedged, in percent
+     */
+    HedgedReads(final int budgetPercent) {
+        if (budgetPercent < 0 || budgetPercent > 100) {
+            throw new IllegalArgumentException("Hedge budget must be within [0, 100]%");
+        }
+
+        this.budgetPercent = budgetPercent;
+        this.timer = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("hedge-timer")
+                        .setDaemon(true)
+                        .build());
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Reads from the replicas until {@code ack} of them answer.
+     *
+     * @param nodes   replicas in the order of preference
+     * @param ack     number of answers required
+     * @param read    reads from a single replica
+     * @param started filled with the reads actually sent
+     */
+    @NotNull
+    CompletableFuture<List<Value>> read(
+            @NotNull final List<String> nodes,
+            final int ack,
+            @NotNull final Function<String, CompletableFuture<Value>> read,
+            @NotNull final Map<String, CompletableFuture<Value>> started) {
+        credits.accumulateAndGet(budgetPercent, (current, earned) -> Math.min(BURST, current + earned));
+
+        final Read request = new Read(nodes, ack, read, started);
+        long delay = 0;
+        for (int i = 0; i < ack; i++) {
+            final String node = request.next();
+            delay = Math.max(delay, delayNanos(node));
+            request.send(node);
+        }
+
+        if (ack < nodes.size() && !request.result.isDone()) {
+            final ScheduledFuture<?> hedge = timer.schedule(request::hedge, delay, TimeUnit.NANOSECONDS);
+            request.result.whenComplete((values, error) -> hedge.cancel(false));
+        }
+        return request.result;
+    }
+
+    long hedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Returns the number of hedges not sent for the lack of the budget.
+     */
+    long denied() {
+        return denied.sum();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    private long delayNanos(@NotNull final String node) {
+        final Latency latency = latencies.get(node);
+        return latency == null ? DEFAULT_DELAY_NANOS : latency.p95Nanos;
+    }
+
+    private boolean tryHedge() {
+        while (true) {
+            final long current = credits.get();
+            if (current < HEDGE_COST) {
+                return false;
+            }
+            if (credits.compareAndSet(current, current - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+
+    private final class Read {
+        private final List<String> nodes;
+        private final int ack;
+        private final Function<String, CompletableFuture<Value>> read;
+        private final Map<String, CompletableFuture<Value>> started;
+        private final CompletableFuture<List<Value>> result = new CompletableFuture<>();
+        private final List<Value> values;
+        private int sent;
+        private int failures;
+
+        Read(
+                @NotNull final List<String> nodes,
+                final int ack,
+                @NotNull final Function<String, CompletableFuture<Value>> read,
+                @NotNull final Map<String, CompletableFuture<Value>> started) {
+            this.nodes = nodes;
+            this.ack = ack;
+            this.read = read;
+            this.started = started;
+            this.values = new ArrayList<>(ack);
+        }
+
+        @Nullable
+        synchronized String next() {
+            return sent < nodes.size() ? nodes.get(sent++) : null;
+        }
+
+        synchronized boolean hasSpare() {
+            return sent < nodes.size();
+        }
+
+        void send(@NotNull final String node) {
+            final long start = System.nanoTime();
+            final CompletableFuture<Value> reply = read.apply(node);
+            started.put(node, reply);
+            reply.whenComplete((value, error) -> {
+                if (error == null) {
+                    latencies.computeIfAbsent(node, n -> new Latency()).record(System.nanoTime() - start);
+                    onSuccess(value);
+                } else {
+                    onFailure(error);
+                }
+            });
+        }
+
+        void hedge() {
+            if (result.isDone() || !hasSpare()) {
+                return;
+            }
+            if (!tryHedge()) {
+                denied.increment();
+                return;
+            }
+
+            final String node = next();
+            if (node != null) {
+                hedges.increment();
+                send(node);
+            }
+        }
+
+        private void onSuccess(@NotNull final Value value) {
+            final List<Value> complete;
+            synchronized (this) {
+                if (values.size() == ack) {
+                    return;
+                }
+                values.add(value);
+                complete = values.size() == ack ? new ArrayList<>(values) : null;
+            }
+            if (complete != null) {
+                result.complete(complete);
+            }
+        }
+
+        private void onFailure(@NotNull final Throwable error) {
+            final boolean failed;
+            final String spare;
+            synchronized (this) {
+                failures++;
+                failed = failures > nodes.size() - ack;
+                spare = failed ? null : next();
+            }
+
+            if (spare != null) {
+                send(spare);
+            } else if (failed) {
+                result.completeExceptionally(
+                        new IllegalStateException("Not enough replicas: " + ack + " required", error));
+            }
+        }
+    }
+
+    /**
+     * Latency of a replica over a tumbling window, the percentile of the last full window is used.
+     */
+    private static final class Latency {
+        private volatile LatencyHistogram window = new LatencyHistogram();
+        private volatile long windowStart = System.nanoTime();
+        private volatile long p95Nanos = DEFAULT_DELAY_NANOS;
+
+        void record(final long nanos) {
+            window.record(nanos);
+            final long now = System.nanoTime();
+            if (now - windowStart > WINDOW_NANOS) {
+                roll(now);
+            }
+        }
+
+        private synchronized void roll(final long now) {
+            if (now - windowStart <= WINDOW_NANOS) {
+                return;
+            }
+
+            final LatencyHistogram full = window;
+            window = new LatencyHistogram();
+            windowStart = now;
+            if (full.count() >= MIN_SAMPLES) {
+                p95Nanos = Math.max(MIN_DELAY_NANOS, TimeUnit.MICROSECONDS.toNanos(full.quantileMicros(0.95)));
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the writes an unreachable replica missed and replays them once it responds again.
+ * <p>
+ * Hints are kept in memory in a bounded queue per node, hints over the bound are dropped
+ * and left to read repair. Replay checks the node is alive and sends the hints through
+ * a {@link WriteBatcher}, a request per batch, applied as repairs,
+ * so a hint never replaces a version written after it. The batches are cut by the request body limit
+ * as the replica writes are, so a backlog of large values drains too.
+ */
+final class HintedHandoff implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(HintedHandoff.class);
+    private static final int BATCH_SIZE = 256;
+    // Replay flushes every batch itself once it is queued, the linger must not split it meanwhile
+    private static final long LINGER_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final Peers peers;
+    private final WriteBatcher batcher;
+    private final int capacity;
+    private final Map<String, Deque<Hint>> hints = new ConcurrentHashMap<>();
+    private final Set<String> replaying = ConcurrentHashMap.newKeySet();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("hinted-handoff")
+                    .setDaemon(true)
+                    .build());
+
+    /**
+     * Operations on the other nodes the hints are replayed with.
+     */
+    interface Peers {
+        @NotNull
+        CompletableFuture<Boolean> isAlive(@NotNull String node);
+
+        /**
+         * Sends the encoded batch of versions to be stored as repairs, completes with the statuses of the versions.
+         *
+         * @see WriteBatcher
+         */
+        @NotNull
+        CompletableFuture<byte[]> repairs(
+                @NotNull String node,
+                @NotNull byte[] batch);
+    }
+
+    /**
+     * Creates the handoff, call {@link #start(long)} to replay the hints periodically.
+     *
+     * @param peers    the other nodes
+     * @param capacity maximum number of hints kept per node
+     */
+    HintedHandoff(
+            @NotNull final Peers peers,
+            final int capacity) {
+        this.peers = peers;
+        this.batcher = new WriteBatcher(peers::repairs, BATCH_SIZE, WriteBatcher.MAX_BYTES, LINGER_NANOS);
+        this.capacity = capacity;
+    }
+
+    void start(final long periodMs) {
+        scheduler.scheduleWithFixedDelay(this::replay, periodMs, periodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Remembers the version the node failed to store.
+     */
+    void hint(
+            @NotNull final String node,
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final Deque<Hint> queue = hints.computeIfAbsent(node, n -> new LinkedBlockingDeque<>(capacity));
+        if (!queue.offerLast(new Hint(key, value))) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Starts replaying the hints to every live node unless it is already being replayed to.
+     */
+    void replay() {
+        for (final Map.Entry<String, Deque<Hint>> entry : hints.entrySet()) {
+            final String node = entry.getKey();
+            final Deque<Hint> queue = entry.getValue();
+            if (queue.isEmpty() || !replaying.add(node)) {
+                continue;
+            }
+
+            peers.isAlive(node)
+                    .thenCompose(alive -> alive ? replay(node, queue) : CompletableFuture.completedFuture(null))
+                    .whenComplete((ignored, error) -> {
+                        if (error != null) {
+                            log.debug("Can't replay hints to {}", node, error);
+                        }
+                        replaying.remove(node);
+                    });
+        }
+    }
+
+    long pending() {
+        long result = 0;
+        for (final Deque<Hint> queue : hints.values()) {
+            result += queue.size();
+        }
+        return result;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long replayed() {
+        return replayed.sum();
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        batcher.close();
+    }
+
+    /**
+     * Sends the hints batch by batch until the queue is empty or the node fails again.
+     */
+    @NotNull
+    private CompletableFuture<Void> replay(
+            @NotNull final String node,
+            @NotNull final Deque<Hint> queue) {
+        final List<CompletableFuture<Void>> batch = new ArrayList<>(BATCH_SIZE);
+        final AtomicInteger failures = new AtomicInteger();
+        while (batch.size() < BATCH_SIZE) {
+            final Hint sent = queue.pollFirst();
+            if (sent == null) {
+                break;
+            }
+            batch.add(batcher.write(node, sent.key, sent.value).handle((ignored, error) -> {
+                if (error == null) {
+                    replayed.increment();
+                } else {
+                    failures.incrementAndGet();
+                    if (!queue.offerFirst(sent)) {
+                        dropped.increment();
+                    }
+                }
+                return null;
+            }));
+        }
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        batcher.flush(node);
+
+        return CompletableFuture.allOf(batch.toArray(new CompletableFuture<?>[0]))
+                .thenCompose(ignored -> failures.get() == 0
+                        ? replay(node, queue)
+                        : CompletableFuture.completedFuture(null));
+    }
+
+    private static final class Hint {
+        private final ByteBuffer key;
+        private final Value value;
+
+        Hint(
+                @NotNull final ByteBuffer key,
+                @NotNull final Value value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
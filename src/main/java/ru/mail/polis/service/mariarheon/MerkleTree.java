@@ -0,0 +1,232 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+import ru.mail.polis.dao.DAO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Predicate;
+
+/**
+ * Merkle tree over the key space of the local replica.
+ * <p>
+ * The key space is split into {@link #LEAVES} ranges by the leading {@link #LEAF_BITS} bits of the key,
+ * numbered in the signed byte order of {@link ByteBuffer#compareTo(ByteBuffer)} the {@link DAO} sorts by.
+ * A leaf hash is the sum of the hashes of its records, so it doesn't depend on the scan order,
+ * inner nodes hash their children. Writes only mark their leaf dirty,
+ * {@link #refresh(DAO)} rescans just the dirty ranges, so keeping the tree current
+ * costs in proportion to the keys written rather than to the data stored.
+ * <p>
+ * Two replicas holding the same versions have equal trees, {@link #diff(MerkleTree)}
+ * descends only into the differing subtrees to find the ranges to repair.
+ * A tree may cover just the keys matching a filter, e.g. the keys two replicas share.
+ */
+final class MerkleTree {
+    static final int LEAF_BITS = 12;
+    static final int LEAVES = 1 << LEAF_BITS;
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int PREFIX_BYTES = (LEAF_BITS + Byte.SIZE - 1) / Byte.SIZE;
+    private static final int PREFIX_SHIFT = PREFIX_BYTES * Byte.SIZE - LEAF_BITS;
+    private static final int SIGN = 0x80;
+
+    // Heap layout: the root at 1, children of i at 2i and 2i + 1, leaves from LEAVES
+    private final long[] nodes;
+    private final Predicate<ByteBuffer> keys;
+    private final AtomicLongArray dirty = new AtomicLongArray(LEAVES / Long.SIZE);
+
+    /**
+     * Creates the tree of all the keys.
+     */
+    MerkleTree() {
+        this(key -> true);
+    }
+
+    /**
+     * Creates the tree of the keys matching the filter with all the leaves dirty,
+     * the first {@link #refresh(DAO)} scans everything.
+     */
+    MerkleTree(@NotNull final Predicate<ByteBuffer> keys) {
+        this.nodes = new long[2 * LEAVES];
+        this.keys = keys;
+        for (int i = 0; i < dirty.length(); i++) {
+            dirty.set(i, -1L);
+        }
+    }
+
+    private MerkleTree(@NotNull final long[] nodes) {
+        this.nodes = nodes;
+        this.keys = key -> true;
+    }
+
+    /**
+     * Returns the leaf the key belongs to.
+     */
+    static int leaf(@NotNull final ByteBuffer key) {
+        // Flipping the sign bit turns the signed order into the unsigned one, missing bytes sort first
+        int prefix = 0;
+        for (int i = 0; i < PREFIX_BYTES; i++) {
+            final int position = key.position() + i;
+            final int b = position < key.limit() ? (key.get(position) ^ SIGN) & 0xFF : 0;
+            prefix = prefix << Byte.SIZE | b;
+        }
+        return prefix >>> PREFIX_SHIFT;
+    }
+
+    /**
+     * Returns the smallest key of the leaf.
+     */
+    @NotNull
+    static ByteBuffer leafStart(final int leaf) {
+        final byte[] prefix = new byte[PREFIX_BYTES];
+        final int bits = leaf << PREFIX_SHIFT;
+        for (int i = 0; i < PREFIX_BYTES; i++) {
+            prefix[i] = (byte) ((bits >>> ((PREFIX_BYTES - 1 - i) * Byte.SIZE)) ^ SIGN);
+        }
+
+        // Trailing smallest bytes are dropped, the shorter key sorts first and belongs to the same leaf
+        int length = PREFIX_BYTES;
+        while (length > 0 && prefix[length - 1] == Byte.MIN_VALUE) {
+            length--;
+        }
+        return ByteBuffer.wrap(Arrays.copyOf(prefix, length));
+    }
+
+    /**
+     * Returns the first key after the leaf, {@code null} for the last one.
+     */
+    @Nullable
+    static ByteBuffer leafEnd(final int leaf) {
+        return leaf + 1 == LEAVES ? null : leafStart(leaf + 1);
+    }
+
+    /**
+     * Marks the range of the key for rescanning, must be called after the key is written.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        final int leaf = leaf(key);
+        final long bit = 1L << (leaf % Long.SIZE);
+        final int word = leaf / Long.SIZE;
+        if ((dirty.get(word) & bit) == 0) {
+            markDirty(word, bit);
+        }
+    }
+
+    /**
+     * Rescans the dirty ranges of the storage and updates the hashes above them.
+     */
+    synchronized void refresh(@NotNull final DAO dao) throws IOException {
+        for (int word = 0; word < dirty.length(); word++) {
+            // Clear before the scan, so writes landing during the scan leave the leaf dirty
+            long bits = dirty.getAndSet(word, 0L);
+            while (bits != 0) {
+                final int leaf = word * Long.SIZE + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                try {
+                    rehash(dao, leaf);
+                } catch (IOException e) {
+                    // The failed leaf and the ones not scanned yet were cleared together
+                    markDirty(word, bits | 1L << (leaf % Long.SIZE));
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the leaves whose hashes differ from the other tree.
+     */
+    @NotNull
+    List<Integer> diff(@NotNull final MerkleTree other) {
+        final List<Integer> result = new ArrayList<>();
+        final long[] theirs = other.snapshot();
+        final long[] ours = snapshot();
+        diff(ours, theirs, 1, result);
+        return result;
+    }
+
+    /**
+     * Serializes the hashes of the tree.
+     */
+    @NotNull
+    ByteBuffer toBuffer() {
+        final long[] snapshot = snapshot();
+        final ByteBuffer result = ByteBuffer.allocate(snapshot.length * Long.BYTES);
+        result.asLongBuffer().put(snapshot);
+        return result;
+    }
+
+    @NotNull
+    static MerkleTree fromBuffer(@NotNull final ByteBuffer buffer) {
+        if (buffer.remaining() != 2 * LEAVES * Long.BYTES) {
+            throw new IllegalArgumentException("Unexpected tree size " + buffer.remaining());
+        }
+        final long[] nodes = new long[2 * LEAVES];
+        buffer.duplicate().asLongBuffer().get(nodes);
+        return new MerkleTree(nodes);
+    }
+
+    private void markDirty(
+            final int word,
+            final long bits) {
+        dirty.getAndAccumulate(word, bits, (current, mask) -> current | mask);
+    }
+
+    private synchronized long[] snapshot() {
+        return nodes.clone();
+    }
+
+    private void rehash(
+            @NotNull final DAO dao,
+            final int leaf) throws IOException {
+        long hash = 0;
+        final Iterator<Record> records = dao.range(leafStart(leaf), leafEnd(leaf));
+        while (records.hasNext()) {
+            final Record record = records.next();
+            if (!keys.test(record.getKey())) {
+                continue;
+            }
+            hash += HASH.newHasher()
+                    .putInt(record.getKey().remaining())
+                    .putBytes(record.getKey().duplicate())
+                    .putBytes(record.getValue().duplicate())
+                    .hash()
+                    .asLong();
+        }
+
+        int node = LEAVES + leaf;
+        nodes[node] = hash;
+        for (node /= 2; node > 0; node /= 2) {
+            nodes[node] = HASH.newHasher()
+                    .putLong(nodes[2 * node])
+                    .putLong(nodes[2 * node + 1])
+                    .hash()
+                    .asLong();
+        }
+    }
+
+    private static void diff(
+            @NotNull final long[] ours,
+            @NotNull final long[] theirs,
+            final int node,
+            @NotNull final List<Integer> result) {
+        if (ours[node] == theirs[node]) {
+            return;
+        }
+        if (node >= LEAVES) {
+            result.add(node - LEAVES);
+            return;
+        }
+        diff(ours, theirs, 2 * node, result);
+        diff(ours, theirs, 2 * node + 1, result);
+    }
+}
@@ -0,0 +1,49 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Combinators over replica responses.
+ */
+final class Quorum {
+    private Quorum() {
+        // Not instantiable
+    }
+
+    /**
+     * Completes with the first {@code ack} successful results as soon as they arrive,
+     * without waiting for the rest, or fails once {@code ack} successes are no longer possible.
+     */
+    @NotNull
+    static <T> CompletableFuture<List<T>> atLeast(
+            @NotNull final List<CompletableFuture<T>> futures,
+            final int ack) {
+        final CompletableFuture<List<T>> result = new CompletableFuture<>();
+        final List<T> successes = new ArrayList<>(ack);
+        final AtomicInteger failures = new AtomicInteger();
+        final int maxFailures = futures.size() - ack;
+        for (final CompletableFuture<T> future : futures) {
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    synchronized (successes) {
+                        if (successes.size() < ack) {
+                            successes.add(value);
+                            if (successes.size() == ack) {
+                                result.complete(new ArrayList<>(successes));
+                            }
+                        }
+                    }
+                } else if (failures.incrementAndGet() == maxFailures + 1) {
+                    result.completeExceptionally(
+                            new IllegalStateException("Not enough replicas: " + ack + " required", error));
+                }
+            });
+        }
+        return result;
+    }
+}
@@ -0,0 +1,92 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * K-way merge of the sorted replica streams of stored {@link Value}s.
+ * <p>
+ * Holds a single record per stream, every key comes out once with its most recent version.
+ */
+final class RangeMerge implements Iterator<Record> {
+    private static final Comparator<Source> ORDER = Comparator
+            .comparing((Source source) -> source.current)
+            .thenComparingInt(source -> source.index);
+
+    private final PriorityQueue<Source> queue;
+
+    RangeMerge(@NotNull final List<? extends Iterator<Record>> streams) {
+        this.queue = new PriorityQueue<>(Math.max(1, streams.size()), ORDER);
+        for (int i = 0; i < streams.size(); i++) {
+            final Iterator<Record> stream = streams.get(i);
+            if (stream.hasNext()) {
+                queue.add(new Source(i, stream));
+            }
+        }
+    }
+
+    /**
+     * Drops removed entities and unwraps the data of the rest.
+     */
+    @NotNull
+    static Iterator<Record> present(@NotNull final Iterator<Record> stored) {
+        return Iterators.transform(
+                Iterators.filter(stored, record -> Value.fromBuffer(record.getValue()).isPresent()),
+                record -> Record.of(record.getKey(), Value.fromBuffer(record.getValue()).data()));
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !queue.isEmpty();
+    }
+
+    @Override
+    public Record next() {
+        final Source head = queue.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+
+        Record latest = head.current;
+        long timestamp = Value.fromBuffer(latest.getValue()).timestamp();
+        advance(head);
+        while (!queue.isEmpty() && queue.peek().current.getKey().equals(latest.getKey())) {
+            final Source same = queue.poll();
+            final long other = Value.fromBuffer(same.current.getValue()).timestamp();
+            if (other > timestamp) {
+                latest = same.current;
+                timestamp = other;
+            }
+            advance(same);
+        }
+        return latest;
+    }
+
+    private void advance(@NotNull final Source source) {
+        if (source.stream.hasNext()) {
+            source.current = source.stream.next();
+            queue.add(source);
+        }
+    }
+
+    private static final class Source {
+        private final int index;
+        private final Iterator<Record> stream;
+        private Record current;
+
+        Source(
+                final int index,
+                @NotNull final Iterator<Record> stream) {
+            this.index = index;
+            this.stream = stream;
+            this.current = stream.next();
+        }
+    }
+}
@@ -0,0 +1,377 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.Record;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves the data to the nodes that become its replicas after a topology change.
+ * <p>
+ * Every key gaining replicas is sent by a single donor, the first of its previous replicas
+ * still in the cluster, so each new replica receives the key once whichever nodes run the rebalancing.
+ * The keys are spooled to a file per receiving node in the {@link AntiEntropy} frame format,
+ * then the files go out with {@link FileChannel#transferTo} straight from the page cache to the socket,
+ * the data never passes through the heap of the sender again.
+ * <p>
+ * Files are sent in slices of about {@link #SLICE_SIZE} bytes cut on frame boundaries,
+ * every slice is a request the receiver applies as repairs, never rolling back the newer versions.
+ * A version whose frame exceeds the request body limit of the receiving server can't be sent
+ * and is skipped, left to anti-entropy. Every receiving node is sent to on its own,
+ * a node failing doesn't keep the others from receiving their keys.
+ */
+final class Rebalancer implements Closeable {
+    static final String PATH = "/v0/rebalance";
+
+    private static final Logger log = LoggerFactory.getLogger(Rebalancer.class);
+    private static final int SLICE_SIZE = 60 * 1024;
+    // Request body limit of one-nio HttpSession
+    private static final int MAX_BODY_SIZE = 64 * 1024;
+    private static final int MAX_LINE = 8 * 1024;
+
+    private final Topology topology;
+    private final EntityStorage storage;
+    private final int replicas;
+    private final int timeoutMs;
+    private final LongAdder moved = new LongAdder();
+    private final LongAdder slices = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("rebalancer")
+                    .setDaemon(true)
+                    .build());
+
+    /**
+     * Creates the rebalancer of the local replica.
+     *
+     * @param topology  the cluster as it is now
+     * @param storage   the local replica
+     * @param replicas  number of replicas every key is kept by
+     * @param timeoutMs deadline of a single slice
+     */
+    Rebalancer(
+            @NotNull final Topology topology,
+            @NotNull final EntityStorage storage,
+            final int replicas,
+            final int timeoutMs) {
+        this.topology = topology;
+        this.storage = storage;
+        this.replicas = replicas;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * Starts sending the keys this node donates since the cluster consisted of the nodes.
+     *
+     * @return the number of versions sent
+     */
+    @NotNull
+    CompletableFuture<Long> start(@NotNull final Set<String> previous) {
+        return CompletableFuture.supplyAsync(() -> {
+            final String me = me();
+            if (!previous.contains(me)) {
+                // Nothing to give away, this node has just joined
+                return 0L;
+            }
+            try {
+                return rebalance(topology.withNodes(previous));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Sends the keys this node donates since the previous topology.
+     *
+     * @return the number of versions sent
+     * @throws IOException if sending to any of the nodes failed, after trying all of them
+     */
+    long rebalance(@NotNull final Topology previous) throws IOException {
+        final Map<String, Spool> spools = new HashMap<>();
+        try {
+            final Iterator<Record> records = storage.range(ByteBuffer.allocate(0), null);
+            while (records.hasNext()) {
+                final Record record = records.next();
+                for (final String node : gaining(previous, record.getKey())) {
+                    Spool spool = spools.get(node);
+                    if (spool == null) {
+                        spool = new Spool();
+                        spools.put(node, spool);
+                    }
+                    spool.append(AntiEntropy.frame(record));
+                }
+            }
+
+            long sent = 0;
+            final Map<String, IOException> failed = new HashMap<>();
+            for (final Map.Entry<String, Spool> entry : spools.entrySet()) {
+                final String node = entry.getKey();
+                final Spool spool = entry.getValue();
+                if (spool.oversized > 0) {
+                    log.warn("Skipped {} versions over {} bytes for {}", spool.oversized, MAX_BODY_SIZE, node);
+                    skipped.add(spool.oversized);
+                }
+                try {
+                    spool.transfer(node);
+                } catch (IOException e) {
+                    log.error("Can't send {} versions to {}", spool.records, node, e);
+                    failed.put(node, e);
+                    continue;
+                }
+                log.info("Sent {} versions in {} slices to {}", spool.records, spool.slices(), node);
+                sent += spool.records;
+                moved.add(spool.records);
+            }
+
+            if (!failed.isEmpty()) {
+                final IOException e = new IOException("Can't send to " + failed.keySet() + ", sent " + sent);
+                failed.values().forEach(e::addSuppressed);
+                throw e;
+            }
+            return sent;
+        } finally {
+            for (final Spool spool : spools.values()) {
+                spool.close();
+            }
+        }
+    }
+
+    /**
+     * Returns the new replicas of the key this node has to send it to.
+     */
+    @NotNull
+    List<String> gaining(
+            @NotNull final Topology previous,
+            @NotNull final ByteBuffer key) {
+        final List<String> before = previous.replicasFor(key, Math.min(replicas, previous.size()));
+        String donor = null;
+        for (final String node : before) {
+            if (topology.all().contains(node)) {
+                donor = node;
+                break;
+            }
+        }
+        if (donor == null || !topology.isMe(donor)) {
+            return List.of();
+        }
+
+        final List<String> result = new ArrayList<>();
+        for (final String node : topology.replicasFor(key, Math.min(replicas, topology.size()))) {
+            if (!before.contains(node)) {
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of versions sent to the new replicas.
+     */
+    long moved() {
+        return moved.sum();
+    }
+
+    long slices() {
+        return slices.sum();
+    }
+
+    /**
+     * Returns the number of versions too large to be sent.
+     */
+    long skipped() {
+        return skipped.sum();
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    @NotNull
+    private String me() {
+        for (final String node : topology.all()) {
+            if (topology.isMe(node)) {
+                return node;
+            }
+        }
+        throw new IllegalStateException("Topology doesn't contain this node");
+    }
+
+    /**
+     * Frames spooled for a single node with the offsets the slices end at.
+     */
+    private final class Spool implements Closeable {
+        private final FileChannel file;
+        private final ByteBuffer buffer = ByteBuffer.allocate(SLICE_SIZE);
+        private final List<Long> ends = new ArrayList<>();
+        private long records;
+        private long oversized;
+
+        Spool() throws IOException {
+            final Path path = Files.createTempFile("rebalance", ".slices");
+            this.file = FileChannel.open(
+                    path,
+                    StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        void append(@NotNull final byte[] frame) throws IOException {
+            if (frame.length > MAX_BODY_SIZE) {
+                // The receiver would reject the request
+                oversized++;
+                return;
+            }
+            if (buffer.position() > 0 && buffer.remaining() < frame.length) {
+                flush();
+            }
+            records++;
+            if (frame.length > buffer.capacity()) {
+                // Doesn't fit any slice, but fits the body limit: goes alone
+                writeFully(ByteBuffer.wrap(frame));
+                ends.add(file.position());
+            } else {
+                buffer.put(frame);
+            }
+        }
+
+        int slices() {
+            return ends.size();
+        }
+
+        void transfer(@NotNull final String node) throws IOException {
+            if (buffer.position() > 0) {
+                flush();
+            }
+
+            final URI uri = URI.create(node);
+            try (SocketChannel socket = SocketChannel.open()) {
+                socket.socket().connect(new InetSocketAddress(uri.getHost(), uri.getPort()), timeoutMs);
+                socket.socket().setSoTimeout(timeoutMs);
+                socket.socket().setTcpNoDelay(true);
+                final InputStream in = socket.socket().getInputStream();
+                long start = 0;
+                for (final long end : ends) {
+                    send(socket, uri, node, start, end - start);
+                    expectOk(in);
+                    slices.increment();
+                    start = end;
+                }
+            }
+        }
+
+        private void send(
+                @NotNull final SocketChannel socket,
+                @NotNull final URI uri,
+                @NotNull final String node,
+                final long position,
+                final long length) throws IOException {
+            final String header = "POST " + PATH + " HTTP/1.1\r\n"
+                    + "Host: " + uri.getHost() + ':' + uri.getPort() + "\r\n"
+                    + ClusterClient.INTERNAL_HEADER + ' ' + node + "\r\n"
+                    + "Content-Length: " + length + "\r\n"
+                    + "\r\n";
+            final ByteBuffer head = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+            while (head.hasRemaining()) {
+                socket.write(head);
+            }
+
+            long sent = 0;
+            while (sent < length) {
+                sent += file.transferTo(position + sent, length - sent, socket);
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+            ends.add(file.position());
+        }
+
+        private void writeFully(@NotNull final ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                file.write(data);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the response to a slice and fails unless it is {@code 200}.
+     */
+    private static void expectOk(@NotNull final InputStream in) throws IOException {
+        final String status = readLine(in);
+        if (!status.startsWith("HTTP/1.1 200")) {
+            throw new IOException("Unexpected response " + status);
+        }
+
+        long length = 0;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            final int colon = header.indexOf(':');
+            if (colon > 0 && "Content-Length".equalsIgnoreCase(header.substring(0, colon).trim())) {
+                length = Long.parseLong(header.substring(colon + 1).trim());
+            }
+        }
+        while (length > 0) {
+            final long skipped = in.skip(length);
+            if (skipped <= 0 && in.read() < 0) {
+                throw new EOFException("Response body truncated");
+            }
+            length -= Math.max(skipped, 1);
+        }
+    }
+
+    @NotNull
+    private static String readLine(@NotNull final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            final int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (line.size() >= MAX_LINE) {
+                throw new IOException("Response line too long");
+            }
+            line.write(b);
+        }
+        final String result = line.toString(StandardCharsets.US_ASCII);
+        return result.endsWith("\r") ? result.substring(0, result.length() - 1) : result;
+    }
+}
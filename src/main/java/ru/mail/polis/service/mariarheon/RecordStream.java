@@ -0,0 +1,78 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads records framed as in {@link AntiEntropy#encode(Iterator)} off a stream as they arrive.
+ * <p>
+ * Only the next record is held in memory, read errors are rethrown as {@link UncheckedIOException}.
+ */
+final class RecordStream implements Iterator<Record>, Closeable {
+    private final DataInputStream in;
+    private Record next;
+    private boolean done;
+
+    RecordStream(@NotNull final InputStream in) {
+        this.in = new DataInputStream(new BufferedInputStream(in));
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next == null && !done) {
+            next = read();
+        }
+        return next != null;
+    }
+
+    @Override
+    public Record next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final Record result = next;
+        next = null;
+        return result;
+    }
+
+    @Override
+    public void close() throws IOException {
+        done = true;
+        in.close();
+    }
+
+    private Record read() {
+        try {
+            final int keyLength;
+            try {
+                keyLength = in.readInt();
+            } catch (EOFException e) {
+                done = true;
+                return null;
+            }
+            final ByteBuffer key = read(keyLength);
+            return Record.of(key, read(in.readInt()));
+        } catch (IOException e) {
+            done = true;
+            throw new UncheckedIOException("Can't read the stream", e);
+        }
+    }
+
+    @NotNull
+    private ByteBuffer read(final int length) throws IOException {
+        final byte[] result = new byte[length];
+        in.readFully(result);
+        return ByteBuffer.wrap(result);
+    }
+}
@@ -0,0 +1,124 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * {@link Topology} assigning keys to nodes by rendezvous (highest random weight) hashing.
+ * <p>
+ * Every node scores the key by mixing the hash of the key with a seed derived from the node,
+ * the key belongs to the node with the highest score. No ring is kept, the key is hashed once
+ * and a lookup costs one cheap mix per node. Removing a node moves only the keys it owned.
+ */
+public final class RendezvousTopology implements Topology {
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final String me;
+    private final Set<String> nodes;
+    private final String[] ordered;
+    private final long[] seeds;
+
+    /**
+     * Creates the topology.
+     *
+     * @param me    this node, must be one of the nodes
+     * @param nodes all the nodes of the cluster
+     */
+    public RendezvousTopology(
+            @NotNull final String me,
+            @NotNull final Set<String> nodes) {
+        if (!nodes.contains(me)) {
+            throw new IllegalArgumentException("Topology " + nodes + " doesn't contain " + me);
+        }
+
+        this.me = me;
+        this.nodes = new TreeSet<>(nodes);
+        this.ordered = this.nodes.toArray(new String[0]);
+        this.seeds = new long[ordered.length];
+        for (int i = 0; i < ordered.length; i++) {
+            seeds[i] = HASH.hashString(ordered[i], StandardCharsets.UTF_8).asLong();
+        }
+    }
+
+    @NotNull
+    @Override
+    public String primaryFor(@NotNull final ByteBuffer key) {
+        final long hash = HASH.hashBytes(key.duplicate()).asLong();
+        int owner = 0;
+        long best = Long.MIN_VALUE;
+        for (int i = 0; i < seeds.length; i++) {
+            final long score = mix(hash ^ seeds[i]);
+            if (score > best) {
+                best = score;
+                owner = i;
+            }
+        }
+        return ordered[owner];
+    }
+
+    @NotNull
+    @Override
+    public List<String> replicasFor(
+            @NotNull final ByteBuffer key,
+            final int count) {
+        if (count > ordered.length) {
+            throw new IllegalArgumentException("Only " + ordered.length + " nodes for " + count + " replicas");
+        }
+
+        final long hash = HASH.hashBytes(key.duplicate()).asLong();
+        final long[] scores = new long[seeds.length];
+        for (int i = 0; i < seeds.length; i++) {
+            scores[i] = mix(hash ^ seeds[i]);
+        }
+
+        // Partial selection sort, the cluster is small
+        final List<String> result = new ArrayList<>(count);
+        final boolean[] taken = new boolean[seeds.length];
+        for (int replica = 0; replica < count; replica++) {
+            int best = -1;
+            for (int i = 0; i < scores.length; i++) {
+                if (!taken[i] && (best < 0 || scores[i] > scores[best])) {
+                    best = i;
+                }
+            }
+            taken[best] = true;
+            result.add(ordered[best]);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isMe(@NotNull final String node) {
+        return me.equals(node);
+    }
+
+    @NotNull
+    @Override
+    public Set<String> all() {
+        return nodes;
+    }
+
+    @NotNull
+    @Override
+    public Topology withNodes(@NotNull final Set<String> nodes) {
+        return new RendezvousTopology(me, nodes);
+    }
+
+    /**
+     * Finalizer of SplitMix64, spreads every input bit over the whole result.
+     */
+    private static long mix(final long value) {
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,60 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Replication factor of a request: {@code ack} of {@code from} replicas must confirm it.
+ */
+final class Replicas {
+    private final int ack;
+    private final int from;
+
+    private Replicas(
+            final int ack,
+            final int from) {
+        this.ack = ack;
+        this.from = from;
+    }
+
+    /**
+     * Parses {@code ack/from} or returns the majority of the cluster if absent.
+     *
+     * @throws IllegalArgumentException if malformed or not satisfiable by the cluster
+     */
+    @NotNull
+    static Replicas parse(
+            @Nullable final String replicas,
+            final int clusterSize) {
+        if (replicas == null) {
+            return new Replicas(clusterSize / 2 + 1, clusterSize);
+        }
+
+        final int slash = replicas.indexOf('/');
+        if (slash < 0) {
+            throw new IllegalArgumentException("Expected ack/from: " + replicas);
+        }
+
+        final int ack;
+        final int from;
+        try {
+            ack = Integer.parseInt(replicas.substring(0, slash));
+            from = Integer.parseInt(replicas.substring(slash + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected ack/from: " + replicas, e);
+        }
+
+        if (ack <= 0 || ack > from || from > clusterSize) {
+            throw new IllegalArgumentException("Can't satisfy " + replicas + " with " + clusterSize + " nodes");
+        }
+        return new Replicas(ack, from);
+    }
+
+    int ack() {
+        return ack;
+    }
+
+    int from() {
+        return from;
+    }
+}
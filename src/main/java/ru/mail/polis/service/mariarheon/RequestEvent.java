@@ -0,0 +1,27 @@
+package ru.mail.polis.service.mariarheon;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Flight Recorder event spanning the handling of a request from its admission till the response.
+ * <p>
+ * Only requests over the threshold are recorded, so continuous recordings keep the slow ones
+ * next to the storage events they overlap with at a negligible cost for the rest.
+ */
+@Name("ru.mail.polis.service.Request")
+@Label("Request")
+@Category({"Storage", "Service"})
+@Description("HTTP request handled by the node")
+@Threshold("1 ms")
+final class RequestEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Status")
+    int status;
+}
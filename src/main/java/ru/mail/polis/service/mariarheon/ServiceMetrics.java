@@ -0,0 +1,265 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.mariarheon.LatencyHistogram;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Request metrics of the service rendered in the Prometheus text exposition format.
+ * <p>
+ * Request latencies and response counters are recorded lock-free on the hot path,
+ * gauges are sampled only when the metrics are rendered.
+ */
+final class ServiceMetrics {
+    static final String CONTENT_TYPE = "Content-Type: text/plain; version=0.0.4";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.95, 0.99, 0.999};
+    private static final int STATUS_CLASSES = 6;
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, LongAdder[]> responses = new EnumMap<>(Operation.class);
+    private final List<Sampled> sampled = new CopyOnWriteArrayList<>();
+    private final Map<ObjectName, String> mbeans = new ConcurrentHashMap<>();
+
+    /**
+     * Kinds of requests measured separately.
+     */
+    enum Operation {
+        GET, PUT, DELETE, RANGE, BATCH, SYNC;
+
+        @NotNull
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    ServiceMetrics() {
+        for (final Operation operation : Operation.values()) {
+            latencies.put(operation, new LatencyHistogram());
+            final LongAdder[] counters = new LongAdder[STATUS_CLASSES];
+            for (int i = 0; i < STATUS_CLASSES; i++) {
+                counters[i] = new LongAdder();
+            }
+            responses.put(operation, counters);
+        }
+    }
+
+    /**
+     * Records a completed request.
+     *
+     * @param operation kind of the request
+     * @param status    HTTP status of the response
+     * @param nanos     time from accepting the request till the response
+     */
+    void record(
+            @NotNull final Operation operation,
+            final int status,
+            final long nanos) {
+        latencies.get(operation).record(nanos);
+        responses.get(operation)[Math.min(status / 100, STATUS_CLASSES - 1)].increment();
+    }
+
+    /**
+     * Registers a value sampled on rendering.
+     */
+    void gauge(
+            @NotNull final String name,
+            @NotNull final String help,
+            @NotNull final DoubleSupplier value) {
+        sampled.add(new Sampled(name, "gauge", help, value));
+    }
+
+    /**
+     * Registers a monotonically growing value sampled on rendering.
+     */
+    void counter(
+            @NotNull final String name,
+            @NotNull final String help,
+            @NotNull final LongSupplier value) {
+        sampled.add(new Sampled(name, "counter", help, value::getAsLong));
+    }
+
+    /**
+     * Registers the MBeans matching the pattern, their numeric attributes are sampled on rendering.
+     *
+     * @param pattern JMX object name pattern
+     * @param prefix  prefix of the metric names, the attribute names follow in snake case
+     */
+    void mbeans(
+            @NotNull final ObjectName pattern,
+            @NotNull final String prefix) {
+        mbeans.put(pattern, prefix);
+    }
+
+    /**
+     * Renders all the metrics in the Prometheus text format.
+     */
+    @NotNull
+    String render() {
+        final StringBuilder out = new StringBuilder(4096);
+
+        header(out, "http_request_duration_seconds", "summary", "Request latency by operation");
+        for (final Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+            final String operation = entry.getKey().label();
+            final LatencyHistogram histogram = entry.getValue();
+            for (final double quantile : QUANTILES) {
+                out.append("http_request_duration_seconds{operation=\"").append(operation)
+                        .append("\",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(histogram.quantileMicros(quantile))).append('\n');
+            }
+            out.append("http_request_duration_seconds_sum{operation=\"").append(operation).append("\"} ")
+                    .append(seconds(histogram.sumMicros())).append('\n');
+            out.append("http_request_duration_seconds_count{operation=\"").append(operation).append("\"} ")
+                    .append(histogram.count()).append('\n');
+        }
+
+        header(out, "http_request_duration_seconds_max", "gauge", "Maximum request latency by operation");
+        for (final Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+            out.append("http_request_duration_seconds_max{operation=\"").append(entry.getKey().label())
+                    .append("\"} ").append(seconds(entry.getValue().maxMicros())).append('\n');
+        }
+
+        header(out, "http_responses_total", "counter", "Responses by operation and status class");
+        for (final Map.Entry<Operation, LongAdder[]> entry : responses.entrySet()) {
+            final LongAdder[] counters = entry.getValue();
+            for (int i = 1; i < STATUS_CLASSES; i++) {
+                out.append("http_responses_total{operation=\"").append(entry.getKey().label())
+                        .append("\",status=\"").append(i).append("xx\"} ")
+                        .append(counters[i].sum()).append('\n');
+            }
+        }
+
+        for (final Sampled metric : sampled) {
+            header(out, metric.name, metric.type, metric.help);
+            out.append(metric.name).append(' ').append(metric.value.getAsDouble()).append('\n');
+        }
+
+        for (final Map.Entry<ObjectName, String> entry : mbeans.entrySet()) {
+            renderMBeans(out, entry.getKey(), entry.getValue());
+        }
+        return out.toString();
+    }
+
+    /**
+     * Renders the attributes of all the matching MBeans grouped by attribute, labelled with the key properties
+     * of the MBean name but the type.
+     */
+    private static void renderMBeans(
+            @NotNull final StringBuilder out,
+            @NotNull final ObjectName pattern,
+            @NotNull final String prefix) {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        final Map<String, StringBuilder> samples = new TreeMap<>();
+        for (final ObjectName name : server.queryNames(pattern, null)) {
+            final String labels = labels(name);
+            try {
+                for (final MBeanAttributeInfo attribute : server.getMBeanInfo(name).getAttributes()) {
+                    final Object value = server.getAttribute(name, attribute.getName());
+                    final StringBuilder metric = samples.computeIfAbsent(
+                            prefix + '_' + snakeCase(attribute.getName()),
+                            key -> new StringBuilder());
+                    if (value instanceof Number) {
+                        metric.append('{').append(labels).append("} ")
+                                .append(((Number) value).doubleValue()).append('\n');
+                    }
+                }
+            } catch (JMException expected) {
+                // Unregistered meanwhile
+            }
+        }
+
+        for (final Map.Entry<String, StringBuilder> metric : samples.entrySet()) {
+            if (metric.getValue().length() == 0) {
+                continue;
+            }
+            header(out, metric.getKey(), "untyped", "JMX attribute of " + pattern.getDomain());
+            for (final String sample : metric.getValue().toString().split("\n")) {
+                out.append(metric.getKey()).append(sample).append('\n');
+            }
+        }
+    }
+
+    @NotNull
+    private static String labels(@NotNull final ObjectName name) {
+        final StringBuilder result = new StringBuilder();
+        for (final Map.Entry<String, String> property : new TreeMap<>(name.getKeyPropertyList()).entrySet()) {
+            if ("type".equals(property.getKey())) {
+                continue;
+            }
+            final String value = property.getValue();
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(property.getKey()).append("=\"")
+                    .append((value.startsWith("\"") ? ObjectName.unquote(value) : value).replace("\"", ""))
+                    .append('"');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Converts {@code ReadP99Micros} to {@code read_p99_micros}.
+     */
+    @NotNull
+    static String snakeCase(@NotNull final String camelCase) {
+        final StringBuilder result = new StringBuilder(camelCase.length() + 8);
+        for (int i = 0; i < camelCase.length(); i++) {
+            final char c = camelCase.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0) {
+                    result.append('_');
+                }
+                result.append(Character.toLowerCase(c));
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+
+    private static void header(
+            @NotNull final StringBuilder out,
+            @NotNull final String name,
+            @NotNull final String type,
+            @NotNull final String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static double seconds(final long micros) {
+        return micros / 1_000_000.0;
+    }
+
+    private static final class Sampled {
+        private final String name;
+        private final String type;
+        private final String help;
+        private final DoubleSupplier value;
+
+        Sampled(
+                @NotNull final String name,
+                @NotNull final String type,
+                @NotNull final String help,
+                @NotNull final DoubleSupplier value) {
+            this.name = name;
+            this.type = type;
+            this.help = help;
+            this.value = value;
+        }
+    }
+}
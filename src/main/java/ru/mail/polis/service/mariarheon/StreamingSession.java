@@ -0,0 +1,133 @@
+package ru.mail.polis.service.mariarheon;
+
+import one.nio.http.HttpServer;
+import one.nio.http.HttpSession;
+import one.nio.http.Response;
+import one.nio.net.Socket;
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.function.Function;
+
+/**
+ * {@link HttpSession} able to stream a response of unknown length in chunks.
+ * <p>
+ * The streaming thread writes the next chunk only once the previous ones have left the socket,
+ * so a slow client holds at most a single chunk in memory.
+ * Records are packed into chunks of about {@link #CHUNK_SIZE} bytes.
+ */
+final class StreamingSession extends HttpSession {
+    private static final int CHUNK_SIZE = 16 * 1024;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final long WAIT_MS = 100;
+
+    private final Object writable = new Object();
+
+    StreamingSession(
+            @NotNull final Socket socket,
+            @NotNull final HttpServer server) {
+        super(socket, server);
+    }
+
+    /**
+     * Streams the records encoded one by one as the body of a {@code 200} response.
+     * <p>
+     * Blocks the calling thread while the socket can't take more.
+     */
+    void stream(
+            @NotNull final Iterator<Record> records,
+            @NotNull final Function<Record, byte[]> encoder) throws IOException {
+        final Response response = new Response(Response.OK);
+        response.addHeader("Transfer-Encoding: chunked");
+        writeResponse(response, false);
+
+        final byte[] buffer = new byte[CHUNK_SIZE];
+        int size = 0;
+        while (records.hasNext()) {
+            final byte[] record = encoder.apply(records.next());
+            if (size > 0 && size + record.length > CHUNK_SIZE) {
+                writeChunk(buffer, size);
+                size = 0;
+            }
+            if (record.length >= CHUNK_SIZE) {
+                writeChunk(record, record.length);
+            } else {
+                System.arraycopy(record, 0, buffer, size, record.length);
+                size += record.length;
+            }
+        }
+        if (size > 0) {
+            writeChunk(buffer, size);
+        }
+        write(LAST_CHUNK, 0, LAST_CHUNK.length);
+        finish();
+    }
+
+    @Override
+    protected void processWrite() throws Exception {
+        super.processWrite();
+        synchronized (writable) {
+            writable.notifyAll();
+        }
+    }
+
+    private void writeChunk(
+            @NotNull final byte[] data,
+            final int length) throws IOException {
+        awaitWritable();
+        final byte[] size = Integer.toHexString(length).getBytes(StandardCharsets.US_ASCII);
+        final byte[] chunk = new byte[size.length + CRLF.length + length + CRLF.length];
+        System.arraycopy(size, 0, chunk, 0, size.length);
+        System.arraycopy(CRLF, 0, chunk, size.length, CRLF.length);
+        System.arraycopy(data, 0, chunk, size.length + CRLF.length, length);
+        System.arraycopy(CRLF, 0, chunk, chunk.length - CRLF.length, CRLF.length);
+        write(chunk, 0, chunk.length);
+    }
+
+    private void awaitWritable() throws IOException {
+        synchronized (writable) {
+            while (queueHead != null) {
+                if (!socket.isOpen()) {
+                    throw new IOException("Client has gone");
+                }
+                try {
+                    writable.wait(WAIT_MS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while streaming", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Completes the request and goes on with the ones pipelined behind it, as {@link #sendResponse} does.
+     */
+    private synchronized void finish() throws IOException {
+        server.incRequestsProcessed();
+        handling = pipeline.pollFirst();
+        if (handling != null) {
+            if (handling == FIN) {
+                scheduleClose();
+            } else {
+                server.handleRequest(handling, this);
+            }
+        }
+    }
+
+    /**
+     * Encodes records for clients as {@code key '\n' value}.
+     */
+    @NotNull
+    static byte[] keyValue(@NotNull final Record record) {
+        final byte[] result = new byte[record.getKey().remaining() + 1 + record.getValue().remaining()];
+        record.getKey().duplicate().get(result, 0, record.getKey().remaining());
+        result[record.getKey().remaining()] = '\n';
+        record.getValue().duplicate().get(result, record.getKey().remaining() + 1, record.getValue().remaining());
+        return result;
+    }
+}
@@ -0,0 +1,156 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Response body read as it arrives with a deadline on every read.
+ * <p>
+ * The stream of {@link HttpResponse.BodyHandlers#ofInputStream()} blocks for as long as the peer stalls,
+ * the request timeout only covers the headers. Here a read waits for the next chunk for at most the timeout,
+ * then the body is cancelled and the read fails with {@link SocketTimeoutException}.
+ * Chunks are requested one at a time, so at most one is buffered ahead of the reader.
+ */
+final class TimedBodyStream extends InputStream implements Flow.Subscriber<List<ByteBuffer>> {
+    // Compared by identity, an empty chunk of the body must not end it
+    private static final List<ByteBuffer> END = Collections.unmodifiableList(new ArrayList<>());
+
+    private final long timeoutNanos;
+    private final BlockingQueue<List<ByteBuffer>> chunks = new LinkedBlockingQueue<>();
+    private final byte[] single = new byte[1];
+
+    private volatile Flow.Subscription subscription;
+    private volatile Throwable error;
+    private volatile boolean closed;
+    private Iterator<ByteBuffer> buffers = Collections.emptyIterator();
+    private ByteBuffer buffer;
+    private boolean ended;
+
+    /**
+     * Creates the stream, it reads nothing until subscribed to the body.
+     *
+     * @param timeoutNanos time a read waits for the data at most
+     */
+    TimedBodyStream(final long timeoutNanos) {
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    @Override
+    public void onSubscribe(@NotNull final Flow.Subscription subscription) {
+        this.subscription = subscription;
+        if (closed) {
+            subscription.cancel();
+        } else {
+            subscription.request(1);
+        }
+    }
+
+    @Override
+    public void onNext(@NotNull final List<ByteBuffer> chunk) {
+        chunks.offer(chunk);
+    }
+
+    @Override
+    public void onError(@NotNull final Throwable throwable) {
+        error = throwable;
+        chunks.offer(END);
+    }
+
+    @Override
+    public void onComplete() {
+        chunks.offer(END);
+    }
+
+    @Override
+    public int read() throws IOException {
+        final int read = read(single, 0, 1);
+        return read < 0 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(
+            @NotNull final byte[] bytes,
+            final int offset,
+            final int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        final ByteBuffer current = current();
+        if (current == null) {
+            return -1;
+        }
+        final int read = Math.min(length, current.remaining());
+        current.get(bytes, offset, read);
+        return read;
+    }
+
+    @Override
+    public int available() {
+        return buffer == null ? 0 : buffer.remaining();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        ended = true;
+        final Flow.Subscription current = subscription;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Returns the buffer with the next bytes, waiting for the next chunk if needed, {@code null} at the end.
+     */
+    @Nullable
+    private ByteBuffer current() throws IOException {
+        while (buffer == null || !buffer.hasRemaining()) {
+            if (buffers.hasNext()) {
+                buffer = buffers.next();
+                continue;
+            }
+            if (ended) {
+                return null;
+            }
+
+            final List<ByteBuffer> chunk;
+            try {
+                chunk = chunks.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new InterruptedIOException("Interrupted reading the body");
+            }
+            if (chunk == null) {
+                close();
+                throw new SocketTimeoutException(
+                        "No data for " + TimeUnit.NANOSECONDS.toMillis(timeoutNanos) + " ms");
+            }
+            if (chunk == END) {
+                ended = true;
+                if (error != null) {
+                    throw new IOException("Body failed", error);
+                }
+                return null;
+            }
+            buffers = chunk.iterator();
+            subscription.request(1);
+        }
+        return buffer;
+    }
+}
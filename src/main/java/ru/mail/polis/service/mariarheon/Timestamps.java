@@ -0,0 +1,22 @@
+package ru.mail.polis.service.mariarheon;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Source of version timestamps for writes coordinated by this node.
+ * <p>
+ * Timestamps are wall clock microseconds, strictly growing within the process,
+ * so two writes coordinated by the same node are never ordered arbitrarily.
+ */
+final class Timestamps {
+    private static final AtomicLong last = new AtomicLong();
+
+    private Timestamps() {
+        // Not instantiable
+    }
+
+    static long next() {
+        final long now = System.currentTimeMillis() * 1000;
+        return last.accumulateAndGet(now, (previous, current) -> Math.max(previous + 1, current));
+    }
+}
@@ -0,0 +1,55 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Strategy assigning keys to the nodes of the cluster.
+ * <p>
+ * All the nodes must build their topologies from the same set of nodes
+ * to agree on the owner of every key.
+ */
+public interface Topology {
+
+    /**
+     * Returns the node owning the key.
+     */
+    @NotNull
+    String primaryFor(@NotNull ByteBuffer key);
+
+    /**
+     * Returns the distinct nodes keeping replicas of the key, the primary goes first.
+     *
+     * @param count number of replicas, not greater than the cluster size
+     */
+    @NotNull
+    List<String> replicasFor(
+            @NotNull ByteBuffer key,
+            int count);
+
+    /**
+     * Checks whether the node is the one this topology was built for.
+     */
+    boolean isMe(@NotNull String node);
+
+    /**
+     * Returns all the nodes of the cluster.
+     */
+    @NotNull
+    Set<String> all();
+
+    /**
+     * Builds the topology of the same kind and this node for another set of nodes.
+     *
+     * @param nodes all the nodes of the other cluster, this one included
+     */
+    @NotNull
+    Topology withNodes(@NotNull Set<String> nodes);
+
+    default int size() {
+        return all().size();
+    }
+}
@@ -0,0 +1,100 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timeline of a sampled request: when it reached every stage since the handler got it parsed.
+ * <p>
+ * Unsampled requests share {@link #NOOP}, marking it is a single branch.
+ * Stages may be marked from different threads, the replicas and the local storage answer concurrently.
+ */
+final class Trace {
+    static final Trace NOOP = new Trace("", false);
+
+    /**
+     * Points of the request path, the last mark of a stage wins.
+     */
+    enum Stage {
+        /** A worker picked the request from the queue. */
+        QUEUED,
+        /** The local storage answered. */
+        LOCAL,
+        /** Enough replicas answered. */
+        REPLICAS,
+        /** The response is built. */
+        HANDLED,
+        /** The response is written to the socket. */
+        WRITTEN
+    }
+
+    private final String name;
+    private final long start = System.nanoTime();
+    private final AtomicLongArray marks;
+
+    Trace(@NotNull final String name) {
+        this(name, true);
+    }
+
+    private Trace(
+            @NotNull final String name,
+            final boolean sampled) {
+        this.name = name;
+        this.marks = sampled ? new AtomicLongArray(Stage.values().length) : null;
+    }
+
+    boolean sampled() {
+        return marks != null;
+    }
+
+    void mark(@NotNull final Stage stage) {
+        if (marks != null) {
+            marks.set(stage.ordinal(), System.nanoTime());
+        }
+    }
+
+    /**
+     * Marks the stage once the future completes, unsampled futures are returned as they are.
+     */
+    @NotNull
+    <T> CompletableFuture<T> markWhenDone(
+            @NotNull final CompletableFuture<T> future,
+            @NotNull final Stage stage) {
+        if (marks == null) {
+            return future;
+        }
+        return future.whenComplete((result, error) -> mark(stage));
+    }
+
+    @NotNull
+    String name() {
+        return name;
+    }
+
+    /**
+     * Returns the stages reached as {@code stage +millis} since the start.
+     */
+    @NotNull
+    String breakdown() {
+        if (marks == null) {
+            return "";
+        }
+
+        final StringBuilder result = new StringBuilder(128);
+        for (final Stage stage : Stage.values()) {
+            final long mark = marks.get(stage.ordinal());
+            if (mark == 0) {
+                continue;
+            }
+            if (result.length() > 0) {
+                result.append(", ");
+            }
+            result.append(stage.name().toLowerCase(Locale.ROOT))
+                    .append(String.format(Locale.ROOT, " +%.3f ms", (mark - start) / 1e6));
+        }
+        return result.toString();
+    }
+}
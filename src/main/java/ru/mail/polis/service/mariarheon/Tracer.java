@@ -0,0 +1,79 @@
+package ru.mail.polis.service.mariarheon;
+
+import one.nio.http.Request;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.service.mariarheon.ServiceMetrics.Operation;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Logs the requests slower than the threshold and samples requests for tracing.
+ * <p>
+ * Every request is timed by the caller, so no slow request goes unnoticed, the sampled ones are logged
+ * with the breakdown of their {@link Trace} by stage.
+ */
+final class Tracer {
+    private static final Logger log = LoggerFactory.getLogger(Tracer.class);
+
+    private final double rate;
+    private final long thresholdNanos;
+    private final LongAdder slow = new LongAdder();
+
+    /**
+     * Creates the tracer.
+     *
+     * @param rate           share of the requests traced
+     * @param thresholdNanos requests slower than this are logged
+     */
+    Tracer(
+            final double rate,
+            final long thresholdNanos) {
+        this.rate = rate;
+        this.thresholdNanos = thresholdNanos;
+    }
+
+    /**
+     * Starts a trace of the request if it is sampled, otherwise returns {@link Trace#NOOP}.
+     */
+    @NotNull
+    Trace start(@NotNull final Request request) {
+        if (ThreadLocalRandom.current().nextDouble() >= rate) {
+            return Trace.NOOP;
+        }
+        return new Trace(request.getURI());
+    }
+
+    /**
+     * Logs the completed request if it is slow, with the breakdown by stage if it is sampled.
+     *
+     * @param elapsedNanos time from accepting the request till the response
+     */
+    void finish(
+            @NotNull final Trace trace,
+            @NotNull final Operation operation,
+            final int status,
+            final long elapsedNanos) {
+        if (elapsedNanos < thresholdNanos) {
+            return;
+        }
+        slow.increment();
+        final long millis = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        if (trace.sampled()) {
+            log.warn("Slow {} {} answered {} in {} ms: {}",
+                    operation.label(), trace.name(), status, millis, trace.breakdown());
+        } else {
+            log.warn("Slow {} answered {} in {} ms", operation.label(), status, millis);
+        }
+    }
+
+    /**
+     * Returns the number of the requests found slow.
+     */
+    long slow() {
+        return slow.sum();
+    }
+}
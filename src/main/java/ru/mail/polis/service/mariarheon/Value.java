@@ -0,0 +1,113 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+/**
+ * Timestamped version of an entity as stored in the {@link ru.mail.polis.dao.DAO}.
+ * <p>
+ * Removal is stored as a tombstone, so replicas can tell a deleted entity
+ * from one they have never seen and resolve conflicts by timestamp.
+ * The stored form is {@code long timestamp | byte tombstone | data}.
+ */
+final class Value {
+    private static final Value ABSENT = new Value(Long.MIN_VALUE, false, ByteBuffer.allocate(0));
+    private static final int HEADER_SIZE = Long.BYTES + Byte.BYTES;
+
+    private final long timestamp;
+    private final boolean tombstone;
+    private final ByteBuffer data;
+
+    private Value(
+            final long timestamp,
+            final boolean tombstone,
+            @NotNull final ByteBuffer data) {
+        this.timestamp = timestamp;
+        this.tombstone = tombstone;
+        this.data = data;
+    }
+
+    @NotNull
+    static Value present(
+            @NotNull final ByteBuffer data,
+            final long timestamp) {
+        return new Value(timestamp, false, data);
+    }
+
+    @NotNull
+    static Value tombstone(final long timestamp) {
+        return new Value(timestamp, true, ABSENT.data);
+    }
+
+    /**
+     * Returns the value of an entity never written.
+     */
+    @NotNull
+    static Value absent() {
+        return ABSENT;
+    }
+
+    /**
+     * Parses the stored form.
+     */
+    @NotNull
+    static Value fromBuffer(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer stored = buffer.duplicate();
+        final long timestamp = stored.getLong();
+        final boolean tombstone = stored.get() != 0;
+        return new Value(timestamp, tombstone, stored.slice());
+    }
+
+    /**
+     * Returns the most recent of the versions, {@link #absent()} if there are none.
+     */
+    @NotNull
+    static Value merge(@NotNull final Collection<Value> values) {
+        Value result = ABSENT;
+        for (final Value value : values) {
+            if (value.timestamp > result.timestamp) {
+                result = value;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the stored form.
+     */
+    @NotNull
+    ByteBuffer toBuffer() {
+        final ByteBuffer result = ByteBuffer.allocate(HEADER_SIZE + data.remaining());
+        result.putLong(timestamp);
+        result.put((byte) (tombstone ? 1 : 0));
+        result.put(data.duplicate());
+        result.flip();
+        return result;
+    }
+
+    boolean isAbsent() {
+        return this == ABSENT;
+    }
+
+    boolean isTombstone() {
+        return tombstone;
+    }
+
+    /**
+     * Checks whether the entity exists, i.e. was written and not removed.
+     */
+    boolean isPresent() {
+        return !isAbsent() && !tombstone;
+    }
+
+    long timestamp() {
+        return timestamp;
+    }
+
+    @NotNull
+    ByteBuffer data() {
+        return data.duplicate();
+    }
+}
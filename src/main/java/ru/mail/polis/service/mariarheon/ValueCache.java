@@ -0,0 +1,313 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded cache of hot values in front of the {@link ru.mail.polis.dao.DAO}.
+ * <p>
+ * Capacity is accounted in bytes. Eviction follows W-TinyLFU: new entries
+ * land in a small LRU window, entries leaving the window compete with the
+ * LRU victim of the main segmented LRU and are admitted only if they were
+ * requested more often according to a {@link FrequencySketch}. One-off keys,
+ * e.g. produced by a scan, therefore never displace the hot set.
+ * <p>
+ * Lookups are lock-free. Reordering on hit is skipped when the policy lock is
+ * contended, so hot keys do not serialize readers.
+ * <p>
+ * Fills race with writes: a value read from the {@link ru.mail.polis.dao.DAO}
+ * is cached only if the key was not invalidated since the read started,
+ * see {@link #stamp(ByteBuffer)}.
+ */
+final class ValueCache {
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int STRIPES = 1024;
+    private static final int WINDOW_PERCENT = 1;
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final ConcurrentMap<ByteBuffer, Node> data = new ConcurrentHashMap<>();
+    private final AtomicLongArray stamps = new AtomicLongArray(STRIPES);
+    private final ReentrantLock lock = new ReentrantLock();
+    private final FrequencySketch sketch;
+
+    private final LruQueue window = new LruQueue();
+    private final LruQueue probation = new LruQueue();
+    private final LruQueue protect = new LruQueue();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    private long maximumWeight;
+
+    /**
+     * Creates a cache of the given capacity.
+     *
+     * @param maximumWeight capacity in bytes of keys and values
+     * @param averageWeight expected size of an entry used to size the frequency sketch
+     */
+    ValueCache(
+            final long maximumWeight,
+            final int averageWeight) {
+        this.maximumWeight = maximumWeight;
+        this.sketch = new FrequencySketch((int) Math.min(Integer.MAX_VALUE, maximumWeight / averageWeight));
+    }
+
+    /**
+     * Returns the cached value or {@code null} if the key is not cached.
+     */
+    @Nullable
+    ByteBuffer get(@NotNull final ByteBuffer key) {
+        final Node node = data.get(key);
+        if (node == null) {
+            misses.increment();
+            if (lock.tryLock()) {
+                try {
+                    sketch.increment(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+            return null;
+        }
+
+        hits.increment();
+        if (lock.tryLock()) {
+            try {
+                sketch.increment(key);
+                onHit(node);
+            } finally {
+                lock.unlock();
+            }
+        }
+        return node.value;
+    }
+
+    /**
+     * Returns the invalidation stamp of the key, must be taken before reading the value to be cached.
+     */
+    long stamp(@NotNull final ByteBuffer key) {
+        return stamps.get(stripe(key));
+    }
+
+    /**
+     * Caches the value unless the key was invalidated after the stamp was taken.
+     */
+    void put(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value,
+            final long stamp) {
+        final long weight = (long) key.remaining() + value.remaining() + ENTRY_OVERHEAD;
+        lock.lock();
+        try {
+            if (weight > maximumWeight || stamps.get(stripe(key)) != stamp) {
+                return;
+            }
+
+            final Node existing = data.get(key);
+            if (existing != null) {
+                unlink(existing);
+                data.remove(key);
+            }
+
+            final Node node = new Node(key, value, weight);
+            data.put(key, node);
+            window.addLast(node);
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the key and rejects fills of values read before this call.
+     */
+    void invalidate(@NotNull final ByteBuffer key) {
+        lock.lock();
+        try {
+            stamps.incrementAndGet(stripe(key));
+            final Node node = data.remove(key);
+            if (node != null) {
+                unlink(node);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Changes the capacity evicting entries if needed.
+     */
+    void resize(final long maximumWeight) {
+        lock.lock();
+        try {
+            this.maximumWeight = maximumWeight;
+            evict();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long evictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the share of lookups served from the cache.
+     */
+    double hitRate() {
+        final long hitCount = hits.sum();
+        final long total = hitCount + misses.sum();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    /**
+     * Returns the current size in bytes.
+     */
+    long weightedSize() {
+        lock.lock();
+        try {
+            return window.weight + probation.weight + protect.weight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void onHit(@NotNull final Node node) {
+        if (node.queue == null) {
+            // Already evicted or replaced
+            return;
+        }
+
+        if (node.queue == probation) {
+            probation.remove(node);
+            protect.addLast(node);
+            final long protectedMax = maximumWeight * PROTECTED_PERCENT / 100;
+            while (protect.weight > protectedMax) {
+                probation.addLast(protect.pollFirst());
+            }
+        } else {
+            final LruQueue queue = node.queue;
+            queue.remove(node);
+            queue.addLast(node);
+        }
+    }
+
+    private void evict() {
+        final long windowMax = Math.max(1, maximumWeight * WINDOW_PERCENT / 100);
+        while (window.weight > windowMax && window.first != null) {
+            probation.addLast(window.pollFirst());
+        }
+
+        while (window.weight + probation.weight + protect.weight > maximumWeight) {
+            final Node victim = probation.first;
+            final Node candidate = probation.last;
+            if (victim == null) {
+                // Main space is exhausted by the protected segment and the window
+                drop(protect.first == null ? window.first : protect.first);
+            } else if (victim == candidate
+                    || sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+                drop(victim);
+            } else {
+                drop(candidate);
+            }
+        }
+    }
+
+    private void drop(@NotNull final Node node) {
+        unlink(node);
+        data.remove(node.key, node);
+        evictions.increment();
+    }
+
+    private static void unlink(@NotNull final Node node) {
+        if (node.queue != null) {
+            node.queue.remove(node);
+        }
+    }
+
+    private static int stripe(@NotNull final ByteBuffer key) {
+        final int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+    }
+
+    private static final class Node {
+        private final ByteBuffer key;
+        private final ByteBuffer value;
+        private final long weight;
+
+        private LruQueue queue;
+        private Node prev;
+        private Node next;
+
+        Node(
+                @NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value,
+                final long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Intrusive LRU list, the head is the least recently used entry.
+     */
+    private static final class LruQueue {
+        private Node first;
+        private Node last;
+        private long weight;
+
+        void addLast(@NotNull final Node node) {
+            node.queue = this;
+            node.prev = last;
+            node.next = null;
+            if (last == null) {
+                first = node;
+            } else {
+                last.next = node;
+            }
+            last = node;
+            weight += node.weight;
+        }
+
+        @NotNull
+        Node pollFirst() {
+            final Node node = first;
+            remove(node);
+            return node;
+        }
+
+        void remove(@NotNull final Node node) {
+            if (node.prev == null) {
+                first = node.next;
+            } else {
+                node.prev.next = node.next;
+            }
+            if (node.next == null) {
+                last = node.prev;
+            } else {
+                node.next.prev = node.prev;
+            }
+            node.prev = null;
+            node.next = null;
+            node.queue = null;
+            weight -= node.weight;
+        }
+    }
+}
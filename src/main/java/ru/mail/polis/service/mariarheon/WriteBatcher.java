@@ -0,0 +1,228 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces the replica writes to every node into batches.
+ * <p>
+ * A write waits for at most the linger time or until the batch fills up, by the number of writes
+ * or by the encoded size, then the whole batch goes out as a single request and the per-write results
+ * are fanned back out to the waiting futures. Under load the number of internode requests
+ * drops by the batch size, a lone write is delayed by the linger time at most.
+ * <p>
+ * Batches travel as the Merkle leaf ranges do, see {@link AntiEntropy}, with the stored {@link Value}s,
+ * the response carries a status byte per write, {@link #OK} or {@link #FAILED}.
+ * A batch is cut before a write that would take it over the size limit, so it fits the request body limit
+ * of the peer, a write larger than the limit on its own goes out alone.
+ */
+final class WriteBatcher implements Closeable {
+    static final byte OK = 0;
+    static final byte FAILED = 1;
+    // one-nio accepts requests of up to 64 KB, the rest is left for the request line and the headers
+    static final int MAX_BYTES = 60 * 1024;
+
+    private final Sender sender;
+    private final int maxWrites;
+    private final int maxBytes;
+    private final long lingerNanos;
+    private final Map<String, Batch> open = new ConcurrentHashMap<>();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Sends batches to the nodes.
+     */
+    interface Sender {
+        /**
+         * Sends the encoded batch, completes with the statuses of the writes.
+         */
+        @NotNull
+        CompletableFuture<byte[]> batch(
+                @NotNull String node,
+                @NotNull byte[] batch);
+    }
+
+    /**
+     * Creates the batcher.
+     *
+     * @param sender      sends the batches
+     * @param maxWrites   batch size to send at once
+     * @param maxBytes    encoded size of the batch to send at once
+     * @param lingerNanos maximum time a write waits for the batch to fill up
+     */
+    WriteBatcher(
+            @NotNull final Sender sender,
+            final int maxWrites,
+            final int maxBytes,
+            final long lingerNanos) {
+        this.sender = sender;
+        this.maxWrites = maxWrites;
+        this.maxBytes = maxBytes;
+        this.lingerNanos = lingerNanos;
+        this.timer = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactoryBuilder()
+                        .setNameFormat("write-batcher")
+                        .setDaemon(true)
+                        .build());
+        this.timer.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Queues the version for the node.
+     */
+    @NotNull
+    CompletableFuture<Void> write(
+            @NotNull final String node,
+            @NotNull final ByteBuffer key,
+            @NotNull final Value value) {
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+        final Record record = Record.of(key.duplicate(), value.toBuffer());
+        final int bytes = AntiEntropy.frameSize(record);
+        Batch cut = null;
+        Batch full = null;
+        synchronized (this) {
+            Batch batch = open.get(node);
+            if (batch != null && batch.bytes + bytes > maxBytes) {
+                cut = detach(node, batch);
+                batch = null;
+            }
+            if (batch == null) {
+                final Batch created = new Batch();
+                batch = created;
+                open.put(node, created);
+                batch.linger = timer.schedule(() -> flush(node, created), lingerNanos, TimeUnit.NANOSECONDS);
+            }
+            batch.records.add(record);
+            batch.futures.add(result);
+            batch.bytes += bytes;
+            if (batch.records.size() >= maxWrites || batch.bytes >= maxBytes) {
+                full = detach(node, batch);
+            }
+        }
+
+        if (cut != null) {
+            send(node, cut);
+        }
+        if (full != null) {
+            send(node, full);
+        }
+        return result;
+    }
+
+    /**
+     * Sends the batch open for the node at once, not waiting for it to fill up.
+     */
+    void flush(@NotNull final String node) {
+        final Batch batch;
+        synchronized (this) {
+            batch = open.get(node);
+            if (batch == null) {
+                return;
+            }
+            detach(node, batch);
+        }
+        send(node, batch);
+    }
+
+    long batches() {
+        return batches.sum();
+    }
+
+    long writes() {
+        return writes.sum();
+    }
+
+    @Override
+    public void close() {
+        timer.shutdownNow();
+        for (final Batch batch : open.values()) {
+            fail(batch, new IOException("Batcher closed"));
+        }
+        open.clear();
+    }
+
+    /**
+     * Takes the open batch of the node out to send it, called holding the lock.
+     */
+    @NotNull
+    private Batch detach(
+            @NotNull final String node,
+            @NotNull final Batch batch) {
+        open.remove(node);
+        batch.linger.cancel(false);
+        return batch;
+    }
+
+    private void flush(
+            @NotNull final String node,
+            @NotNull final Batch batch) {
+        synchronized (this) {
+            // The batch might have filled up and gone already
+            if (!open.remove(node, batch)) {
+                return;
+            }
+        }
+        send(node, batch);
+    }
+
+    private void send(
+            @NotNull final String node,
+            @NotNull final Batch batch) {
+        batches.increment();
+        writes.add(batch.records.size());
+        sender.batch(node, AntiEntropy.encode(batch.records.iterator())).whenComplete((statuses, error) -> {
+            if (error != null) {
+                fail(batch, error);
+            } else if (statuses.length != batch.futures.size()) {
+                fail(batch, new IOException("Expected " + batch.futures.size() + " statuses"));
+            } else {
+                for (int i = 0; i < statuses.length; i++) {
+                    complete(batch.futures.get(i), statuses[i] == OK ? null : new IOException("Write failed"));
+                }
+            }
+        });
+    }
+
+    private static void fail(
+            @NotNull final Batch batch,
+            @NotNull final Throwable error) {
+        for (final CompletableFuture<Void> future : batch.futures) {
+            complete(future, error);
+        }
+    }
+
+    private static void complete(
+            @NotNull final CompletableFuture<Void> future,
+            @Nullable final Throwable error) {
+        if (error == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(error);
+        }
+    }
+
+    private static final class Batch {
+        private final List<Record> records = new ArrayList<>();
+        private final List<CompletableFuture<Void>> futures = new ArrayList<>();
+        private ScheduledFuture<?> linger;
+        private int bytes;
+    }
+}
@@ -0,0 +1,124 @@
+package ru.mail.polis;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Measures the heap allocated per operation to keep the hot paths within their budgets.
+ * <p>
+ * Operations are warmed up first, so the JIT has a chance to eliminate what escape analysis allows,
+ * then the bytes allocated by the measured threads are divided by the number of operations.
+ */
+public final class Allocations {
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    private Allocations() {
+        // Not instantiatable
+    }
+
+    /**
+     * Operation measured, gets the sequence number to vary its arguments.
+     */
+    @FunctionalInterface
+    public interface Operation {
+        void run(int i) throws Exception;
+    }
+
+    /**
+     * Returns the bytes the calling thread allocates per operation.
+     */
+    public static long perOperation(
+            final int warmup,
+            final int count,
+            @NotNull final Operation operation) throws Exception {
+        final long thread = Thread.currentThread().getId();
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        final long before = allocated(thread);
+        for (int i = 0; i < count; i++) {
+            operation.run(warmup + i);
+        }
+        return (allocated(thread) - before) / count;
+    }
+
+    /**
+     * Returns the bytes the threads with the given name prefixes allocate per operation,
+     * for the operations served by the other threads, such as requests to a server.
+     * <p>
+     * Only the serving threads are counted, whatever the rest of the JVM does meanwhile doesn't affect the result.
+     *
+     * @param threads prefixes of the names of the threads serving the operation
+     */
+    public static long perOperationOn(
+            @NotNull final Collection<String> threads,
+            final int warmup,
+            final int count,
+            @NotNull final Operation operation) throws Exception {
+        for (int i = 0; i < warmup; i++) {
+            operation.run(i);
+        }
+        final Map<Long, Long> before = allocatedOn(threads);
+        for (int i = 0; i < count; i++) {
+            operation.run(warmup + i);
+        }
+        long total = 0;
+        for (final Map.Entry<Long, Long> thread : allocatedOn(threads).entrySet()) {
+            total += thread.getValue() - before.getOrDefault(thread.getKey(), 0L);
+        }
+        return total / count;
+    }
+
+    /**
+     * Fails if the operation allocates more than its budget.
+     */
+    public static void assertWithin(
+            final long budget,
+            final long allocated,
+            @NotNull final String operation) {
+        assertTrue(
+                allocated <= budget,
+                operation + " allocates " + allocated + " bytes per operation, the budget is " + budget);
+    }
+
+    private static long allocated(final long thread) {
+        if (!THREADS.isThreadAllocatedMemorySupported()) {
+            throw new IllegalStateException("Allocation measurement is not supported by the JVM");
+        }
+        return THREADS.getThreadAllocatedBytes(thread);
+    }
+
+    @NotNull
+    private static Map<Long, Long> allocatedOn(@NotNull final Collection<String> threads) {
+        final long[] ids = THREADS.getAllThreadIds();
+        final ThreadInfo[] infos = THREADS.getThreadInfo(ids);
+        final long[] bytes = THREADS.getThreadAllocatedBytes(ids);
+        final Map<Long, Long> result = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            // Threads died meanwhile have no info and report -1
+            if (infos[i] != null && bytes[i] >= 0 && named(infos[i].getThreadName(), threads)) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+
+    private static boolean named(
+            @NotNull final String name,
+            @NotNull final Collection<String> prefixes) {
+        for (final String prefix : prefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
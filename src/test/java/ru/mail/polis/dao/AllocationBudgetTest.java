@@ -0,0 +1,76 @@
+package ru.mail.polis.dao;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static ru.mail.polis.Allocations.*;
+
+/**
+ * Allocation budgets of the hot {@link DAO} operations, exceeding a budget is a regression.
+ * <p>
+ * Reads and writes may copy the record once plus a fixed overhead, iteration steps mustn't copy at all.
+ * <p>
+ * {@link DAOFactory} has no DAO yet, so the budgets hold for {@link InMemoryDAO} for now,
+ * the DAO of the factory replaces it here once there is one.
+ */
+class AllocationBudgetTest extends TestBase {
+    private static final int VALUE_LENGTH = 1024;
+    private static final long COPY_BUDGET = KEY_LENGTH + VALUE_LENGTH + 1024;
+    private static final long STEP_BUDGET = 512;
+    private static final int KEYS = 1000;
+    private static final int WARMUP = 20_000;
+    private static final int COUNT = 10_000;
+
+    @Test
+    void upsert() throws Exception {
+        final ByteBuffer[] keys = keys();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = new InMemoryDAO()) {
+            final long allocated = perOperation(WARMUP, COUNT, i -> dao.upsert(keys[i % KEYS], value));
+            assertWithin(COPY_BUDGET, allocated, "DAO.upsert");
+        }
+    }
+
+    @Test
+    void get() throws Exception {
+        final ByteBuffer[] keys = keys();
+        try (DAO dao = new InMemoryDAO()) {
+            for (final ByteBuffer key : keys) {
+                dao.upsert(key, randomValueBuffer());
+            }
+            final long allocated = perOperation(WARMUP, COUNT, i -> dao.get(keys[i % KEYS]));
+            assertWithin(COPY_BUDGET, allocated, "DAO.get");
+        }
+    }
+
+    @Test
+    void iterationStep() throws Exception {
+        try (DAO dao = new InMemoryDAO()) {
+            for (final ByteBuffer key : keys()) {
+                dao.upsert(key, randomValueBuffer());
+            }
+            // Restarts over the same records, the cost of opening is spread over the steps
+            final AtomicReference<Iterator<Record>> iterator = new AtomicReference<>();
+            final long allocated = perOperation(WARMUP, COUNT, i -> {
+                if (i % KEYS == 0) {
+                    iterator.set(dao.iterator(ByteBuffer.allocate(0)));
+                }
+                iterator.get().next();
+            });
+            assertWithin(STEP_BUDGET, allocated, "Iterator.next");
+        }
+    }
+
+    private static ByteBuffer[] keys() {
+        final ByteBuffer[] result = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            result[i] = randomKeyBuffer();
+        }
+        return result;
+    }
+}
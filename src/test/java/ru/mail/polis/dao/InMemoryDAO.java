@@ -0,0 +1,49 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Trivial in-memory {@link DAO} for testing components built on top of {@link DAO}.
+ */
+public class InMemoryDAO implements DAO {
+    private final NavigableMap<ByteBuffer, ByteBuffer> map = new ConcurrentSkipListMap<>();
+
+    @NotNull
+    @Override
+    public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+        return map.tailMap(from).entrySet().stream()
+                .map(e -> Record.of(e.getKey(), e.getValue()))
+                .iterator();
+    }
+
+    @Override
+    public void upsert(
+            @NotNull final ByteBuffer key,
+            @NotNull final ByteBuffer value) {
+        map.put(copy(key), copy(value));
+    }
+
+    @Override
+    public void remove(@NotNull final ByteBuffer key) {
+        map.remove(key);
+    }
+
+    @Override
+    public void close() {
+        map.clear();
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer result = ByteBuffer.allocate(buffer.remaining());
+        result.put(buffer.duplicate());
+        result.rewind();
+        return result;
+    }
+}
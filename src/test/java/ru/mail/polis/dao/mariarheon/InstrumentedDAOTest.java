@@ -0,0 +1,152 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link InstrumentedDAO} and {@link StorageMetrics}.
+ */
+class InstrumentedDAOTest extends TestBase {
+    @Test
+    void countsOperations() throws Exception {
+        final StorageMetrics metrics = new StorageMetrics();
+        final DAO dao = new InstrumentedDAO(new InMemoryDAO(), metrics);
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        dao.upsert(key, value);
+        assertEquals(value, dao.get(key));
+        assertThrows(NoSuchElementException.class, () -> dao.get(randomKeyBuffer()));
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        while (records.hasNext()) {
+            records.next();
+        }
+        dao.remove(key);
+
+        assertEquals(1, metrics.getUpserts());
+        assertEquals(1, metrics.getRemoves());
+        assertEquals(2, metrics.getReads());
+        assertEquals(1, metrics.getReadMisses());
+        assertEquals(1, metrics.getScans());
+        assertEquals(2L * key.remaining() + value.remaining(), metrics.getBytesWritten());
+        assertEquals(2L * value.remaining() + key.remaining(), metrics.getBytesRead());
+    }
+
+    @Test
+    void spaceAmplification() throws Exception {
+        final StorageMetrics metrics = new StorageMetrics();
+        final DAO dao = new InstrumentedDAO(new InMemoryDAO(), metrics);
+        dao.compact();
+        assertEquals(1, metrics.getCompactions());
+        assertTrue(Double.isNaN(metrics.getSpaceAmplification()));
+
+        final File directory = Files.createTempDirectory();
+        try {
+            write(new File(directory, "compacted"), 2000);
+            metrics.directory(directory);
+            dao.compact();
+            assertEquals(2000, metrics.getLiveBytes());
+            assertEquals(1.0, metrics.getSpaceAmplification());
+
+            write(new File(directory, "flushed"), 1000);
+            assertEquals(3000, metrics.getDiskBytes());
+            assertEquals(1.5, metrics.getSpaceAmplification());
+        } finally {
+            Files.recursiveDelete(directory);
+        }
+    }
+
+    @Test
+    void amplificationUnknownUntilReported() throws Exception {
+        final StorageMetrics metrics = new StorageMetrics();
+        final DAO dao = new InstrumentedDAO(new InMemoryDAO(), metrics);
+        dao.upsert(randomKeyBuffer(), randomValueBuffer());
+        assertTrue(Double.isNaN(metrics.getWriteAmplification()));
+        assertTrue(Double.isNaN(metrics.getReadAmplification()));
+    }
+
+    @Test
+    void amplificationByStrategy() throws Exception {
+        final StorageMetrics metrics = new StorageMetrics();
+        metrics.compactionStrategy("size-tiered");
+        metrics.upsert(100, 1000);
+        metrics.written(300);
+        metrics.read(true, 10, 1000);
+        metrics.touched(4);
+
+        metrics.compactionStrategy("leveled");
+        metrics.upsert(100, 1000);
+        metrics.written(100);
+        metrics.read(true, 10, 1000);
+        metrics.touched(2);
+
+        assertEquals(2.0, metrics.getWriteAmplification());
+        assertEquals(3.0, metrics.getReadAmplification());
+        metrics.register("strategies");
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName sizeTiered = strategy(server, "size-tiered");
+            assertEquals(3.0, server.getAttribute(sizeTiered, "WriteAmplification"));
+            assertEquals(4.0, server.getAttribute(sizeTiered, "ReadAmplification"));
+            final ObjectName leveled = strategy(server, "leveled");
+            assertEquals(1.0, server.getAttribute(leveled, "WriteAmplification"));
+            assertEquals(2.0, server.getAttribute(leveled, "ReadAmplification"));
+        } finally {
+            metrics.unregister();
+        }
+        assertTrue(ManagementFactory.getPlatformMBeanServer()
+                .queryNames(StorageMetrics.AMPLIFICATION_PATTERN, null).isEmpty());
+    }
+
+    @Test
+    void publishedOverJmx() throws Exception {
+        final StorageMetrics metrics = new StorageMetrics();
+        metrics.register("test");
+        try {
+            metrics.upsert(10, 1000);
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = server.queryNames(StorageMetrics.PATTERN, null).stream()
+                    .filter(candidate -> candidate.getKeyProperty("name").contains("test"))
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(1L, server.getAttribute(name, "Upserts"));
+            assertEquals(10L, server.getAttribute(name, "BytesWritten"));
+        } finally {
+            metrics.unregister();
+        }
+        assertTrue(ManagementFactory.getPlatformMBeanServer().queryNames(StorageMetrics.PATTERN, null).isEmpty());
+    }
+
+    private static ObjectName strategy(
+            final MBeanServer server,
+            final String strategy) {
+        return server.queryNames(StorageMetrics.AMPLIFICATION_PATTERN, null).stream()
+                .filter(candidate -> candidate.getKeyProperty("strategy").contains(strategy))
+                .findFirst()
+                .orElseThrow();
+    }
+
+    private static void write(
+            final File file,
+            final int size) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[size]);
+        }
+    }
+}
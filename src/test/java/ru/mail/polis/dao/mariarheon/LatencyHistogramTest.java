@@ -0,0 +1,53 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link LatencyHistogram}.
+ */
+class LatencyHistogramTest {
+
+    @Test
+    void empty() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.quantileMicros(0.99));
+    }
+
+    @Test
+    void quantilesWithinPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (long micros = 1; micros <= 100_000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+
+        assertEquals(100_000, histogram.count());
+        assertEquals(100_000, histogram.maxMicros());
+        for (final double quantile : new double[]{0.5, 0.9, 0.99, 0.999}) {
+            final double expected = quantile * 100_000;
+            final long actual = histogram.quantileMicros(quantile);
+            assertTrue(Math.abs(actual - expected) <= expected / 32, quantile + ": " + actual);
+        }
+    }
+
+    @Test
+    void bucketsAreMonotonic() {
+        int previous = LatencyHistogram.bucket(0);
+        for (long micros = 1; micros < LatencyHistogram.MAX_MICROS; micros = micros * 3 / 2 + 1) {
+            final int current = LatencyHistogram.bucket(micros);
+            assertTrue(current >= previous);
+            previous = current;
+        }
+    }
+
+    @Test
+    void clampsHugeValues() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(LatencyHistogram.MAX_MICROS, histogram.quantileMicros(1.0));
+    }
+}
@@ -0,0 +1,89 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link MemoryBudget}.
+ */
+class MemoryBudgetTest {
+    private static final long HEAP = 256 * 1024 * 1024;
+
+    @Test
+    void sharesOfHeap() {
+        final MemoryBudget budget = new MemoryBudget(HEAP, HEAP);
+        assertEquals(16 * 1024 * 1024, budget.cacheBytes());
+        assertEquals(1024, budget.queueSize());
+    }
+
+    @Test
+    void shrinksUnderPressureAndRecovers() {
+        final MemoryBudget budget = new MemoryBudget(HEAP, HEAP);
+        final List<Long> caches = new ArrayList<>();
+        budget.onChange(changed -> caches.add(changed.cacheBytes()));
+
+        for (int i = 0; i < 5; i++) {
+            budget.adjust(0.9);
+        }
+        assertEquals(MemoryBudget.MIN_SCALE, budget.scale());
+        assertEquals(List.of(8L << 20, 4L << 20, 2L << 20), caches);
+        assertEquals(1024, budget.queueSize());
+
+        budget.adjust(0.6);
+        assertEquals(3, caches.size());
+
+        for (int i = 0; i < 5; i++) {
+            budget.adjust(0.1);
+        }
+        assertEquals(1.0, budget.scale());
+        assertEquals(16 * 1024 * 1024, budget.cacheBytes());
+        assertEquals(6, caches.size());
+    }
+
+    @Test
+    void followsRuntime() {
+        final MemoryBudget budget = MemoryBudget.ofRuntime();
+        assertEquals(Runtime.getRuntime().maxMemory(), budget.heapBytes());
+        assertTrue(budget.directBytes() > 0);
+        budget.start();
+        try {
+            System.gc();
+            assertTrue(budget.scale() >= MemoryBudget.MIN_SCALE);
+        } finally {
+            budget.close();
+        }
+    }
+
+    @Test
+    void thresholdsOnTenuredPools() {
+        final MemoryBudget budget = MemoryBudget.ofRuntime();
+        budget.start();
+        try {
+            for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() != MemoryType.HEAP
+                        || !pool.isUsageThresholdSupported()
+                        || !pool.isCollectionUsageThresholdSupported()
+                        || pool.getUsage().getMax() <= 0) {
+                    continue;
+                }
+                final long max = pool.getUsage().getMax();
+                assertEquals((long) (max * MemoryBudget.LOW_OCCUPANCY), pool.getUsageThreshold());
+                assertEquals((long) (max * MemoryBudget.HIGH_OCCUPANCY), pool.getCollectionUsageThreshold());
+            }
+        } finally {
+            budget.close();
+        }
+        for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.isUsageThresholdSupported()) {
+                assertEquals(0, pool.getUsageThreshold());
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package ru.mail.polis.dao.mariarheon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Files;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ValueLogDAO}.
+ */
+class ValueLogDAOTest extends TestBase {
+    private static final int THRESHOLD = 128;
+    private static final long SEGMENT_SIZE = 16 * 1024;
+
+    private File directory;
+    private InMemoryDAO keys;
+    private ValueLogDAO dao;
+
+    @BeforeEach
+    void open() throws IOException {
+        directory = Files.createTempDirectory();
+        keys = new InMemoryDAO();
+        dao = new ValueLogDAO(keys, directory, THRESHOLD, SEGMENT_SIZE, SEGMENT_SIZE);
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        dao.close();
+        Files.recursiveDelete(directory);
+    }
+
+    @Test
+    void separatesLargeValues() throws IOException {
+        final ByteBuffer small = randomKeyBuffer();
+        final ByteBuffer large = randomKeyBuffer();
+        final ByteBuffer smallValue = randomBuffer(THRESHOLD - 1);
+        final ByteBuffer largeValue = randomValueBuffer();
+        dao.upsert(small, smallValue);
+        dao.upsert(large, largeValue);
+
+        assertEquals(smallValue, dao.get(small));
+        assertEquals(largeValue, dao.get(large));
+        assertEquals(THRESHOLD, keys.get(small).remaining());
+        assertTrue(keys.get(large).remaining() < THRESHOLD);
+
+        dao.remove(large);
+        assertThrows(NoSuchElementException.class, () -> dao.get(large));
+    }
+
+    @Test
+    void reportsDiskWritesAndReads() throws IOException {
+        final StorageMetrics metrics = new StorageMetrics();
+        final InstrumentedDAO instrumented = new InstrumentedDAO(dao, metrics);
+        final ByteBuffer large = randomKeyBuffer();
+        final ByteBuffer largeValue = randomValueBuffer();
+        final ByteBuffer small = randomKeyBuffer();
+        instrumented.upsert(large, largeValue);
+        instrumented.upsert(small, randomBuffer(10));
+        assertEquals(2L * Integer.BYTES + large.remaining() + largeValue.remaining(), metrics.getDiskBytesWritten());
+
+        instrumented.get(large);
+        instrumented.get(small);
+        assertEquals(1, metrics.getSegmentsTouched());
+        assertEquals(0.5, metrics.getReadAmplification());
+        assertTrue(metrics.getDiskBytes() >= metrics.getDiskBytesWritten());
+    }
+
+    @Test
+    void iteratesResolved() throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = i % 2 == 0 ? randomValueBuffer() : randomBuffer(10);
+            expected.put(key, value);
+            dao.upsert(key, value);
+        }
+
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @Test
+    void garbageCollectionKeepsLiveValues() throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            expected.put(key, randomValueBuffer());
+            dao.upsert(key, expected.get(key));
+        }
+        // Overwrite and remove a half, the old versions are garbage
+        int i = 0;
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            if (i++ % 2 == 0) {
+                entry.setValue(randomValueBuffer());
+                dao.upsert(entry.getKey(), entry.getValue());
+            }
+        }
+        final ByteBuffer removed = expected.firstKey();
+        expected.remove(removed);
+        dao.remove(removed);
+        assertTrue(dao.segments() > 2);
+
+        final long rewritten = dao.collectGarbage(Long.MAX_VALUE);
+        assertTrue(rewritten > 0);
+        assertTrue(rewritten <= expected.size() * 1024L);
+        assertTrue(dao.segments() <= expected.size() * 1024L / SEGMENT_SIZE + 2);
+
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        assertThrows(NoSuchElementException.class, () -> dao.get(removed));
+    }
+
+    @Test
+    void collectsFromTailAfterPersisting() throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        for (int i = 0; i < 100; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            expected.put(key, randomValueBuffer());
+            dao.upsert(key, expected.get(key));
+        }
+        final int segments = dao.segments();
+        assertTrue(segments > 3);
+
+        assertTrue(dao.collectGarbage(1) > 0);
+        assertTrue(dao.segments() >= segments - 1);
+        // The moved pointers are in the memtable only, the segment stays on the disk
+        assertTrue(segment(0).exists());
+
+        dao.compact();
+        assertFalse(segment(0).exists());
+        assertTrue(segment(1).exists());
+        assertTrue(segment(2).exists());
+
+        for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), dao.get(entry.getKey()));
+        }
+        dao.close();
+        assertFalse(segment(1).exists());
+        assertTrue(segment(2).exists());
+    }
+
+    @Test
+    void reopensLog() throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        dao.upsert(key, value);
+        final ByteBuffer pointer = keys.get(key);
+
+        final InMemoryDAO reopened = new InMemoryDAO();
+        reopened.upsert(key, pointer);
+        try (ValueLogDAO again = new ValueLogDAO(reopened, directory, THRESHOLD, SEGMENT_SIZE, SEGMENT_SIZE)) {
+            assertEquals(value, again.get(key));
+            again.compact();
+            assertEquals(value, again.get(key));
+        }
+    }
+
+    @Test
+    void reopenedLogAppendsToLastSegment() throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        dao.upsert(key, randomValueBuffer());
+        final long written = segment(0).length();
+        // An entry torn by a crash: the key is there, the value is not
+        try (FileOutputStream out = new FileOutputStream(segment(0), true)) {
+            out.write(new byte[]{0, 0, 0, 4, 1, 2, 3, 4, 0, 0, 4, 0, 5});
+        }
+
+        final InMemoryDAO reopened = new InMemoryDAO();
+        reopened.upsert(key, keys.get(key));
+        try (ValueLogDAO again = new ValueLogDAO(reopened, directory, THRESHOLD, SEGMENT_SIZE, SEGMENT_SIZE)) {
+            assertEquals(1, again.segments());
+            assertEquals(written, segment(0).length());
+
+            final ByteBuffer next = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            again.upsert(next, value);
+            assertEquals(value, again.get(next));
+            assertFalse(segment(1).exists());
+        }
+    }
+
+    private File segment(final int id) {
+        return new File(directory, id + ".vlog");
+    }
+}
@@ -0,0 +1,43 @@
+package ru.mail.polis.load;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks the indexes of the keys requested by the {@link LoadGenerator}.
+ */
+interface KeyDistribution {
+
+    /**
+     * Returns the next key index from {@code 0} inclusive to the number of keys exclusive.
+     */
+    long next(@NotNull Random random);
+
+    /**
+     * Creates the distribution by its name: {@code uniform}, {@code zipfian} or {@code sequential}.
+     *
+     * @param keys number of distinct keys
+     */
+    @NotNull
+    static KeyDistribution parse(
+            @NotNull final String name,
+            final long keys) {
+        if (keys <= 0) {
+            throw new IllegalArgumentException("Keys must be positive");
+        }
+
+        switch (name) {
+            case "uniform":
+                return random -> Math.floorMod(random.nextLong(), keys);
+            case "zipfian":
+                return new Zipfian(keys, Zipfian.THETA);
+            case "sequential":
+                final AtomicLong next = new AtomicLong();
+                return random -> Math.floorMod(next.getAndIncrement(), keys);
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + name);
+        }
+    }
+}
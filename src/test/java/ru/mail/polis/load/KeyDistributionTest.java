@@ -0,0 +1,59 @@
+package ru.mail.polis.load;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link KeyDistribution}s.
+ */
+class KeyDistributionTest {
+    private static final long KEYS = 10_000;
+    private static final int SAMPLES = 100_000;
+
+    @Test
+    void staysInRange() {
+        final Random random = new Random(1);
+        for (final String name : new String[]{"uniform", "zipfian", "sequential"}) {
+            final KeyDistribution distribution = KeyDistribution.parse(name, KEYS);
+            for (int i = 0; i < SAMPLES; i++) {
+                final long key = distribution.next(random);
+                assertTrue(key >= 0 && key < KEYS, name + " produced " + key);
+            }
+        }
+    }
+
+    @Test
+    void zipfianIsSkewed() {
+        final Random random = new Random(1);
+        final KeyDistribution distribution = KeyDistribution.parse("zipfian", KEYS);
+        int hot = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            if (distribution.next(random) < KEYS / 100) {
+                hot++;
+            }
+        }
+        // The hottest percent of the keys takes the majority of the requests
+        assertTrue(hot > SAMPLES / 2, "Only " + hot + " hot keys");
+    }
+
+    @Test
+    void sequentialWraps() {
+        final KeyDistribution distribution = KeyDistribution.parse("sequential", 3);
+        final Random random = new Random(1);
+        final List<Long> keys = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            keys.add(distribution.next(random));
+        }
+        assertEquals(List.of(0L, 1L, 2L, 0L, 1L), keys);
+    }
+
+    @Test
+    void unknownIsRejected() {
+        assertThrows(IllegalArgumentException.class, () -> KeyDistribution.parse("gaussian", KEYS));
+    }
+}
@@ -0,0 +1,354 @@
+package ru.mail.polis.load;
+
+import org.HdrHistogram.Histogram;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Open-loop HTTP load generator for the storage nodes.
+ * <p>
+ * Requests are scheduled at a constant rate regardless of the responses, spread evenly
+ * over the connections, each connection has a single request in flight. The latency of a request
+ * is measured from the time it was scheduled to be sent, not from the time it was sent,
+ * so a stalled server is charged for all the requests it kept waiting, the way wrk2 does it.
+ * The latencies measured from the actual send are reported as well for comparison.
+ * <p>
+ * Run with {@code ./gradlew load -PloadArgs="--rate 5000 --mix get=90,put=10"}, the options are
+ * <ul>
+ * <li>{@code --url} node to load, {@code http://localhost:8080} by default</li>
+ * <li>{@code --rate} requests per second in total</li>
+ * <li>{@code --duration} and {@code --warmup} in seconds, the warmup is not reported</li>
+ * <li>{@code --connections} number of connections</li>
+ * <li>{@code --mix} weights of {@code get}, {@code put}, {@code delete} and {@code range}</li>
+ * <li>{@code --keys} and {@code --distribution} key space size and {@link KeyDistribution}</li>
+ * <li>{@code --value-size} and {@code --range-size} size of a value and number of keys in a range</li>
+ * </ul>
+ */
+public final class LoadGenerator {
+    private static final long MAX_LATENCY_MICROS = TimeUnit.MINUTES.toMicros(1);
+    private static final int SIGNIFICANT_DIGITS = 3;
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9, 99.99};
+
+    private final Options options;
+    private final KeyDistribution keys;
+    private final Operation[] mix;
+
+    private enum Operation {
+        GET, PUT, DELETE, RANGE
+    }
+
+    private LoadGenerator(@NotNull final Options options) {
+        this.options = options;
+        this.keys = KeyDistribution.parse(options.distribution, options.keys);
+        this.mix = parseMix(options.mix);
+    }
+
+    public static void main(final String[] args) throws InterruptedException {
+        final LoadGenerator generator = new LoadGenerator(Options.parse(args));
+        generator.run();
+    }
+
+    private void run() throws InterruptedException {
+        final double intervalNanos = TimeUnit.SECONDS.toNanos(1) / (double) options.rate;
+        final long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measured = start + TimeUnit.SECONDS.toNanos(options.warmup);
+        final long end = measured + TimeUnit.SECONDS.toNanos(options.duration);
+
+        final List<Connection> connections = new ArrayList<>(options.connections);
+        final List<Thread> threads = new ArrayList<>(options.connections);
+        for (int i = 0; i < options.connections; i++) {
+            final Connection connection = new Connection(i, start, measured, end, intervalNanos);
+            connections.add(connection);
+            final Thread thread = new Thread(connection, "load-" + i);
+            threads.add(thread);
+            thread.start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+
+        report(connections);
+    }
+
+    private void report(@NotNull final List<Connection> connections) {
+        final Histogram corrected = histogram();
+        final Histogram uncorrected = histogram();
+        final Map<Operation, Histogram> operations = new EnumMap<>(Operation.class);
+        final Map<Operation, Long> errors = new EnumMap<>(Operation.class);
+        for (final Operation operation : Operation.values()) {
+            operations.put(operation, histogram());
+            errors.put(operation, 0L);
+        }
+        long behind = 0;
+        for (final Connection connection : connections) {
+            corrected.add(connection.corrected);
+            uncorrected.add(connection.uncorrected);
+            for (final Operation operation : Operation.values()) {
+                operations.get(operation).add(connection.operations.get(operation));
+                errors.merge(operation, connection.errors.get(operation), Long::sum);
+            }
+            behind = Math.max(behind, connection.maxBehindNanos);
+        }
+
+        System.out.printf(
+                "%d requests in %d s at %d rps target, %.1f rps achieved, %d connections%n",
+                corrected.getTotalCount(),
+                options.duration,
+                options.rate,
+                corrected.getTotalCount() / (double) options.duration,
+                options.connections);
+        System.out.printf("Largest lag behind schedule: %.3f ms%n", behind / 1_000_000.0);
+        System.out.printf("%n%-12s %10s %10s", "latency, ms", "count", "errors");
+        for (final double percentile : PERCENTILES) {
+            System.out.printf(" %10s", "p" + percentile);
+        }
+        System.out.printf(" %10s%n", "max");
+        print("corrected", corrected, -1);
+        print("uncorrected", uncorrected, -1);
+        for (final Operation operation : Operation.values()) {
+            final Histogram histogram = operations.get(operation);
+            if (histogram.getTotalCount() > 0) {
+                print(operation.name().toLowerCase(Locale.ROOT), histogram, errors.get(operation));
+            }
+        }
+    }
+
+    private static void print(
+            @NotNull final String name,
+            @NotNull final Histogram histogram,
+            final long errors) {
+        System.out.printf("%-12s %10d %10s", name, histogram.getTotalCount(), errors < 0 ? "" : errors);
+        for (final double percentile : PERCENTILES) {
+            System.out.printf(" %10.3f", histogram.getValueAtPercentile(percentile) / 1000.0);
+        }
+        System.out.printf(" %10.3f%n", histogram.getMaxValue() / 1000.0);
+    }
+
+    @NotNull
+    private static Histogram histogram() {
+        return new Histogram(MAX_LATENCY_MICROS, SIGNIFICANT_DIGITS);
+    }
+
+    private static void record(
+            @NotNull final Histogram histogram,
+            final long nanos) {
+        histogram.recordValue(Math.min(TimeUnit.NANOSECONDS.toMicros(nanos), MAX_LATENCY_MICROS));
+    }
+
+    /**
+     * Expands {@code get=90,put=10} into a table of operations a random index picks from.
+     */
+    @NotNull
+    private static Operation[] parseMix(@NotNull final String mix) {
+        final List<Operation> table = new ArrayList<>();
+        for (final String part : mix.split(",")) {
+            final int equals = part.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("Expected operation=weight: " + part);
+            }
+            final Operation operation = Operation.valueOf(part.substring(0, equals).trim().toUpperCase(Locale.ROOT));
+            final int weight = Integer.parseInt(part.substring(equals + 1).trim());
+            for (int i = 0; i < weight; i++) {
+                table.add(operation);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Empty mix: " + mix);
+        }
+        return table.toArray(new Operation[0]);
+    }
+
+    @NotNull
+    private static String key(final long index) {
+        return String.format("k%012d", index);
+    }
+
+    /**
+     * Sends its share of the schedule over a single connection.
+     */
+    private final class Connection implements Runnable {
+        private final int index;
+        private final long start;
+        private final long measured;
+        private final long end;
+        private final double intervalNanos;
+        private final HttpClient client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofSeconds(1))
+                .build();
+        private final byte[] value = new byte[options.valueSize];
+        private final Histogram corrected = histogram();
+        private final Histogram uncorrected = histogram();
+        private final Map<Operation, Histogram> operations = new EnumMap<>(Operation.class);
+        private final Map<Operation, Long> errors = new EnumMap<>(Operation.class);
+        private long maxBehindNanos;
+
+        Connection(
+                final int index,
+                final long start,
+                final long measured,
+                final long end,
+                final double intervalNanos) {
+            this.index = index;
+            this.start = start;
+            this.measured = measured;
+            this.end = end;
+            this.intervalNanos = intervalNanos;
+            ThreadLocalRandom.current().nextBytes(value);
+            for (final Operation operation : Operation.values()) {
+                operations.put(operation, histogram());
+                errors.put(operation, 0L);
+            }
+        }
+
+        @Override
+        public void run() {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (long i = index; ; i += options.connections) {
+                final long scheduled = start + (long) (i * intervalNanos);
+                if (scheduled >= end) {
+                    return;
+                }
+                long now = System.nanoTime();
+                while (now < scheduled) {
+                    LockSupport.parkNanos(scheduled - now);
+                    now = System.nanoTime();
+                }
+
+                final Operation operation = mix[random.nextInt(mix.length)];
+                final boolean ok = send(operation, keys.next(random));
+                final long done = System.nanoTime();
+                if (scheduled >= measured) {
+                    maxBehindNanos = Math.max(maxBehindNanos, now - scheduled);
+                    record(corrected, done - scheduled);
+                    record(uncorrected, done - now);
+                    record(operations.get(operation), done - scheduled);
+                    if (!ok) {
+                        errors.merge(operation, 1L, Long::sum);
+                    }
+                }
+            }
+        }
+
+        private boolean send(
+                @NotNull final Operation operation,
+                final long key) {
+            final HttpRequest.Builder request;
+            final int expected;
+            switch (operation) {
+                case GET:
+                    request = request("/v0/entity?id=" + key(key)).GET();
+                    expected = 200;
+                    break;
+                case PUT:
+                    request = request("/v0/entity?id=" + key(key)).PUT(HttpRequest.BodyPublishers.ofByteArray(value));
+                    expected = 201;
+                    break;
+                case DELETE:
+                    request = request("/v0/entity?id=" + key(key)).DELETE();
+                    expected = 202;
+                    break;
+                case RANGE:
+                    final String range = "/v0/entities?start=" + key(key) + "&end=" + key(key + options.rangeSize);
+                    request = request(range).GET();
+                    expected = 200;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown operation " + operation);
+            }
+
+            try {
+                final int status = client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+                return status == expected || (operation == Operation.GET && status == 404);
+            } catch (IOException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @NotNull
+        private HttpRequest.Builder request(@NotNull final String uri) {
+            return HttpRequest.newBuilder(URI.create(options.url + uri)).timeout(Duration.ofSeconds(options.timeout));
+        }
+    }
+
+    /**
+     * Command line options.
+     */
+    private static final class Options {
+        private String url = "http://localhost:8080";
+        private int rate = 1000;
+        private int duration = 30;
+        private int warmup = 5;
+        private int connections = 16;
+        private int timeout = 10;
+        private String mix = "get=80,put=15,delete=4,range=1";
+        private long keys = 1_000_000;
+        private String distribution = "zipfian";
+        private int valueSize = 1024;
+        private int rangeSize = 10;
+
+        @NotNull
+        static Options parse(@NotNull final String... args) {
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("Expected --option value pairs");
+            }
+            final Map<String, String> values = new HashMap<>();
+            for (int i = 0; i < args.length; i += 2) {
+                if (!args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Expected an option: " + args[i]);
+                }
+                values.put(args[i].substring(2), args[i + 1]);
+            }
+
+            final Options result = new Options();
+            result.url = values.getOrDefault("url", result.url);
+            result.rate = positive(values, "rate", result.rate);
+            result.duration = positive(values, "duration", result.duration);
+            result.warmup = Integer.parseInt(values.getOrDefault("warmup", Integer.toString(result.warmup)));
+            if (result.warmup < 0) {
+                throw new IllegalArgumentException("warmup must not be negative");
+            }
+            result.connections = positive(values, "connections", result.connections);
+            result.timeout = positive(values, "timeout", result.timeout);
+            result.mix = values.getOrDefault("mix", result.mix);
+            result.keys = positive(values, "keys", (int) result.keys);
+            result.distribution = values.getOrDefault("distribution", result.distribution);
+            result.valueSize = positive(values, "value-size", result.valueSize);
+            result.rangeSize = positive(values, "range-size", result.rangeSize);
+            return result;
+        }
+
+        private static int positive(
+                @NotNull final Map<String, String> values,
+                @NotNull final String name,
+                final int defaultValue) {
+            final String value = values.get(name);
+            if (value == null) {
+                return defaultValue;
+            }
+            final int result = Integer.parseInt(value);
+            if (result <= 0) {
+                throw new IllegalArgumentException(name + " must be positive");
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package ru.mail.polis.load;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Random;
+
+/**
+ * Zipfian {@link KeyDistribution}, the lower indexes are the hotter ones.
+ * <p>
+ * Follows Gray et al., "Quickly Generating Billion-Record Synthetic Databases",
+ * as YCSB does: constant time per key after a linear precomputation.
+ */
+final class Zipfian implements KeyDistribution {
+    static final double THETA = 0.99;
+
+    private final long keys;
+    private final double theta;
+    private final double zetaN;
+    private final double alpha;
+    private final double eta;
+
+    Zipfian(
+            final long keys,
+            final double theta) {
+        this.keys = keys;
+        this.theta = theta;
+        this.zetaN = zeta(keys, theta);
+        this.alpha = 1.0 / (1.0 - theta);
+        final double zeta2 = zeta(2, theta);
+        this.eta = (1.0 - Math.pow(2.0 / keys, 1.0 - theta)) / (1.0 - zeta2 / zetaN);
+    }
+
+    @Override
+    public long next(@NotNull final Random random) {
+        final double u = random.nextDouble();
+        final double uz = u * zetaN;
+        if (uz < 1.0) {
+            return 0;
+        }
+        if (uz < 1.0 + Math.pow(0.5, theta)) {
+            return Math.min(1, keys - 1);
+        }
+        final long result = (long) (keys * Math.pow(eta * u - eta + 1.0, alpha));
+        return Math.min(result, keys - 1);
+    }
+
+    private static double zeta(
+            final long n,
+            final double theta) {
+        double sum = 0.0;
+        for (long i = 1; i <= n; i++) {
+            sum += 1.0 / Math.pow(i, theta);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,173 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static ru.mail.polis.Allocations.*;
+
+/**
+ * Allocation budgets of the request path, exceeding a budget is a regression.
+ * <p>
+ * The storage is measured over a DAO keeping nothing, so only the allocations of the service count,
+ * the HTTP path is measured on the server threads for requests sent over a kept-alive connection.
+ */
+class AllocationBudgetTest extends TestBase {
+    private static final int VALUE_LENGTH = 1024;
+    private static final long CACHE_HIT_BUDGET = 384;
+    private static final long UPSERT_BUDGET = KEY_LENGTH + VALUE_LENGTH + 512;
+    private static final long REQUEST_BUDGET = 16 * 1024;
+    private static final int WARMUP = 20_000;
+    private static final int COUNT = 10_000;
+    private static final int REQUEST_WARMUP = 5_000;
+    private static final int REQUEST_COUNT = 2_000;
+    // one-nio names its selectors "NIO Selector #n", the storage is called on the worker pool
+    private static final List<String> SERVER_THREADS = List.of("NIO Selector", "worker-");
+
+    @Test
+    void cachedGet() throws Exception {
+        final EntityStorage storage = new EntityStorage(new InMemoryDAO(), 1024 * 1024);
+        final ByteBuffer key = randomKeyBuffer();
+        storage.upsert(key, randomValueBuffer(), 1);
+        storage.get(key).join();
+
+        final long allocated = perOperation(WARMUP, COUNT, i -> storage.get(key).join());
+        assertWithin(CACHE_HIT_BUDGET, allocated, "EntityStorage.get cached");
+    }
+
+    @Test
+    void upsert() throws Exception {
+        final EntityStorage storage = new EntityStorage(new DiscardingDAO(), 1024 * 1024);
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        final long allocated = perOperation(WARMUP, COUNT, i -> storage.upsert(key, value, i));
+        assertWithin(UPSERT_BUDGET, allocated, "EntityStorage.upsert");
+    }
+
+    @Test
+    void httpRequests() throws Exception {
+        final int port = randomPort();
+        final String me = "http://localhost:" + port;
+        final AsyncService service = new AsyncService(
+                port,
+                new InMemoryDAO(),
+                new RendezvousTopology(me, Set.of(me)),
+                1024,
+                1024 * 1024);
+        service.start();
+        try (Socket socket = new Socket("localhost", port)) {
+            final OutputStream out = socket.getOutputStream();
+            final InputStream in = new BufferedInputStream(socket.getInputStream());
+            final byte[] value = randomValue();
+            final byte[] put = request("PUT", "key", value.length);
+            final byte[] get = request("GET", "key", 0);
+
+            final long allocated = perOperationOn(SERVER_THREADS, REQUEST_WARMUP, REQUEST_COUNT, i -> {
+                if (i % 2 == 0) {
+                    out.write(put);
+                    out.write(value);
+                    assertEquals(201, readResponse(in));
+                } else {
+                    out.write(get);
+                    assertEquals(200, readResponse(in));
+                }
+            });
+            assertWithin(REQUEST_BUDGET, allocated, "HTTP request");
+        } finally {
+            service.stop();
+        }
+    }
+
+    @NotNull
+    private static byte[] request(
+            @NotNull final String method,
+            @NotNull final String id,
+            final int length) {
+        return (method + " /v0/entity?id=" + id + " HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a response skipping its body.
+     *
+     * @return the status
+     */
+    private static int readResponse(@NotNull final InputStream in) throws IOException {
+        final int status = Integer.parseInt(readLine(in).split(" ")[1]);
+        long length = 0;
+        for (String header = readLine(in); !header.isEmpty(); header = readLine(in)) {
+            if (header.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                length = Long.parseLong(header.substring(15).trim());
+            }
+        }
+        for (long i = 0; i < length; i++) {
+            if (in.read() < 0) {
+                throw new EOFException("Body truncated");
+            }
+        }
+        return status;
+    }
+
+    @NotNull
+    private static String readLine(@NotNull final InputStream in) throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                throw new EOFException("Connection closed");
+            }
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Keeps nothing, so the allocations measured are of the caller only.
+     */
+    private static final class DiscardingDAO implements DAO {
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) {
+            return Collections.emptyIterator();
+        }
+
+        @Override
+        public void upsert(
+                @NotNull final ByteBuffer key,
+                @NotNull final ByteBuffer value) {
+            // Discarded
+        }
+
+        @Override
+        public void remove(@NotNull final ByteBuffer key) {
+            // Discarded
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+}
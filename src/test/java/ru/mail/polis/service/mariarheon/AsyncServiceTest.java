@@ -0,0 +1,74 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link AsyncService} in a cluster of two nodes.
+ */
+class AsyncServiceTest extends TestBase {
+    private final List<AsyncService> nodes = new ArrayList<>();
+
+    @AfterEach
+    void stop() {
+        for (final AsyncService node : nodes) {
+            node.stop();
+        }
+    }
+
+    @Test
+    void fullBatchesOfLargeValuesAccepted() throws Exception {
+        final List<String> endpoints = start(2);
+        final HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(1)).build();
+
+        // Enough writes at once to fill whole batches to the other replica
+        final List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            final HttpRequest request = HttpRequest.newBuilder(
+                    URI.create(endpoints.get(0) + "/v0/entity?id=" + randomId() + "&replicas=2/2"))
+                    .timeout(Duration.ofSeconds(5))
+                    .PUT(HttpRequest.BodyPublishers.ofByteArray(randomValue()))
+                    .build();
+            responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.discarding()));
+        }
+        for (final CompletableFuture<HttpResponse<Void>> response : responses) {
+            assertEquals(201, response.join().statusCode());
+        }
+    }
+
+    private List<String> start(final int count) throws IOException {
+        final List<Integer> ports = new ArrayList<>();
+        final List<String> endpoints = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final int port = randomPort();
+            ports.add(port);
+            endpoints.add("http://localhost:" + port);
+        }
+        for (int i = 0; i < count; i++) {
+            final AsyncService node = new AsyncService(
+                    ports.get(i),
+                    new InMemoryDAO(),
+                    new RendezvousTopology(endpoints.get(i), Set.copyOf(endpoints)),
+                    1024,
+                    1024 * 1024);
+            node.start();
+            nodes.add(node);
+        }
+        return endpoints;
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link BinaryServer} protocol.
+ */
+class BinaryServerTest extends TestBase {
+    private static final int TIMEOUT_MS = 10_000;
+
+    private int port;
+    private BinaryServer server;
+    private Socket socket;
+    private DataOutputStream out;
+    private DataInputStream in;
+
+    @BeforeEach
+    void beforeEach() throws IOException {
+        port = randomPort();
+        server = new BinaryServer(
+                port,
+                new EntityStorage(new InMemoryDAO(), 1024 * 1024),
+                new ConcurrencyLimiter("reads", 4, 1, 16),
+                new ConcurrencyLimiter("writes", 4, 1, 16),
+                2);
+        server.start();
+
+        socket = connect();
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    @AfterEach
+    void afterEach() throws IOException {
+        socket.close();
+        server.stop();
+    }
+
+    @Test
+    void pipelinedLifecycle() throws IOException {
+        final byte[] key = randomKeyBuffer().array();
+        final byte[] value = randomValue();
+
+        request(1, BinaryServer.OP_GET, key, new byte[0]);
+        request(2, BinaryServer.OP_UPSERT, key, value);
+        request(3, BinaryServer.OP_GET, key, new byte[0]);
+        request(4, BinaryServer.OP_REMOVE, key, new byte[0]);
+        request(5, BinaryServer.OP_GET, key, new byte[0]);
+        out.flush();
+
+        assertResponse(1, BinaryServer.STATUS_NOT_FOUND);
+        assertResponse(2, BinaryServer.STATUS_OK);
+        assertArrayEquals(value, assertResponse(3, BinaryServer.STATUS_OK));
+        assertResponse(4, BinaryServer.STATUS_OK);
+        assertResponse(5, BinaryServer.STATUS_NOT_FOUND);
+    }
+
+    @Test
+    void badRequest() throws IOException {
+        request(1, (byte) 42, randomKeyBuffer().array(), new byte[0]);
+        request(2, BinaryServer.OP_GET, new byte[0], new byte[0]);
+        out.flush();
+
+        assertResponse(1, BinaryServer.STATUS_BAD_REQUEST);
+        assertResponse(2, BinaryServer.STATUS_BAD_REQUEST);
+    }
+
+    @Test
+    void restarts() throws IOException {
+        server.stop();
+        server.start();
+        reconnect();
+
+        request(1, BinaryServer.OP_GET, randomKeyBuffer().array(), new byte[0]);
+        out.flush();
+        assertResponse(1, BinaryServer.STATUS_NOT_FOUND);
+    }
+
+    @Test
+    void connectionsOverLimitClosed() throws IOException {
+        try (Socket second = connect(); Socket third = connect()) {
+            second.getOutputStream().write(0);
+            assertEquals(-1, third.getInputStream().read());
+        }
+    }
+
+    private void reconnect() throws IOException {
+        socket.close();
+        socket = connect();
+        out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        in = new DataInputStream(socket.getInputStream());
+    }
+
+    @NotNull
+    private Socket connect() throws IOException {
+        final Socket result = new Socket();
+        result.connect(new InetSocketAddress("localhost", port), TIMEOUT_MS);
+        result.setSoTimeout(TIMEOUT_MS);
+        return result;
+    }
+
+    private void request(
+            final long id,
+            final byte op,
+            @NotNull final byte[] key,
+            @NotNull final byte[] value) throws IOException {
+        out.writeInt(Long.BYTES + Byte.BYTES + Integer.BYTES + key.length + value.length);
+        out.writeLong(id);
+        out.writeByte(op);
+        out.writeInt(key.length);
+        out.write(key);
+        out.write(value);
+    }
+
+    @NotNull
+    private byte[] assertResponse(
+            final long id,
+            final byte status) throws IOException {
+        final int length = in.readInt();
+        assertEquals(id, in.readLong());
+        assertEquals(status, in.readByte());
+        final byte[] value = new byte[length - Long.BYTES - Byte.BYTES];
+        in.readFully(value);
+        return value;
+    }
+}
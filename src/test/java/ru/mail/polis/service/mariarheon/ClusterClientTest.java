@@ -0,0 +1,141 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ClusterClient} against a fake peer.
+ */
+class ClusterClientTest extends TestBase {
+    private static final String ME = "http://localhost:1";
+
+    private final Map<String, Value> stored = new ConcurrentHashMap<>();
+    private HttpServer peer;
+    private String node;
+    private ClusterClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext("/v0/entity", this::entity);
+        peer.createContext("/v0/entities", this::stall);
+        peer.start();
+        node = "http://localhost:" + peer.getAddress().getPort();
+        client = new ClusterClient(new RendezvousTopology(ME, Set.of(ME, node)), 1000, 2);
+    }
+
+    @AfterEach
+    void stop() {
+        client.close();
+        peer.stop(0);
+    }
+
+    @Test
+    void lifecycle() {
+        final String id = randomId();
+        assertTrue(client.get(node, id).join().isAbsent());
+
+        final byte[] data = randomValue();
+        client.repair(node, id, Value.present(ByteBuffer.wrap(data), 42L)).join();
+        final Value value = client.get(node, id).join();
+        assertTrue(value.isPresent());
+        assertEquals(42L, value.timestamp());
+        assertEquals(ByteBuffer.wrap(data), value.data());
+
+        client.repair(node, id, Value.tombstone(43L)).join();
+        final Value removed = client.get(node, id).join();
+        assertTrue(removed.isTombstone());
+        assertEquals(43L, removed.timestamp());
+    }
+
+    @Test
+    void unexpectedStatusFails() {
+        final CompletionException e = assertThrows(
+                CompletionException.class,
+                () -> client.repair(node, "fail", Value.tombstone(1L)).join());
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    @Test
+    void stalledRangeStreamTimesOut() {
+        final RecordStream stream = client.range(node, "a", null).join();
+        assertThrows(UncheckedIOException.class, stream::hasNext);
+    }
+
+    /**
+     * Sends the headers and half a record, then stalls.
+     */
+    private void stall(final HttpExchange exchange) throws IOException {
+        exchange.sendResponseHeaders(200, 0);
+        exchange.getResponseBody().write(new byte[]{0, 0});
+        exchange.getResponseBody().flush();
+        new Thread(() -> {
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            exchange.close();
+        }).start();
+    }
+
+    private void entity(final HttpExchange exchange) throws IOException {
+        final String id = exchange.getRequestURI().getQuery().substring("id=".length());
+        final String timestamp = exchange.getRequestHeaders().getFirst("X-Timestamp");
+        if (exchange.getRequestHeaders().getFirst("X-Proxy-For") == null || "fail".equals(id)) {
+            respond(exchange, 500, new byte[0]);
+            return;
+        }
+
+        switch (exchange.getRequestMethod()) {
+            case "GET":
+                final Value value = stored.get(id);
+                if (value == null) {
+                    respond(exchange, 404, new byte[0]);
+                } else {
+                    final ByteBuffer buffer = value.toBuffer();
+                    final byte[] body = new byte[buffer.remaining()];
+                    buffer.get(body);
+                    respond(exchange, 200, body);
+                }
+                break;
+            case "PUT":
+                final byte[] data = exchange.getRequestBody().readAllBytes();
+                stored.put(id, Value.present(ByteBuffer.wrap(data), Long.parseLong(timestamp.trim())));
+                respond(exchange, 201, new byte[0]);
+                break;
+            case "DELETE":
+                stored.put(id, Value.tombstone(Long.parseLong(timestamp.trim())));
+                respond(exchange, 202, new byte[0]);
+                break;
+            default:
+                respond(exchange, 405, "Unsupported".getBytes(StandardCharsets.UTF_8));
+                break;
+        }
+    }
+
+    private static void respond(
+            final HttpExchange exchange,
+            final int status,
+            final byte[] body) throws IOException {
+        exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+    }
+}
@@ -0,0 +1,61 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ConcurrencyLimiter}.
+ */
+class ConcurrencyLimiterTest {
+
+    @Test
+    void shedsOverLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 2, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(1, limiter.rejected());
+
+        limiter.onSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    void dropHalvesLimit() {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 8, 1, 10);
+        assertTrue(limiter.tryAcquire());
+        limiter.onDropped();
+        assertEquals(4, limiter.limit());
+        assertEquals(0, limiter.inFlight());
+    }
+
+    @Test
+    void adaptsToLatency() throws InterruptedException {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter("test", 10, 1, 100);
+        for (int window = 0; window < 20; window++) {
+            runWindow(limiter, TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        final int grown = limiter.limit();
+        assertTrue(grown > 10, "Limit did not grow: " + grown);
+
+        for (int window = 0; window < 5; window++) {
+            runWindow(limiter, TimeUnit.MILLISECONDS.toNanos(50));
+        }
+        assertTrue(limiter.limit() < grown, "Limit did not shrink: " + limiter.limit());
+    }
+
+    private static void runWindow(
+            final ConcurrencyLimiter limiter,
+            final long latencyNanos) throws InterruptedException {
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.onSuccess(latencyNanos);
+        }
+        Thread.sleep(110);
+        assertTrue(limiter.tryAcquire());
+        limiter.onSuccess(latencyNanos);
+    }
+}
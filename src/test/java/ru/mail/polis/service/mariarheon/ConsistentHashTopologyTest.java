@@ -0,0 +1,74 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ConsistentHashTopology}.
+ */
+class ConsistentHashTopologyTest extends TestBase {
+    private static final int KEYS = 10_000;
+    private static final Set<String> NODES = Set.of(
+            "http://localhost:8080",
+            "http://localhost:8081",
+            "http://localhost:8082");
+
+    @Test
+    void sameOwnerOnAllNodes() {
+        final ConsistentHashTopology first = new ConsistentHashTopology("http://localhost:8080", NODES, 64);
+        final ConsistentHashTopology second = new ConsistentHashTopology("http://localhost:8082", NODES, 64);
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final String owner = first.primaryFor(key);
+            assertTrue(NODES.contains(owner));
+            assertEquals(owner, second.primaryFor(key));
+        }
+    }
+
+    @Test
+    void balanced() {
+        final ConsistentHashTopology topology = new ConsistentHashTopology("http://localhost:8080", NODES, 128);
+        final Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            load.merge(topology.primaryFor(randomKeyBuffer()), 1, Integer::sum);
+        }
+        for (final String node : NODES) {
+            final int keys = load.getOrDefault(node, 0);
+            assertTrue(keys > KEYS / NODES.size() / 2, node + " owns only " + keys);
+        }
+    }
+
+    @Test
+    void addingNodeMovesFewKeys() {
+        final ConsistentHashTopology before = new ConsistentHashTopology("http://localhost:8080", NODES, 128);
+        final ConsistentHashTopology after = new ConsistentHashTopology(
+                "http://localhost:8080",
+                Set.of("http://localhost:8080", "http://localhost:8081", "http://localhost:8082",
+                        "http://localhost:8083"),
+                128);
+        int moved = 0;
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final String owner = after.primaryFor(key);
+            if (!owner.equals(before.primaryFor(key))) {
+                assertEquals("http://localhost:8083", owner);
+                moved++;
+            }
+        }
+        assertTrue(moved < KEYS / 2, "Moved " + moved);
+    }
+
+    @Test
+    void rejectsForeignNode() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> new ConsistentHashTopology("http://localhost:9090", NODES, 64));
+    }
+}
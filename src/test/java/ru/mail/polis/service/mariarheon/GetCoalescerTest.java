@@ -0,0 +1,94 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link GetCoalescer}.
+ */
+class GetCoalescerTest extends TestBase {
+
+    @Test
+    void concurrentGetsShareLookup() throws Exception {
+        final BlockingDAO dao = new BlockingDAO();
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        dao.upsert(key, value);
+
+        final GetCoalescer coalescer = new GetCoalescer(dao);
+        final CompletableFuture<CompletableFuture<ByteBuffer>> leader =
+                CompletableFuture.supplyAsync(() -> coalescer.get(key));
+        assertTrue(dao.entered.await(1, TimeUnit.SECONDS));
+
+        final CompletableFuture<ByteBuffer> follower = coalescer.get(key);
+        assertFalse(follower.isDone());
+
+        dao.release.countDown();
+        assertEquals(value, follower.get());
+        assertSame(follower, leader.get());
+        assertEquals(1, dao.gets.get());
+    }
+
+    @Test
+    void writeBreaksSharing() throws Exception {
+        final BlockingDAO dao = new BlockingDAO();
+        final ByteBuffer key = randomKeyBuffer();
+        dao.upsert(key, randomValueBuffer());
+
+        final GetCoalescer coalescer = new GetCoalescer(dao);
+        final CompletableFuture<CompletableFuture<ByteBuffer>> stale =
+                CompletableFuture.supplyAsync(() -> coalescer.get(key));
+        assertTrue(dao.entered.await(1, TimeUnit.SECONDS));
+
+        final ByteBuffer fresh = randomValueBuffer();
+        dao.upsert(key, fresh);
+        coalescer.invalidate(key);
+        dao.release.countDown();
+
+        assertEquals(fresh, coalescer.get(key).get());
+        stale.get().get();
+        assertEquals(2, dao.gets.get());
+    }
+
+    @Test
+    void absent() {
+        final GetCoalescer coalescer = new GetCoalescer(new InMemoryDAO());
+        final ExecutionException e = assertThrows(
+                ExecutionException.class,
+                () -> coalescer.get(randomKeyBuffer()).get());
+        assertTrue(e.getCause() instanceof NoSuchElementException);
+    }
+
+    private static final class BlockingDAO extends InMemoryDAO {
+        private final CountDownLatch entered = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger gets = new AtomicInteger();
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+            gets.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return super.get(key);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link HedgedReads}.
+ */
+class HedgedReadsTest {
+    private static final List<String> NODES = List.of("slow", "fast", "spare");
+
+    private HedgedReads reads;
+
+    @AfterEach
+    void close() {
+        reads.close();
+    }
+
+    @Test
+    void slowReplicaHedged() throws Exception {
+        reads = new HedgedReads(100);
+        final Map<String, CompletableFuture<Value>> started = new ConcurrentHashMap<>();
+        final Value value = Value.present(ByteBuffer.allocate(1), 1L);
+        final Function<String, CompletableFuture<Value>> read = node -> "slow".equals(node)
+                ? new CompletableFuture<>()
+                : CompletableFuture.completedFuture(value);
+
+        // Earn the budget first
+        for (int i = 0; i < 10; i++) {
+            reads.read(List.of("fast"), 1, read, new ConcurrentHashMap<>()).join();
+        }
+
+        final List<Value> values = reads.read(NODES, 1, read, started).get(1, TimeUnit.SECONDS);
+        assertEquals(List.of(value), values);
+        assertEquals(1, reads.hedges());
+        assertEquals(2, started.size());
+        assertFalse(started.containsKey("spare"));
+    }
+
+    @Test
+    void failedReplicaReplacedWithoutBudget() {
+        reads = new HedgedReads(0);
+        final Value value = Value.tombstone(1L);
+        final Function<String, CompletableFuture<Value>> read = node -> "slow".equals(node)
+                ? CompletableFuture.failedFuture(new IllegalStateException("Down"))
+                : CompletableFuture.completedFuture(value);
+
+        assertEquals(List.of(value, value), reads.read(NODES, 2, read, new ConcurrentHashMap<>()).join());
+        assertEquals(0, reads.hedges());
+    }
+
+    @Test
+    void budgetExhausted() throws Exception {
+        reads = new HedgedReads(0);
+        final CompletableFuture<Value> pending = new CompletableFuture<>();
+        final CompletableFuture<List<Value>> result =
+                reads.read(NODES, 1, node -> pending, new ConcurrentHashMap<>());
+
+        TimeUnit.MILLISECONDS.sleep(100);
+        assertFalse(result.isDone());
+        assertEquals(0, reads.hedges());
+        assertEquals(1, reads.denied());
+    }
+
+    @Test
+    void failsWhenReplicasRunOut() {
+        reads = new HedgedReads(10);
+        final CompletableFuture<List<Value>> result = reads.read(
+                NODES,
+                2,
+                node -> "fast".equals(node)
+                        ? CompletableFuture.completedFuture(Value.absent())
+                        : CompletableFuture.failedFuture(new IllegalStateException("Down")),
+                new ConcurrentHashMap<>());
+        assertTrue(result.isCompletedExceptionally());
+    }
+}
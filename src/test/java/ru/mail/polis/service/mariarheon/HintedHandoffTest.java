@@ -0,0 +1,124 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link HintedHandoff}.
+ */
+class HintedHandoffTest {
+    private static final String NODE = "http://localhost:8081";
+
+    @Test
+    void replayedWhenAlive() {
+        final FakePeers peers = new FakePeers();
+        final HintedHandoff handoff = new HintedHandoff(peers, 1000);
+        for (int i = 0; i < 600; i++) {
+            handoff.hint(NODE, key("key" + i), Value.present(ByteBuffer.allocate(1), i));
+        }
+        assertEquals(600, handoff.pending());
+
+        peers.alive = false;
+        handoff.replay();
+        assertEquals(600, handoff.pending());
+        assertTrue(peers.repaired.isEmpty());
+
+        peers.alive = true;
+        handoff.replay();
+        assertEquals(0, handoff.pending());
+        assertEquals(600, handoff.replayed());
+        assertEquals(600, peers.repaired.size());
+        assertEquals(3, peers.batches);
+        handoff.close();
+    }
+
+    @Test
+    void largeBacklogReplayedInBodySizedBatches() {
+        final FakePeers peers = new FakePeers();
+        final HintedHandoff handoff = new HintedHandoff(peers, 1000);
+        for (int i = 0; i < 300; i++) {
+            handoff.hint(NODE, key("key" + i), Value.present(ByteBuffer.allocate(1024), i));
+        }
+
+        handoff.replay();
+        assertEquals(0, handoff.pending());
+        assertEquals(300, peers.repaired.size());
+        assertTrue(peers.batches > 300 * 1024 / WriteBatcher.MAX_BYTES);
+        assertTrue(peers.largest <= WriteBatcher.MAX_BYTES);
+        handoff.close();
+    }
+
+    @Test
+    void keptWhenReplayFails() {
+        final FakePeers peers = new FakePeers();
+        peers.failRepairs = true;
+        final HintedHandoff handoff = new HintedHandoff(peers, 1000);
+        handoff.hint(NODE, key("key"), Value.tombstone(1));
+
+        handoff.replay();
+        assertEquals(1, handoff.pending());
+        assertEquals(0, handoff.replayed());
+
+        peers.failRepairs = false;
+        handoff.replay();
+        assertEquals(0, handoff.pending());
+        assertEquals(List.of("key"), peers.repaired);
+        handoff.close();
+    }
+
+    @Test
+    void bounded() {
+        final HintedHandoff handoff = new HintedHandoff(new FakePeers(), 10);
+        for (int i = 0; i < 15; i++) {
+            handoff.hint(NODE, key("key" + i), Value.tombstone(i));
+        }
+        assertEquals(10, handoff.pending());
+        assertEquals(5, handoff.dropped());
+        handoff.close();
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final String id) {
+        return ByteBuffer.wrap(id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class FakePeers implements HintedHandoff.Peers {
+        private final List<String> repaired = new ArrayList<>();
+        private boolean alive = true;
+        private boolean failRepairs;
+        private int batches;
+        private int largest;
+
+        @NotNull
+        @Override
+        public CompletableFuture<Boolean> isAlive(@NotNull final String node) {
+            return CompletableFuture.completedFuture(alive);
+        }
+
+        @NotNull
+        @Override
+        public CompletableFuture<byte[]> repairs(
+                @NotNull final String node,
+                @NotNull final byte[] batch) {
+            if (failRepairs) {
+                return CompletableFuture.failedFuture(new IllegalStateException("Down"));
+            }
+            batches++;
+            largest = Math.max(largest, batch.length);
+            final List<Record> records = AntiEntropy.decode(ByteBuffer.wrap(batch));
+            for (final Record record : records) {
+                repaired.add(StandardCharsets.UTF_8.decode(record.getKey()).toString());
+            }
+            return CompletableFuture.completedFuture(new byte[records.size()]);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link MerkleTree}.
+ */
+class MerkleTreeTest extends TestBase {
+    @Test
+    void keysWithinTheirLeaves() {
+        for (int i = 0; i < 10_000; i++) {
+            final ByteBuffer key = i % 2 == 0 ? randomKeyBuffer() : randomBuffer(1);
+            final int leaf = MerkleTree.leaf(key);
+            assertTrue(MerkleTree.leafStart(leaf).compareTo(key) <= 0);
+            final ByteBuffer end = MerkleTree.leafEnd(leaf);
+            assertTrue(end == null || key.compareTo(end) < 0);
+        }
+        assertEquals(0, MerkleTree.leafStart(0).remaining());
+        assertNull(MerkleTree.leafEnd(MerkleTree.LEAVES - 1));
+    }
+
+    @Test
+    void sameDataSameTree() throws IOException {
+        final InMemoryDAO first = new InMemoryDAO();
+        final InMemoryDAO second = new InMemoryDAO();
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer value = randomValueBuffer();
+            first.upsert(key, value);
+            second.upsert(key, value);
+        }
+
+        final MerkleTree ours = new MerkleTree();
+        ours.refresh(first);
+        final MerkleTree theirs = new MerkleTree();
+        theirs.refresh(second);
+        assertTrue(ours.diff(theirs).isEmpty());
+        assertTrue(ours.diff(MerkleTree.fromBuffer(theirs.toBuffer())).isEmpty());
+    }
+
+    @Test
+    void incrementalRefreshFindsDivergedLeaf() throws IOException {
+        final InMemoryDAO first = new InMemoryDAO();
+        final InMemoryDAO second = new InMemoryDAO();
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            first.upsert(key, ByteBuffer.wrap(new byte[]{1}));
+            second.upsert(key, ByteBuffer.wrap(new byte[]{1}));
+        }
+        final MerkleTree ours = new MerkleTree();
+        ours.refresh(first);
+        final MerkleTree theirs = new MerkleTree();
+        theirs.refresh(second);
+
+        final ByteBuffer key = randomKeyBuffer();
+        second.upsert(key, randomValueBuffer());
+        theirs.refresh(second);
+        assertTrue(ours.diff(theirs).isEmpty(), "Refreshed without invalidation");
+
+        theirs.invalidate(key);
+        theirs.refresh(second);
+        assertEquals(List.of(MerkleTree.leaf(key)), ours.diff(theirs));
+
+        first.upsert(key, second.get(key));
+        ours.invalidate(key);
+        ours.refresh(first);
+        assertTrue(ours.diff(theirs).isEmpty());
+    }
+
+    @Test
+    void filteredKeysIgnored() throws IOException {
+        final InMemoryDAO first = new InMemoryDAO();
+        final InMemoryDAO second = new InMemoryDAO();
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            first.upsert(key, ByteBuffer.wrap(new byte[]{1}));
+            // Keys the trees don't cover differ freely
+            second.upsert(key, key.get(0) < 0 ? randomValueBuffer() : ByteBuffer.wrap(new byte[]{1}));
+        }
+
+        final MerkleTree ours = new MerkleTree(key -> key.get(key.position()) >= 0);
+        ours.refresh(first);
+        final MerkleTree theirs = new MerkleTree(key -> key.get(key.position()) >= 0);
+        theirs.refresh(second);
+        assertTrue(ours.diff(theirs).isEmpty());
+    }
+
+    @Test
+    void failedRefreshKeepsLeavesDirty() throws IOException {
+        final InMemoryDAO first = new InMemoryDAO();
+        final FailingDAO second = new FailingDAO();
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            first.upsert(key, ByteBuffer.wrap(new byte[]{1}));
+            second.upsert(key, ByteBuffer.wrap(new byte[]{1}));
+        }
+        final MerkleTree ours = new MerkleTree();
+        ours.refresh(first);
+
+        // Fails in the middle of the first word of the dirty bits
+        second.failures = 10;
+        final MerkleTree theirs = new MerkleTree();
+        while (second.failures > 0) {
+            assertThrows(IOException.class, () -> theirs.refresh(second));
+        }
+        theirs.refresh(second);
+        assertTrue(ours.diff(theirs).isEmpty());
+    }
+
+    @Test
+    void leafEncoding() throws IOException {
+        final InMemoryDAO dao = new InMemoryDAO();
+        for (int i = 0; i < 100; i++) {
+            dao.upsert(randomKeyBuffer(), randomValueBuffer());
+        }
+
+        final byte[] encoded = AntiEntropy.encode(dao.iterator(ByteBuffer.allocate(0)));
+        final List<Record> decoded = AntiEntropy.decode(ByteBuffer.wrap(encoded));
+        assertEquals(100, decoded.size());
+        for (final Record record : decoded) {
+            assertEquals(dao.get(record.getKey()), record.getValue());
+        }
+    }
+
+    private static final class FailingDAO extends InMemoryDAO {
+        private int failures;
+        private int ranges;
+
+        @NotNull
+        @Override
+        public Iterator<Record> range(
+                @NotNull final ByteBuffer from,
+                @Nullable final ByteBuffer to) throws IOException {
+            if (failures > 0 && ++ranges % 5 == 0) {
+                failures--;
+                throw new IOException("Failed");
+            }
+            return super.range(from, to);
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link Quorum}.
+ */
+class QuorumTest {
+    @Test
+    void completesWithoutSlowestReplica() {
+        final CompletableFuture<Integer> first = new CompletableFuture<>();
+        final CompletableFuture<Integer> second = new CompletableFuture<>();
+        final CompletableFuture<Integer> slow = new CompletableFuture<>();
+        final CompletableFuture<List<Integer>> result = Quorum.atLeast(List.of(first, second, slow), 2);
+
+        second.complete(2);
+        assertFalse(result.isDone());
+        first.complete(1);
+        assertEquals(List.of(2, 1), result.join());
+    }
+
+    @Test
+    void toleratesFailures() {
+        final CompletableFuture<Integer> failed = new CompletableFuture<>();
+        final CompletableFuture<Integer> alive = new CompletableFuture<>();
+        final CompletableFuture<List<Integer>> result = Quorum.atLeast(List.of(failed, alive), 1);
+
+        failed.completeExceptionally(new IllegalStateException("Down"));
+        assertFalse(result.isDone());
+        alive.complete(1);
+        assertEquals(List.of(1), result.join());
+    }
+
+    @Test
+    void failsAsSoonAsAckIsUnreachable() {
+        final CompletableFuture<Integer> first = new CompletableFuture<>();
+        final CompletableFuture<Integer> second = new CompletableFuture<>();
+        final CompletableFuture<Integer> pending = new CompletableFuture<>();
+        final CompletableFuture<List<Integer>> result = Quorum.atLeast(List.of(first, second, pending), 2);
+
+        first.completeExceptionally(new IllegalStateException("Down"));
+        assertFalse(result.isDone());
+        second.completeExceptionally(new IllegalStateException("Down"));
+        assertTrue(result.isCompletedExceptionally());
+    }
+}
@@ -0,0 +1,97 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link RangeMerge}.
+ */
+class RangeMergeTest {
+    @Test
+    void mergesInKeyOrder() {
+        final List<Iterator<Record>> streams = List.of(
+                stream(stored("a", 1, "1"), stored("d", 1, "4")),
+                stream(stored("b", 1, "2")),
+                stream(),
+                stream(stored("c", 1, "3"), stored("e", 1, "5")));
+
+        assertEquals(List.of("a=1", "b=2", "c=3", "d=4", "e=5"), read(RangeMerge.present(new RangeMerge(streams))));
+    }
+
+    @Test
+    void keepsLatestVersion() {
+        final List<Iterator<Record>> streams = List.of(
+                stream(stored("a", 1, "old"), stored("b", 3, "new")),
+                stream(stored("a", 2, "new"), stored("b", 2, "old")),
+                stream(stored("a", 1, "old")));
+
+        assertEquals(List.of("a=new", "b=new"), read(RangeMerge.present(new RangeMerge(streams))));
+    }
+
+    @Test
+    void dropsRemoved() {
+        final List<Iterator<Record>> streams = List.of(
+                stream(stored("a", 1, "1"), stored("b", 1, "2")),
+                stream(removed("a", 2)),
+                stream(removed("b", 0), stored("c", 1, "3")));
+
+        assertEquals(List.of("b=2", "c=3"), read(RangeMerge.present(new RangeMerge(streams))));
+    }
+
+    @Test
+    void readsStreamedFrames() throws Exception {
+        final Record first = stored("a", 1, "1");
+        final Record second = removed("b", 2);
+        final byte[] a = AntiEntropy.frame(first);
+        final byte[] b = AntiEntropy.frame(second);
+        final byte[] frames = new byte[a.length + b.length];
+        System.arraycopy(a, 0, frames, 0, a.length);
+        System.arraycopy(b, 0, frames, a.length, b.length);
+
+        try (RecordStream stream = new RecordStream(new ByteArrayInputStream(frames))) {
+            assertEquals(first, stream.next());
+            assertEquals(second, stream.next());
+            assertFalse(stream.hasNext());
+        }
+    }
+
+    private static Iterator<Record> stream(final Record... records) {
+        return List.of(records).iterator();
+    }
+
+    private static Record stored(
+            final String key,
+            final long timestamp,
+            final String data) {
+        return Record.of(buffer(key), Value.present(buffer(data), timestamp).toBuffer());
+    }
+
+    private static Record removed(
+            final String key,
+            final long timestamp) {
+        return Record.of(buffer(key), Value.tombstone(timestamp).toBuffer());
+    }
+
+    private static ByteBuffer buffer(final String value) {
+        return ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static List<String> read(final Iterator<Record> records) {
+        final List<String> result = new ArrayList<>();
+        while (records.hasNext()) {
+            final Record record = records.next();
+            result.add(StandardCharsets.UTF_8.decode(record.getKey())
+                    + "=" + StandardCharsets.UTF_8.decode(record.getValue()));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,148 @@
+package ru.mail.polis.service.mariarheon;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.InMemoryDAO;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link Rebalancer} sending to a fake new replica.
+ */
+class RebalancerTest extends TestBase {
+    private static final String ME = "http://localhost:1";
+
+    private final Map<ByteBuffer, Value> received = new ConcurrentHashMap<>();
+    private HttpServer peer;
+    private String node;
+    private EntityStorage storage;
+    private Rebalancer rebalancer;
+
+    @BeforeEach
+    void start() throws IOException {
+        peer = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        peer.createContext(Rebalancer.PATH, this::ingest);
+        peer.start();
+        node = "http://localhost:" + peer.getAddress().getPort();
+        storage = new EntityStorage(new InMemoryDAO(), 1024 * 1024);
+        rebalancer = new Rebalancer(new RendezvousTopology(ME, Set.of(ME, node)), storage, 2, 1000);
+    }
+
+    @AfterEach
+    void stop() {
+        rebalancer.close();
+        peer.stop(0);
+    }
+
+    @Test
+    void sendsEverythingToNewReplica() throws IOException {
+        final int count = 1000;
+        for (int i = 0; i < count; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            if (i % 10 == 0) {
+                storage.remove(key, i);
+            } else {
+                storage.upsert(key, randomValueBuffer(), i);
+            }
+        }
+
+        assertEquals(count, (long) rebalancer.start(Set.of(ME)).join());
+        assertEquals(count, rebalancer.moved());
+        assertTrue(rebalancer.slices() > 1);
+        assertEquals(count, received.size());
+        final Iterator<Record> records = storage.range(ByteBuffer.allocate(0), null);
+        while (records.hasNext()) {
+            final Record record = records.next();
+            final Value sent = Value.fromBuffer(record.getValue());
+            final Value value = received.get(record.getKey());
+            assertEquals(sent.timestamp(), value.timestamp());
+            assertEquals(sent.isTombstone(), value.isTombstone());
+            if (sent.isPresent()) {
+                assertEquals(sent.data(), value.data());
+            }
+        }
+    }
+
+    @Test
+    void failedReceiverDoesNotStopOthers() throws IOException {
+        final String dead = "http://localhost:" + randomPort();
+        final Rebalancer spreading = new Rebalancer(
+                new RendezvousTopology(ME, Set.of(ME, node, dead)),
+                storage,
+                3,
+                1000);
+        final int count = 100;
+        for (int i = 0; i < count; i++) {
+            storage.upsert(randomKeyBuffer(), randomValueBuffer(), i);
+        }
+        // Too large for a request body of the receiver
+        storage.upsert(randomKeyBuffer(), ByteBuffer.allocate(128 * 1024), count);
+
+        final CompletionException e = assertThrows(
+                CompletionException.class,
+                () -> spreading.start(Set.of(ME)).join());
+        assertTrue(e.getCause().getCause().getMessage().contains(dead));
+        assertEquals(count, received.size());
+        assertEquals(count, spreading.moved());
+        assertEquals(2, spreading.skipped());
+        spreading.close();
+    }
+
+    @Test
+    void joinedNodeSendsNothing() {
+        assertEquals(0L, (long) rebalancer.start(Set.of(node)).join());
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void singleDonorPerKey() {
+        final Set<String> before = Set.of("a", "b", "c");
+        final Set<String> after = Set.of("a", "b", "c", "d");
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            int donors = 0;
+            for (final String me : before) {
+                final Topology current = new RendezvousTopology(me, after);
+                final Rebalancer donor = new Rebalancer(current, storage, 2, 1000);
+                final List<String> gaining = donor.gaining(current.withNodes(before), key);
+                if (!gaining.isEmpty()) {
+                    donors++;
+                    assertEquals(List.of("d"), gaining);
+                }
+                donor.close();
+            }
+            final boolean moves = new RendezvousTopology("a", after).replicasFor(key, 2).contains("d");
+            assertEquals(moves ? 1 : 0, donors);
+        }
+    }
+
+    private void ingest(final HttpExchange exchange) throws IOException {
+        if (exchange.getRequestHeaders().getFirst("X-Proxy-For") == null) {
+            exchange.sendResponseHeaders(500, -1);
+            exchange.close();
+            return;
+        }
+
+        final byte[] body = exchange.getRequestBody().readAllBytes();
+        for (final Record record : AntiEntropy.decode(ByteBuffer.wrap(body))) {
+            received.put(record.getKey(), Value.fromBuffer(record.getValue()));
+        }
+        exchange.sendResponseHeaders(200, -1);
+        exchange.close();
+    }
+}
@@ -0,0 +1,60 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link RendezvousTopology}.
+ */
+class RendezvousTopologyTest extends TestBase {
+    private static final int KEYS = 10_000;
+    private static final Set<String> NODES = Set.of(
+            "http://localhost:8080",
+            "http://localhost:8081",
+            "http://localhost:8082");
+
+    @Test
+    void sameOwnerOnAllNodes() {
+        final Topology first = new RendezvousTopology("http://localhost:8080", NODES);
+        final Topology second = new RendezvousTopology("http://localhost:8081", NODES);
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            assertEquals(first.primaryFor(key), second.primaryFor(key));
+        }
+    }
+
+    @Test
+    void balanced() {
+        final Topology topology = new RendezvousTopology("http://localhost:8080", NODES);
+        final Map<String, Integer> load = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            load.merge(topology.primaryFor(randomKeyBuffer()), 1, Integer::sum);
+        }
+        for (final String node : NODES) {
+            final int keys = load.getOrDefault(node, 0);
+            assertTrue(keys > KEYS / NODES.size() * 8 / 10, node + " owns only " + keys);
+        }
+    }
+
+    @Test
+    void removingNodeMovesOnlyItsKeys() {
+        final Topology before = new RendezvousTopology("http://localhost:8080", NODES);
+        final Topology after = new RendezvousTopology(
+                "http://localhost:8080",
+                Set.of("http://localhost:8080", "http://localhost:8081"));
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            final String owner = before.primaryFor(key);
+            if (!owner.equals("http://localhost:8082")) {
+                assertEquals(owner, after.primaryFor(key));
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link Replicas} and replica placement.
+ */
+class ReplicasTest {
+    private static final Set<String> NODES = Set.of(
+            "http://localhost:8080",
+            "http://localhost:8081",
+            "http://localhost:8082");
+
+    @Test
+    void majorityByDefault() {
+        final Replicas replicas = Replicas.parse(null, 3);
+        assertEquals(2, replicas.ack());
+        assertEquals(3, replicas.from());
+    }
+
+    @Test
+    void parsed() {
+        final Replicas replicas = Replicas.parse("1/2", 3);
+        assertEquals(1, replicas.ack());
+        assertEquals(2, replicas.from());
+    }
+
+    @Test
+    void invalid() {
+        for (final String replicas : new String[]{"", "1", "a/b", "0/1", "2/1", "1/4", "-1/2"}) {
+            assertThrows(IllegalArgumentException.class, () -> Replicas.parse(replicas, 3), replicas);
+        }
+    }
+
+    @Test
+    void distinctReplicasStartingWithPrimary() {
+        final Topology[] topologies = {
+                new RendezvousTopology("http://localhost:8080", NODES),
+                new ConsistentHashTopology("http://localhost:8080", NODES, 64)};
+        for (final Topology topology : topologies) {
+            for (int i = 0; i < 1000; i++) {
+                final ByteBuffer key = ByteBuffer.wrap(("key" + i).getBytes(StandardCharsets.UTF_8));
+                final List<String> replicas = topology.replicasFor(key, 2);
+                assertEquals(2, replicas.size());
+                assertEquals(topology.primaryFor(key), replicas.get(0));
+                assertEquals(2, new HashSet<>(replicas).size());
+                assertEquals(NODES, new HashSet<>(topology.replicasFor(key, 3)));
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link TimedBodyStream}.
+ */
+class TimedBodyStreamTest {
+    @Test
+    void readsChunksAsRequested() throws IOException {
+        final FakeSubscription subscription = new FakeSubscription();
+        final TimedBodyStream stream = new TimedBodyStream(TimeUnit.SECONDS.toNanos(10));
+        stream.onSubscribe(subscription);
+        assertEquals(1, subscription.requested);
+
+        stream.onNext(List.of(ByteBuffer.wrap(new byte[]{0, 0}), ByteBuffer.wrap(new byte[]{0, 42})));
+        stream.onNext(List.of());
+        stream.onNext(List.of(ByteBuffer.wrap(new byte[]{7})));
+        stream.onComplete();
+
+        final DataInputStream in = new DataInputStream(stream);
+        assertEquals(42, in.readInt());
+        assertEquals(7, in.read());
+        assertEquals(-1, in.read());
+        assertEquals(4, subscription.requested);
+    }
+
+    @Test
+    void stalledPeerTimesOut() {
+        final FakeSubscription subscription = new FakeSubscription();
+        final TimedBodyStream stream = new TimedBodyStream(TimeUnit.MILLISECONDS.toNanos(50));
+        stream.onSubscribe(subscription);
+        stream.onNext(List.of(ByteBuffer.wrap(new byte[]{1})));
+
+        assertThrows(SocketTimeoutException.class, () -> new DataInputStream(stream).readInt());
+        assertTrue(subscription.cancelled);
+    }
+
+    @Test
+    void failureRethrown() {
+        final TimedBodyStream stream = new TimedBodyStream(TimeUnit.SECONDS.toNanos(10));
+        stream.onSubscribe(new FakeSubscription());
+        stream.onError(new IllegalStateException("Reset"));
+
+        assertThrows(IOException.class, stream::read);
+    }
+
+    private static final class FakeSubscription implements Flow.Subscription {
+        private long requested;
+        private boolean cancelled;
+
+        @Override
+        public void request(final long n) {
+            requested += n;
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.BiFunction;
+
+/**
+ * Compares {@link Topology} strategies by lookup cost and load imbalance across cluster sizes.
+ * <p>
+ * Run with {@code ./gradlew topologyBenchmark}. Imbalance is the load of the busiest node
+ * divided by the mean load, {@code 1.0} is a perfectly even distribution.
+ */
+public final class TopologyBenchmark {
+    private static final int[] CLUSTER_SIZES = {2, 3, 5, 10, 20, 50};
+    private static final int KEYS = 200_000;
+    private static final int KEY_LENGTH = 16;
+    private static final int ROUNDS = 5;
+
+    private TopologyBenchmark() {
+        // Not instantiable
+    }
+
+    public static void main(final String[] args) {
+        final Map<String, BiFunction<String, Set<String>, Topology>> strategies = new LinkedHashMap<>();
+        strategies.put("consistent-16", (me, nodes) -> new ConsistentHashTopology(me, nodes, 16));
+        strategies.put("consistent-128", (me, nodes) -> new ConsistentHashTopology(me, nodes, 128));
+        strategies.put("rendezvous", RendezvousTopology::new);
+
+        final ByteBuffer[] keys = keys();
+        System.out.printf("%-16s %6s %12s %10s%n", "strategy", "nodes", "ns/lookup", "imbalance");
+        for (final int size : CLUSTER_SIZES) {
+            final Set<String> nodes = nodes(size);
+            final String me = nodes.iterator().next();
+            for (final Map.Entry<String, BiFunction<String, Set<String>, Topology>> strategy : strategies.entrySet()) {
+                final Topology topology = strategy.getValue().apply(me, nodes);
+                System.out.printf(
+                        "%-16s %6d %12.1f %10.3f%n",
+                        strategy.getKey(),
+                        size,
+                        lookupNanos(topology, keys),
+                        imbalance(topology, keys));
+            }
+        }
+    }
+
+    private static double lookupNanos(
+            @NotNull final Topology topology,
+            @NotNull final ByteBuffer[] keys) {
+        long best = Long.MAX_VALUE;
+        int blackhole = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            final long start = System.nanoTime();
+            for (final ByteBuffer key : keys) {
+                blackhole += topology.primaryFor(key).length();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (blackhole == 42) {
+            System.out.println();
+        }
+        return (double) best / keys.length;
+    }
+
+    private static double imbalance(
+            @NotNull final Topology topology,
+            @NotNull final ByteBuffer[] keys) {
+        final Map<String, Integer> load = new HashMap<>();
+        for (final ByteBuffer key : keys) {
+            load.merge(topology.primaryFor(key), 1, Integer::sum);
+        }
+        final int max = load.values().stream().mapToInt(Integer::intValue).max().orElse(0);
+        return max / ((double) keys.length / topology.size());
+    }
+
+    @NotNull
+    private static ByteBuffer[] keys() {
+        final Random random = new Random(42);
+        final ByteBuffer[] keys = new ByteBuffer[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            final byte[] key = new byte[KEY_LENGTH];
+            random.nextBytes(key);
+            keys[i] = ByteBuffer.wrap(key);
+        }
+        return keys;
+    }
+
+    @NotNull
+    private static Set<String> nodes(final int size) {
+        final Set<String> nodes = new TreeSet<>();
+        for (int i = 0; i < size; i++) {
+            nodes.add("http://localhost:" + (8080 + i));
+        }
+        return nodes;
+    }
+}
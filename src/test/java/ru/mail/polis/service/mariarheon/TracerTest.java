@@ -0,0 +1,73 @@
+package ru.mail.polis.service.mariarheon;
+
+import one.nio.http.Request;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.service.mariarheon.ServiceMetrics.Operation;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link Tracer} and {@link Trace}.
+ */
+class TracerTest {
+    private static final Request REQUEST = new Request(Request.METHOD_GET, "/v0/entity?id=key", true);
+
+    @Test
+    void unsampledAreNoop() {
+        final Tracer tracer = new Tracer(0.0, Long.MAX_VALUE);
+        final Trace trace = tracer.start(REQUEST);
+        assertSame(Trace.NOOP, trace);
+
+        final CompletableFuture<Integer> future = new CompletableFuture<>();
+        assertSame(future, trace.markWhenDone(future, Trace.Stage.LOCAL));
+        trace.mark(Trace.Stage.QUEUED);
+        assertEquals("", trace.breakdown());
+        tracer.finish(trace, Operation.GET, 200, 1_000_000);
+        assertEquals(0, tracer.slow());
+    }
+
+    @Test
+    void breakdownOfReachedStages() {
+        final Tracer tracer = new Tracer(1.0, 0);
+        final Trace trace = tracer.start(REQUEST);
+        assertTrue(trace.sampled());
+
+        trace.mark(Trace.Stage.QUEUED);
+        final CompletableFuture<Integer> local = new CompletableFuture<>();
+        final CompletableFuture<Integer> marked = trace.markWhenDone(local, Trace.Stage.LOCAL);
+        assertFalse(trace.breakdown().contains("local"));
+        local.complete(1);
+        assertEquals(1, (int) marked.join());
+        trace.mark(Trace.Stage.WRITTEN);
+
+        final String breakdown = trace.breakdown();
+        assertTrue(breakdown.startsWith("queued +"), breakdown);
+        assertTrue(breakdown.contains(", local +"), breakdown);
+        assertTrue(breakdown.contains(", written +"), breakdown);
+        assertFalse(breakdown.contains("replicas"), breakdown);
+    }
+
+    @Test
+    void countsOnlySlow() {
+        final Tracer tracer = new Tracer(1.0, 1000);
+        tracer.finish(tracer.start(REQUEST), Operation.PUT, 201, 999);
+        assertEquals(0, tracer.slow());
+
+        tracer.finish(tracer.start(REQUEST), Operation.PUT, 201, 1000);
+        assertEquals(1, tracer.slow());
+    }
+
+    @Test
+    void unsampledSlowLogged() {
+        final Tracer tracer = new Tracer(0.0, 1000);
+        final Trace trace = tracer.start(REQUEST);
+        assertFalse(trace.sampled());
+        tracer.finish(trace, Operation.GET, 200, 999);
+        assertEquals(0, tracer.slow());
+
+        tracer.finish(trace, Operation.GET, 200, 5000);
+        assertEquals(1, tracer.slow());
+    }
+}
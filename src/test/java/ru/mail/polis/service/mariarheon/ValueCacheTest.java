@@ -0,0 +1,109 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link ValueCache}.
+ */
+class ValueCacheTest extends TestBase {
+    private static final int VALUE_SIZE = 1024;
+    private static final long CAPACITY = 64 * VALUE_SIZE;
+
+    @Test
+    void hitAndMiss() {
+        final ValueCache cache = new ValueCache(CAPACITY, VALUE_SIZE);
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+
+        assertNull(cache.get(key));
+        cache.put(key, value, cache.stamp(key));
+        assertEquals(value, cache.get(key));
+
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+        assertEquals(0.5, cache.hitRate(), 0.0);
+    }
+
+    @Test
+    void invalidate() {
+        final ValueCache cache = new ValueCache(CAPACITY, VALUE_SIZE);
+        final ByteBuffer key = randomKeyBuffer();
+
+        cache.put(key, randomValueBuffer(), cache.stamp(key));
+        cache.invalidate(key);
+        assertNull(cache.get(key));
+        assertEquals(0, cache.weightedSize());
+    }
+
+    @Test
+    void staleFillIsRejected() {
+        final ValueCache cache = new ValueCache(CAPACITY, VALUE_SIZE);
+        final ByteBuffer key = randomKeyBuffer();
+
+        final long stamp = cache.stamp(key);
+        cache.invalidate(key);
+        cache.put(key, randomValueBuffer(), stamp);
+        assertNull(cache.get(key));
+    }
+
+    @Test
+    void boundedBySize() {
+        final ValueCache cache = new ValueCache(CAPACITY, VALUE_SIZE);
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            cache.put(key, randomValueBuffer(), cache.stamp(key));
+            assertTrue(cache.weightedSize() <= CAPACITY);
+        }
+        assertTrue(cache.evictions() > 0);
+    }
+
+    @Test
+    void scanDoesNotEvictHotKeys() {
+        final ValueCache cache = new ValueCache(CAPACITY, VALUE_SIZE);
+        final List<ByteBuffer> hot = new ArrayList<>();
+        for (int i = 0; i < 32; i++) {
+            hot.add(randomKeyBuffer());
+        }
+
+        for (int round = 0; round < 5; round++) {
+            for (final ByteBuffer key : hot) {
+                if (cache.get(key) == null) {
+                    cache.put(key, randomValueBuffer(), cache.stamp(key));
+                }
+            }
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            assertNull(cache.get(key));
+            cache.put(key, randomValueBuffer(), cache.stamp(key));
+        }
+
+        int cached = 0;
+        for (final ByteBuffer key : hot) {
+            if (cache.get(key) != null) {
+                cached++;
+            }
+        }
+        assertTrue(cached >= hot.size() * 9 / 10, "Only " + cached + " hot keys survived the scan");
+    }
+
+    @Test
+    void resize() {
+        final ValueCache cache = new ValueCache(CAPACITY, VALUE_SIZE);
+        for (int i = 0; i < 64; i++) {
+            final ByteBuffer key = randomKeyBuffer();
+            cache.put(key, randomValueBuffer(), cache.stamp(key));
+        }
+
+        cache.resize(CAPACITY / 4);
+        assertTrue(cache.weightedSize() <= CAPACITY / 4);
+    }
+}
@@ -0,0 +1,115 @@
+package ru.mail.polis.service.mariarheon;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Unit tests for {@link WriteBatcher}.
+ */
+class WriteBatcherTest extends TestBase {
+    private static final String NODE = "http://localhost:8081";
+
+    private final List<List<Record>> sent = new CopyOnWriteArrayList<>();
+    private WriteBatcher batcher;
+
+    @AfterEach
+    void close() {
+        batcher.close();
+    }
+
+    @Test
+    void fullBatchSentAtOnce() {
+        batcher = new WriteBatcher(this::acceptAll, 4, WriteBatcher.MAX_BYTES, TimeUnit.SECONDS.toNanos(10));
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            writes.add(batcher.write(NODE, randomKeyBuffer(), Value.tombstone(i)));
+        }
+
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(2, sent.size());
+        assertEquals(4, sent.get(0).size());
+        assertEquals(2, batcher.batches());
+        assertEquals(8, batcher.writes());
+        assertEquals(0, Value.fromBuffer(sent.get(0).get(0).getValue()).timestamp());
+    }
+
+    @Test
+    void batchCutBySize() {
+        batcher = new WriteBatcher(this::acceptAll, 64, WriteBatcher.MAX_BYTES, TimeUnit.SECONDS.toNanos(10));
+        final List<CompletableFuture<Void>> writes = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            writes.add(batcher.write(NODE, randomKeyBuffer(), Value.present(randomValueBuffer(), i)));
+        }
+        // A value larger than the limit goes alone
+        writes.add(batcher.write(NODE, randomKeyBuffer(), Value.present(randomBuffer(WriteBatcher.MAX_BYTES), 64)));
+        batcher.flush(NODE);
+
+        CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[0])).join();
+        assertEquals(65, sent.stream().mapToInt(List::size).sum());
+        for (final List<Record> batch : sent) {
+            final int bytes = AntiEntropy.encode(batch.iterator()).length;
+            assertTrue(batch.size() == 1 || bytes <= WriteBatcher.MAX_BYTES, "Batch of " + bytes + " bytes");
+        }
+        assertEquals(1, sent.get(sent.size() - 1).size());
+    }
+
+    @Test
+    void lingeringBatchFlushed() throws Exception {
+        batcher = new WriteBatcher(this::acceptAll, 64, WriteBatcher.MAX_BYTES, TimeUnit.MICROSECONDS.toNanos(200));
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        batcher.write(NODE, key, Value.present(value, 1L)).get(1, TimeUnit.SECONDS);
+
+        assertEquals(1, sent.size());
+        final Record record = sent.get(0).get(0);
+        assertEquals(key, record.getKey());
+        assertEquals(value, Value.fromBuffer(record.getValue()).data());
+    }
+
+    @Test
+    void resultsFannedOut() {
+        batcher = new WriteBatcher(
+                (node, batch) -> CompletableFuture.completedFuture(new byte[]{WriteBatcher.OK, WriteBatcher.FAILED}),
+                2,
+                WriteBatcher.MAX_BYTES,
+                TimeUnit.SECONDS.toNanos(10));
+        final CompletableFuture<Void> first = batcher.write(NODE, randomKeyBuffer(), Value.tombstone(1L));
+        final CompletableFuture<Void> second = batcher.write(NODE, randomKeyBuffer(), Value.tombstone(2L));
+        assertNull(first.join());
+        assertTrue(second.isCompletedExceptionally());
+    }
+
+    @Test
+    void failedBatchFailsAll() {
+        batcher = new WriteBatcher(
+                (node, batch) -> CompletableFuture.failedFuture(new IllegalStateException("Down")),
+                2,
+                WriteBatcher.MAX_BYTES,
+                TimeUnit.SECONDS.toNanos(10));
+        final CompletableFuture<Void> first = batcher.write(NODE, randomKeyBuffer(), Value.tombstone(1L));
+        final CompletableFuture<Void> second = batcher.write(NODE, randomKeyBuffer(), Value.tombstone(2L));
+        assertTrue(first.isCompletedExceptionally());
+        assertTrue(second.isCompletedExceptionally());
+    }
+
+    @NotNull
+    private CompletableFuture<byte[]> acceptAll(
+            @NotNull final String node,
+            @NotNull final byte[] batch) {
+        final List<Record> records = AntiEntropy.decode(ByteBuffer.wrap(batch));
+        sent.add(records);
+        return CompletableFuture.completedFuture(new byte[records.size()]);
+    }
+}